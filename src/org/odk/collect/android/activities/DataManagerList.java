@@ -15,24 +15,29 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.PagedCursorAdapter;
+import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.ContentBatch;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
-import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Responsible for displaying and deleting all the valid forms in the forms directory.
@@ -40,17 +45,21 @@ import java.util.ArrayList;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class DataManagerList extends ListActivity {
+public class DataManagerList extends ListActivity implements PagedCursorAdapter.OnLoadListener {
     private static final String t = "DataManagerList";
     private AlertDialog mAlertDialog;
     private Button mDeleteButton;
 
-    private SimpleCursorAdapter mInstances;
+    private PagedCursorAdapter mInstances;
     private ArrayList<Long> mSelected = new ArrayList<Long>();
-    private boolean mRestored = false;
 
     private static final String SELECTED = "selected";
 
+    // only what the list shows
+    private static final String[] PROJECTION = {
+            InstanceColumns._ID, InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
+    };
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -71,8 +80,6 @@ public class DataManagerList extends ListActivity {
             }
         });
 
-        Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, null, null, InstanceColumns.DISPLAY_NAME);
-
         String[] data = new String[] {
                 InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
         };
@@ -81,26 +88,30 @@ public class DataManagerList extends ListActivity {
         };
 
         mInstances =
-            new SimpleCursorAdapter(this, R.layout.two_item_multiple_choice, c, data, view);
+            new PagedCursorAdapter(this, R.layout.two_item_multiple_choice, data, view,
+                InstanceColumns.CONTENT_URI, PROJECTION, null, null, InstanceColumns.DISPLAY_NAME);
+        mInstances.setOnLoadListener(this);
         setListAdapter(mInstances);
+
+        // the provider's full-text index answers each keystroke, in the background
+        EditText search = (EditText) findViewById(R.id.search_text);
+        search.addTextChangedListener(new TextWatcher() {
+            public void afterTextChanged(Editable s) {
+                mInstances.setUri(InstanceColumns.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(InstanceProviderAPI.SEARCH, s.toString()).build());
+            }
+
+
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
         getListView().setItemsCanFocus(false);
         mDeleteButton.setEnabled(!(mSelected.size() == 0));
-
-        // if current activity is being reinitialized due to changing orientation
-        // restore all check marks for ones selected
-        if (mRestored) {
-            ListView ls = getListView();
-            for (long id : mSelected) {
-                for (int pos = 0; pos < ls.getCount(); pos++) {
-                    if (id == ls.getItemIdAtPosition(pos)) {
-                        ls.setItemChecked(pos, true);
-                        break;
-                    }
-                }
-            }
-            mRestored = false;
-        }
     }
 
 
@@ -137,13 +148,14 @@ public class DataManagerList extends ListActivity {
      * Deletes the selected files. Content provider handles removing the files from the filesystem.
      */
     private void deleteSelectedInstances() {
-        ContentResolver cr = getContentResolver();
-        int deleted = 0;
+        // one transaction, and one refresh of the list, however many are selected
+        ContentBatch deletes = new ContentBatch(InstanceProviderAPI.AUTHORITY);
         for (int i = 0; i < mSelected.size(); i++) {
             Uri deleteForm =
                 Uri.withAppendedPath(InstanceColumns.CONTENT_URI, mSelected.get(i).toString());
-            deleted += cr.delete(deleteForm, null, null);
+            deletes.delete(deleteForm, null, null);
         }
+        int deleted = deletes.apply(getContentResolver());
 
         if (deleted == mSelected.size()) {
             // all deletes were successful
@@ -160,6 +172,29 @@ public class DataManagerList extends ListActivity {
     }
 
 
+    /**
+     * Checks the rows that are selected, e.g. from before the screen was rotated, as each page
+     * loads or the list is refreshed.
+     */
+    @Override
+    public void onLoad(PagedCursorAdapter adapter) {
+        HashSet<Long> selected = new HashSet<Long>(mSelected);
+        ListView ls = getListView();
+        for (int pos = 0; pos < ls.getCount(); pos++) {
+            ls.setItemChecked(pos, selected.contains(ls.getItemIdAtPosition(pos)));
+        }
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mInstances != null) {
+            mInstances.close();
+        }
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         super.onListItemClick(l, v, position, id);
@@ -194,7 +229,6 @@ public class DataManagerList extends ListActivity {
         for (int i = 0; i < selectedArray.length; i++) {
             mSelected.add(selectedArray[i]);
         }
-        mRestored = true;
         mDeleteButton.setEnabled(selectedArray.length > 0);
     }
 
@@ -15,16 +15,26 @@
 
 package org.odk.collect.android.activities;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.BitmapDecoder;
 import org.odk.collect.android.utilities.FileUtils;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.ActivityInfo;
@@ -36,9 +46,9 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
-import android.view.Display;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -53,6 +63,11 @@ import android.widget.RelativeLayout;
  * Modified from the FingerPaint example found in The Android Open Source
  * Project.
  * 
+ * Strokes are recorded as the points they pass through. The screen shows them
+ * over a 16 bit copy of the background, and the saved image is drawn from the
+ * background file and the strokes again, at its own size, on a background
+ * thread.
+ * 
  * @author BehrAtherton@gmail.com
  * 
  */
@@ -68,6 +83,15 @@ public class DrawActivity extends Activity {
 	public static final String SAVEPOINT_IMAGE = "savepointImage"; // during
 	// restore
 
+	// the strokes can be far too many for the saved state, so only the file
+	// holding them goes in it
+	private static final String STROKES_FILE = "strokesFile";
+	private static final String STROKES_PATH = Collect.CACHE_PATH
+			+ "/drawStrokes";
+
+	private static final int SAVING_DIALOG = 1;
+	private static final int JPEG_QUALITY = 70;
+
 	// incoming options...
 	private String loadOption = null;
 	private File refImage = null;
@@ -82,18 +106,25 @@ public class DrawActivity extends Activity {
 	private DrawView drawView;
 	private String alertTitleString;
 	private AlertDialog alertDialog;
+	private SaveTask mSaveTask;
 
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
-		try {
-			saveFile(savepointImage);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+		// the points are all we need to redraw, no need to encode an image
+		File strokes = new File(STROKES_PATH);
+		if (drawView.saveStrokes(strokes)) {
+			outState.putString(STROKES_FILE, strokes.getAbsolutePath());
 		}
-		if ( savepointImage.exists() ) {
-			outState.putString(SAVEPOINT_IMAGE, savepointImage.getAbsolutePath());
+	}
+
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		// pass the save on to the restarted activity
+		if (mSaveTask != null) {
+			mSaveTask.setActivity(null);
 		}
+		return mSaveTask;
 	}
 
 	@Override
@@ -176,6 +207,11 @@ public class DrawActivity extends Activity {
 
 		drawView = new DrawView(this, OPTION_SIGNATURE.equals(loadOption),
 				savepointImage);
+		if (savedInstanceState != null
+				&& savedInstanceState.getString(STROKES_FILE) != null) {
+			drawView.restoreStrokes(new File(savedInstanceState
+					.getString(STROKES_FILE)));
+		}
 
 		ll.addView(drawView);
 
@@ -220,40 +256,83 @@ public class DrawActivity extends Activity {
 			}
 		});
 
+		mSaveTask = (SaveTask) getLastNonConfigurationInstance();
+		if (mSaveTask != null) {
+			mSaveTask.setActivity(this);
+		}
 	}
 
-	private void SaveAndClose() {
-		try {
-			saveFile(output);
-			setResult(Activity.RESULT_OK);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			setResult(Activity.RESULT_CANCELED);
+	@Override
+	protected Dialog onCreateDialog(int id) {
+		switch (id) {
+		case SAVING_DIALOG:
+			ProgressDialog progressDialog = new ProgressDialog(this);
+			progressDialog.setIcon(android.R.drawable.ic_dialog_info);
+			progressDialog.setMessage(getString(R.string.saving_image));
+			progressDialog.setIndeterminate(true);
+			progressDialog.setCancelable(false);
+			return progressDialog;
 		}
-		this.finish();
+		return null;
 	}
 
-	private void saveFile(File f) throws FileNotFoundException {
-		if ( drawView.getWidth() == 0 || drawView.getHeight() == 0 ) {
+	private void SaveAndClose() {
+		if (mSaveTask != null) {
+			// already saving
+			return;
+		}
+		if ( drawView.getAreaWidth() == 0 || drawView.getAreaHeight() == 0 ) {
 			// apparently on 4.x, the orientation change notification can occur
 			// sometime before the view is rendered. In that case, the view
 			// dimensions will not be known.
 			Log.e(t,"view has zero width or zero height");
-		} else {
-			FileOutputStream fos;
-			fos = new FileOutputStream(f);
-			Bitmap bitmap = Bitmap.createBitmap(drawView.getWidth(),
-					drawView.getHeight(), Bitmap.Config.ARGB_8888);
-			Canvas canvas = new Canvas(bitmap);
-			drawView.draw(canvas);
-			bitmap.compress(Bitmap.CompressFormat.JPEG, 70, fos);
-			try {
-				if ( fos != null ) {
-					fos.flush();
-					fos.close();
-				}
-			} catch ( Exception e) {
+			CancelAndClose();
+			return;
+		}
+		showDialog(SAVING_DIALOG);
+		mSaveTask = new SaveTask(output, drawView.getBackgroundFile(),
+				drawView.hasSignLine(), drawView.getAreaWidth(),
+				drawView.getAreaHeight(), drawView.getStrokes(), paint,
+				pointPaint);
+		mSaveTask.setActivity(this);
+		mSaveTask.execute((Void[]) null);
+	}
+
+	private void saveFinished(boolean success) {
+		try {
+			dismissDialog(SAVING_DIALOG);
+		} catch (IllegalArgumentException e) {
+			// not showing
+		}
+		mSaveTask = null;
+		setResult(success ? Activity.RESULT_OK : Activity.RESULT_CANCELED);
+		this.finish();
+	}
+
+	/**
+	 * Draws the image that gets saved: white (or the background image), the
+	 * signature line, and the strokes.
+	 * 
+	 * @param background
+	 *            may be null
+	 */
+	private static void render(Canvas canvas, File background,
+			boolean signLine, List<Stroke> strokes, Paint paint,
+			Paint pointPaint) {
+		canvas.drawColor(0xFFFFFFFF);
+		if (background != null) {
+			Bitmap b = BitmapDecoder.decode(background, canvas.getHeight(),
+					canvas.getWidth());
+			if (b != null) {
+				canvas.drawBitmap(b, 0, 0, null);
+				b.recycle();
 			}
+		} else if (signLine) {
+			canvas.drawLine(0, (int) (canvas.getHeight() * .7),
+					canvas.getWidth(), (int) (canvas.getHeight() * .7), paint);
+		}
+		for (Stroke s : strokes) {
+			s.draw(canvas, paint, pointPaint);
 		}
 	}
 
@@ -347,14 +426,150 @@ public class DrawActivity extends Activity {
 		alertDialog.show();
 	}
 
+	/**
+	 * One finger stroke: the points it passed through, as x, y pairs.
+	 */
+	private static class Stroke {
+		final float[] points;
+
+		Stroke(float[] points) {
+			this.points = points;
+		}
+
+		void draw(Canvas canvas, Paint paint, Paint pointPaint) {
+			if (points.length == 2) {
+				canvas.drawPoint(points[0], points[1], pointPaint);
+			} else {
+				canvas.drawPath(toPath(points, points.length), paint);
+			}
+		}
+
+		/**
+		 * Smooths the points the same way they were drawn while touching.
+		 */
+		static Path toPath(float[] points, int length) {
+			Path path = new Path();
+			path.moveTo(points[0], points[1]);
+			for (int i = 2; i < length; i += 2) {
+				float x = points[i - 2];
+				float y = points[i - 1];
+				path.quadTo(x, y, (points[i] + x) / 2, (points[i + 1] + y) / 2);
+			}
+			if (length > 2) {
+				path.lineTo(points[length - 2], points[length - 1]);
+			}
+			return path;
+		}
+
+		Stroke scale(float scale) {
+			float[] scaled = new float[points.length];
+			for (int i = 0; i < points.length; i++) {
+				scaled[i] = points[i] * scale;
+			}
+			return new Stroke(scaled);
+		}
+	}
+
+	/**
+	 * Draws and saves the image off the UI thread. Survives restarts through
+	 * {@link DrawActivity#onRetainNonConfigurationInstance()}.
+	 */
+	private static class SaveTask extends AsyncTask<Void, Void, Boolean> {
+		private final File mOutput;
+		private final File mBackground;
+		private final boolean mSignLine;
+		private final int mWidth;
+		private final int mHeight;
+		private final List<Stroke> mStrokes;
+		private final Paint mPaint;
+		private final Paint mPointPaint;
+
+		private DrawActivity mActivity;
+		private Boolean mResult;
+
+		SaveTask(File output, File background, boolean signLine, int width,
+				int height, List<Stroke> strokes, Paint paint, Paint pointPaint) {
+			mOutput = output;
+			mBackground = background;
+			mSignLine = signLine;
+			mWidth = width;
+			mHeight = height;
+			mStrokes = strokes;
+			mPaint = new Paint(paint);
+			mPointPaint = new Paint(pointPaint);
+		}
+
+		void setActivity(DrawActivity activity) {
+			mActivity = activity;
+			if (mActivity != null && mResult != null) {
+				mActivity.saveFinished(mResult);
+			}
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			long start = System.currentTimeMillis();
+			Bitmap bitmap = null;
+			try {
+				// jpegs have no alpha, so there's no point drawing with it
+				bitmap = Bitmap.createBitmap(mWidth, mHeight,
+						Bitmap.Config.RGB_565);
+				render(new Canvas(bitmap), mBackground, mSignLine, mStrokes,
+						mPaint, mPointPaint);
+				FileOutputStream fos = new FileOutputStream(mOutput);
+				try {
+					if (!bitmap.compress(Bitmap.CompressFormat.JPEG,
+							JPEG_QUALITY, fos)) {
+						throw new IOException("Compression failed");
+					}
+					fos.flush();
+				} finally {
+					fos.close();
+				}
+				Log.i(t, "Saved " + mStrokes.size() + " strokes at " + mWidth
+						+ "x" + mHeight + " in "
+						+ (System.currentTimeMillis() - start) + "ms");
+				return true;
+			} catch (IOException e) {
+				Log.e(t, "Unable to save " + mOutput.getAbsolutePath() + ": "
+						+ e.getMessage());
+				return false;
+			} catch (OutOfMemoryError e) {
+				Log.e(t, "Out of memory saving " + mOutput.getAbsolutePath());
+				return false;
+			} finally {
+				if (bitmap != null) {
+					bitmap.recycle();
+				}
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Boolean result) {
+			mResult = result;
+			if (mActivity != null) {
+				mActivity.saveFinished(result);
+			}
+		}
+	}
+
 	public class DrawView extends View {
 		private boolean isSignature;
+		// what's on screen: the background and the finished strokes
 		private Bitmap mBitmap;
 		private Canvas mCanvas;
 		private Path mCurrentPath;
 		private Paint mBitmapPaint;
 		private File mBackgroundBitmapFile;
 
+		private ArrayList<Stroke> mStrokes = new ArrayList<Stroke>();
+		// the size of the drawing area the strokes were drawn in
+		private int mStrokesWidth;
+		private int mStrokesHeight;
+
+		private float[] mCurrentPoints = new float[64];
+		private int mCurrentLength;
+
 		public DrawView(final Context c) {
 			super(c);
 			isSignature = false;
@@ -371,28 +586,144 @@ public class DrawActivity extends Activity {
 		}
 
 		public void reset() {
-			Display display = ((WindowManager) getContext().getSystemService(
-					Context.WINDOW_SERVICE)).getDefaultDisplay();
-			int screenWidth = display.getWidth();
-			int screenHeight = display.getHeight();
-			resetImage(screenWidth, screenHeight);
+			mStrokes.clear();
+			resetImage(getWidth(), getHeight());
 		}
 
 		public void resetImage(int w, int h) {
-			if (mBackgroundBitmapFile.exists()) {
-				mBitmap = FileUtils.getBitmapScaledToDisplay(
-						mBackgroundBitmapFile, w, h).copy(
-								Bitmap.Config.ARGB_8888, true);
-				// mBitmap =
-				// Bitmap.createScaledBitmap(BitmapFactory.decodeFile(mBackgroundBitmapFile.getPath()),
-				// w, h, true);
-				mCanvas = new Canvas(mBitmap);
-			} else {
-				mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-				mCanvas = new Canvas(mBitmap);
-				mCanvas.drawColor(0xFFFFFFFF);
-				if (isSignature)
-					drawSignLine();
+			if (mBitmap != null) {
+				mBitmap.recycle();
+				mBitmap = null;
+			}
+			if (w == 0 || h == 0) {
+				return;
+			}
+
+			// the drawing area is the background image as shown, if there is one
+			File background = getBackgroundFile();
+			if (background != null) {
+				int[] size = BitmapDecoder.getScaledSize(background, h, w);
+				if (size != null) {
+					w = size[0];
+					h = size[1];
+				}
+			}
+
+			if (mStrokesWidth > 0 && mStrokesHeight > 0
+					&& (mStrokesWidth != w || mStrokesHeight != h)) {
+				// restored after a rotation; keep the strokes on the image
+				float scale = Math.min((float) w / mStrokesWidth, (float) h
+						/ mStrokesHeight);
+				for (int i = 0; i < mStrokes.size(); i++) {
+					mStrokes.set(i, mStrokes.get(i).scale(scale));
+				}
+			}
+			mStrokesWidth = w;
+			mStrokesHeight = h;
+
+			// 16 bits are plenty for black strokes on a photo or white
+			mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+			mCanvas = new Canvas(mBitmap);
+			render(mCanvas, background, isSignature, mStrokes, paint,
+					pointPaint);
+		}
+
+		File getBackgroundFile() {
+			return mBackgroundBitmapFile.exists() ? mBackgroundBitmapFile
+					: null;
+		}
+
+		boolean hasSignLine() {
+			return isSignature;
+		}
+
+		int getAreaWidth() {
+			return mBitmap == null ? 0 : mBitmap.getWidth();
+		}
+
+		int getAreaHeight() {
+			return mBitmap == null ? 0 : mBitmap.getHeight();
+		}
+
+		/**
+		 * @return a copy of the finished strokes, which are never modified
+		 */
+		List<Stroke> getStrokes() {
+			return new ArrayList<Stroke>(mStrokes);
+		}
+
+		/**
+		 * Writes the strokes, and the size of the area they were drawn in, to
+		 * f.
+		 * 
+		 * @return false if they couldn't be written
+		 */
+		boolean saveStrokes(File f) {
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(f)));
+				out.writeInt(mStrokesWidth);
+				out.writeInt(mStrokesHeight);
+				out.writeInt(mStrokes.size());
+				for (Stroke stroke : mStrokes) {
+					out.writeInt(stroke.points.length);
+					for (float p : stroke.points) {
+						out.writeFloat(p);
+					}
+				}
+				out.close();
+				out = null;
+				return true;
+			} catch (IOException e) {
+				Log.e(t, "Unable to save strokes: " + e.getMessage());
+				return false;
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		/**
+		 * Takes back the strokes from {@link #saveStrokes(File)} and deletes
+		 * the file; they are drawn once the view has been laid out.
+		 */
+		void restoreStrokes(File f) {
+			mStrokes.clear();
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(f)));
+				int width = in.readInt();
+				int height = in.readInt();
+				int count = in.readInt();
+				ArrayList<Stroke> strokes = new ArrayList<Stroke>(count);
+				for (int i = 0; i < count; i++) {
+					float[] points = new float[in.readInt()];
+					for (int j = 0; j < points.length; j++) {
+						points[j] = in.readFloat();
+					}
+					if (points.length >= 2) {
+						strokes.add(new Stroke(points));
+					}
+				}
+				mStrokes.addAll(strokes);
+				mStrokesWidth = width;
+				mStrokesHeight = height;
+			} catch (IOException e) {
+				Log.e(t, "Unable to restore strokes: " + e.getMessage());
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+				f.delete();
 			}
 		}
 
@@ -405,37 +736,48 @@ public class DrawActivity extends Activity {
 		@Override
 		protected void onDraw(Canvas canvas) {
 			canvas.drawColor(R.drawable.grey);
-			canvas.drawBitmap(mBitmap, 0, 0, mBitmapPaint);
+			if (mBitmap != null) {
+				canvas.drawBitmap(mBitmap, 0, 0, mBitmapPaint);
+			}
 			canvas.drawPath(mCurrentPath, paint);
 		}
 
+		private void addPoint(float x, float y) {
+			if (mCurrentLength + 2 > mCurrentPoints.length) {
+				float[] points = new float[mCurrentPoints.length * 2];
+				System.arraycopy(mCurrentPoints, 0, points, 0, mCurrentLength);
+				mCurrentPoints = points;
+			}
+			mCurrentPoints[mCurrentLength++] = x;
+			mCurrentPoints[mCurrentLength++] = y;
+		}
+
 		private float mX, mY;
 
 		private void touch_start(float x, float y) {
 			mCurrentPath.reset();
 			mCurrentPath.moveTo(x, y);
+			mCurrentLength = 0;
+			addPoint(x, y);
 			mX = x;
 			mY = y;
 		}
 
-		public void drawSignLine() {
-			mCanvas.drawLine(0, (int) (mCanvas.getHeight() * .7),
-					mCanvas.getWidth(), (int) (mCanvas.getHeight() * .7), paint);
-		}
-
 		private void touch_move(float x, float y) {
 			mCurrentPath.quadTo(mX, mY, (x + mX) / 2, (y + mY) / 2);
+			addPoint(x, y);
 			mX = x;
 			mY = y;
 		}
 
 		private void touch_up() {
-			if (mCurrentPath.isEmpty()) {
-				mCanvas.drawPoint(mX, mY, pointPaint);
-			} else {
-				mCurrentPath.lineTo(mX, mY);
-				// commit the path to our offscreen
-				mCanvas.drawPath(mCurrentPath, paint);
+			float[] points = new float[mCurrentLength];
+			System.arraycopy(mCurrentPoints, 0, points, 0, mCurrentLength);
+			Stroke stroke = new Stroke(points);
+			mStrokes.add(stroke);
+			if (mCanvas != null) {
+				// commit the stroke to our offscreen
+				stroke.draw(mCanvas, paint, pointPaint);
 			}
 			// kill this so we don't double draw
 			mCurrentPath.reset();
@@ -465,4 +807,4 @@ public class DrawActivity extends Activity {
 
 	}
 
-}
\ No newline at end of file
+}
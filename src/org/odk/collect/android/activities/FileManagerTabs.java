@@ -15,6 +15,8 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.database.FileReaper;
+import org.odk.collect.android.listeners.FileReaperListener;
 
 import android.app.TabActivity;
 import android.content.Intent;
@@ -30,7 +32,7 @@ import android.widget.TextView;
  * An example of tab content that launches an activity via
  * {@link android.widget.TabHost.TabSpec#setContent(android.content.Intent)}
  */
-public class FileManagerTabs extends TabActivity {
+public class FileManagerTabs extends TabActivity implements FileReaperListener {
 
     private static TextView mTVFF;
     private static TextView mTVDF;
@@ -39,12 +41,15 @@ public class FileManagerTabs extends TabActivity {
     private static final String DATA_TAB = "data_tab";
     private static final int FONT_SIZE = 21;
 
+    private String mTitle;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        setTitle(getString(R.string.app_name) + " > " + getString(R.string.manage_files));
+        mTitle = getString(R.string.app_name) + " > " + getString(R.string.manage_files);
+        setTitle(mTitle);
 
         final TabHost tabHost = getTabHost();
         tabHost.setBackgroundColor(Color.WHITE);
@@ -74,6 +79,31 @@ public class FileManagerTabs extends TabActivity {
     }
 
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // files of deleted forms and instances are removed in the background, show how it's going
+        reaperProgress(0, FileReaper.getInstance().addListener(this));
+    }
+
+
+    @Override
+    protected void onPause() {
+        FileReaper.getInstance().removeListener(this);
+        super.onPause();
+    }
+
+
+    @Override
+    public void reaperProgress(int reaped, int remaining) {
+        if (remaining > 0) {
+            setTitle(getString(R.string.removing_files, mTitle, remaining));
+        } else {
+            setTitle(mTitle);
+        }
+    }
+
+
     /**
      * Sets the tab header to the specified name
      * 
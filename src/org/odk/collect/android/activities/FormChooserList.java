@@ -15,6 +15,7 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.PagedCursorAdapter;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.DiskSyncListener;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
@@ -32,7 +33,6 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
 /**
@@ -50,6 +50,12 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
     private static final boolean EXIT = true;
 
     private AlertDialog mAlertDialog;
+    private PagedCursorAdapter mForms;
+
+    // only what the list shows
+    private static final String[] PROJECTION = {
+            FormsColumns._ID, FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT
+    };
 
     private final String syncMsgKey = "syncmsgkey";
 
@@ -83,8 +89,6 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
             mDiskSyncTask.setDiskSyncListener(null);
         }
 
-        Cursor c = managedQuery(FormsColumns.CONTENT_URI, null, null, null, null);
-
         String[] data = new String[] {
                 FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT
         };
@@ -93,9 +97,10 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
         };
 
         // render total instance view
-        SimpleCursorAdapter instances =
-            new SimpleCursorAdapter(this, R.layout.two_item, c, data, view);
-        setListAdapter(instances);
+        mForms =
+            new PagedCursorAdapter(this, R.layout.two_item, data, view, FormsColumns.CONTENT_URI,
+                PROJECTION, null, null, null);
+        setListAdapter(mForms);
 
         if (savedInstanceState != null && savedInstanceState.containsKey(syncMsgKey)) {
             TextView tv = (TextView) findViewById(R.id.status_text);
@@ -126,7 +131,6 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
     protected void onListItemClick(ListView listView, View view, int position, long id) {
         // get uri to form
         Cursor c = (Cursor) getListAdapter().getItem(position);
-        startManagingCursor(c);
         Uri formUri =
             ContentUris.withAppendedId(FormsColumns.CONTENT_URI,
                 c.getLong(c.getColumnIndex(FormsColumns._ID)));
@@ -158,6 +162,15 @@ public class FormChooserList extends ListActivity implements DiskSyncListener {
     }
 
 
+    @Override
+    protected void onDestroy() {
+        if (mForms != null) {
+            mForms.close();
+        }
+        super.onDestroy();
+    }
+
+
     /**
      * Called by DiskSyncTask when the task is finished
      */
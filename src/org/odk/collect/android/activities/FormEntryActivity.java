@@ -15,6 +15,7 @@
 package org.odk.collect.android.activities;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +46,7 @@ import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.listeners.WidgetChangedListener;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormSessionRecorder;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
@@ -53,11 +55,15 @@ import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.tasks.FormLoaderTask;
 import org.odk.collect.android.tasks.SaveToDiskTask;
 import org.odk.collect.android.utilities.Base64Wrapper;
+import org.odk.collect.android.utilities.CapturedImageProcessor;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.InstanceArchiver;
+import org.odk.collect.android.utilities.SharedMediaStore;
 import org.odk.collect.android.utilities.StringUtils;
 import org.odk.collect.android.views.ODKView;
 import org.odk.collect.android.views.ResizingImageView;
 import org.odk.collect.android.widgets.DateTimeWidget;
+import org.odk.collect.android.widgets.ExternalSelectWidget;
 import org.odk.collect.android.widgets.IntentWidget;
 import org.odk.collect.android.widgets.QuestionWidget;
 import org.odk.collect.android.widgets.TimeWidget;
@@ -551,6 +557,7 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
                     Log.e(t, "Failed to rename " + fi.getAbsolutePath());
                 } else {
                     Log.i(t, "renamed " + fi.getAbsolutePath() + " to " + nf.getAbsolutePath());
+                    CapturedImageProcessor.getInstance().processInBackground(this, nf);
                 }
 
                 // Add the new image to the Media content provider so that the
@@ -604,6 +611,9 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
                 FileUtils.copyFile(source, newImage);
 
                 if (newImage.exists()) {
+                    // only ever shrink our copy, never the user's original
+                    CapturedImageProcessor.getInstance().processInBackground(this, newImage);
+
                     // Add the new image to the Media content provider so that the
                     // viewing is fast in Android 2.0+
                     values = new ContentValues(6);
@@ -724,6 +734,10 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
     			QuestionWidget oldWidget = oldWidgets.get(j);
     			if(oldWidget.getFormId().equals(newWidget.getFormId())){
     				alreadyPresent = true;
+    				if (oldWidget instanceof ExternalSelectWidget) {
+    					// its filters may refer to the answer that just changed
+    					((ExternalSelectWidget) oldWidget).refreshChoices();
+    				}
     				break;
     			}
     		}
@@ -1071,7 +1085,8 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
                 BitmapDrawable bitImage = null;
                 // attempt to load the form-specific logo...
                 // this is arbitrarily silly
-                bitImage = new BitmapDrawable(mediaDir + "/form_logo.png");
+                bitImage =
+                    new BitmapDrawable(SharedMediaStore.resolve(mediaDir + "/form_logo.png"));
 
                 if (bitImage != null && bitImage.getBitmap() != null
                         && bitImage.getIntrinsicHeight() > 0 && bitImage.getIntrinsicWidth() > 0) {
@@ -1955,6 +1970,9 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
         if (mCurrentView != null && currentPromptIsQuestion()) {
             saveAnswersForCurrentScreen(DO_NOT_EVALUATE_CONSTRAINTS);
         }
+        if (mFormController != null && mFormController.getSessionRecorder() != null) {
+            mFormController.getSessionRecorder().flush();
+        }
         super.onPause();
     }
 
@@ -2054,6 +2072,13 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
                 mSaveToDiskTask.cancel(false);
             }
         }
+        if (isFinishing() && mFormController != null) {
+            mFormController.setSessionRecorder(null);
+        }
+        if (isFinishing() && mInstancePath != null) {
+            // an instance that was opened may be packed away again
+            InstanceArchiver.getInstance().release(mInstancePath);
+        }
 
         super.onDestroy();
 
@@ -2087,6 +2112,7 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
         dismissDialog(PROGRESS_DIALOG);
 
         mFormController = fc;
+        startSessionRecording();
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
             // Newer menus may have already built the menu, before all data was ready
             invalidateOptionsMenu();
@@ -2138,6 +2164,28 @@ public class FormEntryActivity extends FragmentActivity implements AnimationList
     }
 
 
+    /**
+     * If enabled in the preferences, logs every FormController operation of this session to
+     * Collect.SESSIONS_PATH so it can be replayed off-device with FormSessionReplayer.
+     */
+    private void startSessionRecording() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        if (!settings.getBoolean(PreferencesActivity.KEY_RECORD_SESSIONS, false)
+                || !FileUtils.createFolder(Collect.SESSIONS_PATH)) {
+            return;
+        }
+        String time =
+            new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(Calendar.getInstance().getTime());
+        String file = mFormPath.substring(mFormPath.lastIndexOf('/') + 1, mFormPath.lastIndexOf('.'));
+        try {
+            mFormController.setSessionRecorder(new FormSessionRecorder(new File(
+                    Collect.SESSIONS_PATH + "/" + file + "_" + time + ".log")));
+        } catch (IOException e) {
+            Log.e(t, "Unable to start session recording: " + e.getMessage());
+        }
+    }
+
+
     /**
      * called by the FormLoaderTask if something goes wrong.
      */
@@ -15,15 +15,18 @@
 package org.odk.collect.android.activities;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.PagedCursorAdapter;
 import org.odk.collect.android.listeners.DiskSyncListener;
+import org.odk.collect.android.provider.FormsProviderAPI;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.tasks.DiskSyncTask;
+import org.odk.collect.android.utilities.ContentBatch;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
-import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.database.Cursor;
 import android.net.Uri;
@@ -34,7 +37,6 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -44,16 +46,21 @@ import android.widget.Toast;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class FormManagerList extends ListActivity implements DiskSyncListener {
+public class FormManagerList extends ListActivity implements DiskSyncListener,
+        PagedCursorAdapter.OnLoadListener {
     private static String t = "FormManagerList";
     private AlertDialog mAlertDialog;
     private Button mDeleteButton;
 
-    private SimpleCursorAdapter mInstances;
+    private PagedCursorAdapter mInstances;
     private ArrayList<Long> mSelected = new ArrayList<Long>();
-    private boolean mRestored = false;
     private final String SELECTED = "selected";
 
+    // only what the list shows
+    private static final String[] PROJECTION = {
+            FormsColumns._ID, FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT
+    };
+
     DiskSyncTask mDiskSyncTask;
     
     private final String syncMsgKey = "syncmsgkey";
@@ -92,8 +99,6 @@ public class FormManagerList extends ListActivity implements DiskSyncListener {
             mDiskSyncTask.setDiskSyncListener(null);
         }
 
-        Cursor c = managedQuery(FormsColumns.CONTENT_URI, null, null, null, null);
-
         String[] data = new String[] {
                 FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT
         };
@@ -103,27 +108,13 @@ public class FormManagerList extends ListActivity implements DiskSyncListener {
 
         // render total instance view
         mInstances =
-            new SimpleCursorAdapter(this, R.layout.two_item_multiple_choice, c, data, view);
+            new PagedCursorAdapter(this, R.layout.two_item_multiple_choice, data, view,
+                FormsColumns.CONTENT_URI, PROJECTION, null, null, null);
+        mInstances.setOnLoadListener(this);
         setListAdapter(mInstances);
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
         getListView().setItemsCanFocus(false);
         mDeleteButton.setEnabled(!(mSelected.size() == 0));
-
-        // if current activity is being reinitialized due to changing orientation
-        // restore all check marks for ones selected
-        if (mRestored) {
-            ListView ls = getListView();
-            for (long id : mSelected) {
-                for (int pos = 0; pos < ls.getCount(); pos++) {
-                    if (id == ls.getItemIdAtPosition(pos)) {
-                        ls.setItemChecked(pos, true);
-                        break;
-                    }
-                }
-
-            }
-            mRestored = false;
-        }
         
         if (savedInstanceState != null && savedInstanceState.containsKey(syncMsgKey)) {
             TextView tv = (TextView) findViewById(R.id.status_text);
@@ -173,13 +164,14 @@ public class FormManagerList extends ListActivity implements DiskSyncListener {
      * Deletes the selected files.First from the database then from the file system
      */
     private void deleteSelectedFiles() {
-        ContentResolver cr = getContentResolver();
-        int deleted = 0;
+        // one transaction, and one refresh of the list, however many are selected
+        ContentBatch deletes = new ContentBatch(FormsProviderAPI.AUTHORITY);
         for (int i = 0; i < mSelected.size(); i++) {
             Uri deleteForm =
                 Uri.withAppendedPath(FormsColumns.CONTENT_URI, mSelected.get(i).toString());
-            deleted += cr.delete(deleteForm, null, null);
+            deletes.delete(deleteForm, null, null);
         }
+        int deleted = deletes.apply(getContentResolver());
 
         if (deleted == mSelected.size()) {
             // all deletes were successful
@@ -196,6 +188,29 @@ public class FormManagerList extends ListActivity implements DiskSyncListener {
     }
 
 
+    /**
+     * Checks the rows that are selected, e.g. from before the screen was rotated, as each page
+     * loads or the list is refreshed.
+     */
+    @Override
+    public void onLoad(PagedCursorAdapter adapter) {
+        HashSet<Long> selected = new HashSet<Long>(mSelected);
+        ListView ls = getListView();
+        for (int pos = 0; pos < ls.getCount(); pos++) {
+            ls.setItemChecked(pos, selected.contains(ls.getItemIdAtPosition(pos)));
+        }
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mInstances != null) {
+            mInstances.close();
+        }
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         super.onListItemClick(l, v, position, id);
@@ -211,7 +226,6 @@ public class FormManagerList extends ListActivity implements DiskSyncListener {
             mSelected.add(k);
 
         mDeleteButton.setEnabled(!(mSelected.size() == 0));
-
     }
 
 
@@ -221,7 +235,6 @@ public class FormManagerList extends ListActivity implements DiskSyncListener {
         long[] selectedArray = savedInstanceState.getLongArray(SELECTED);
         for (int i = 0; i < selectedArray.length; i++)
             mSelected.add(selectedArray[i]);
-        mRestored = true;
         mDeleteButton.setEnabled(selectedArray.length > 0);
     }
 
@@ -20,22 +20,19 @@ import java.util.Set;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.GeoProgressDialog;
 import org.odk.collect.android.utilities.GeoUtils;
-import org.odk.collect.android.listeners.TimerListener;
-import org.odk.collect.android.utilities.ODKTimer;
+import org.odk.collect.android.utilities.LocationSampler;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.location.LocationProvider;
 import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
 
-public class GeoPointActivity extends Activity implements LocationListener, TimerListener {
+public class GeoPointActivity extends Activity implements LocationSampler.Consumer {
     private GeoProgressDialog mLocationDialog;
     private LocationManager mLocationManager;
     private Location mLocation;
@@ -44,7 +41,9 @@ public class GeoPointActivity extends Activity implements LocationListener, Time
     private int acceptableThreshold = 1600;
     private int millisToWait = 60000; //allow to accept location after 60 seconds
 
-	private ODKTimer mTimer;
+    // when any location may be accepted
+    private long mAcceptTime;
+    private LocationSampler.Request mRequest;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -58,22 +57,21 @@ public class GeoPointActivity extends Activity implements LocationListener, Time
         
         setupLocationDialog();
 
-		long mLong = savedInstanceState.getLong("millisRemaining",-1);
-		if(mLong > 0){
-			mTimer = new ODKTimer(mLong, this);
-		}else{
-			mTimer = new ODKTimer(millisToWait, this);
-		}
-		mTimer.start();
-
+        long remaining = -1;
+        if (savedInstanceState != null) {
+            remaining = savedInstanceState.getLong("millisRemaining", -1);
+        }
+        mAcceptTime = System.currentTimeMillis() + (remaining >= 0 ? remaining : millisToWait);
 	}
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        // stops the GPS. Note that this will turn off the GPS if the screen goes to sleep.
-        mLocationManager.removeUpdates(this);
+        // stops the GPS unless something else is waiting for it. Note that this will turn off the
+        // GPS if the screen goes to sleep.
+        LocationSampler.getInstance().cancel(mRequest);
+        mRequest = null;
 
         // We're not using managed dialogs, so we have to dismiss the dialog to prevent it from
         // leaking memory.
@@ -112,11 +110,24 @@ public class GeoPointActivity extends Activity implements LocationListener, Time
             
             GeoUtils.showNoGpsDialog(this, onChangeListener, onCancelListener);
         } else {
-            for (String provider : mProviders) {
-                mLocationManager.requestLocationUpdates(provider, 0, 0, this);            
-            }
             mLocationDialog.show();
+            requestLocation();
+        }
+    }
+
+
+    /**
+     * Asks for a fix, timing out when any location may be accepted. The user asked for the
+     * location now, so the providers are always asked rather than handing back a cached fix.
+     */
+    private void requestLocation() {
+        long remaining = mAcceptTime - System.currentTimeMillis();
+        if (remaining <= 0) {
+            mLocationDialog.setLocationFound(true);
         }
+        mRequest =
+            LocationSampler.getInstance().request(this, GeoUtils.ACCEPTABLE_ACCURACY,
+                remaining > 0 ? remaining : LocationSampler.NO_TIMEOUT, 0);
     }
 
 
@@ -163,8 +174,7 @@ public class GeoPointActivity extends Activity implements LocationListener, Time
     }
 
 
-    @Override
-    public void onLocationChanged(Location location) {
+    public void onLocation(Location location) {
         mLocation = location;
         if (mLocation != null) {
             mLocationDialog.setMessage(getString(R.string.location_provider_accuracy,
@@ -189,42 +199,18 @@ public class GeoPointActivity extends Activity implements LocationListener, Time
     }
 
 
-    @Override
-    public void onProviderDisabled(String provider) {
-
-    }
-
-
-    @Override
-    public void onProviderEnabled(String provider) {
-
-    }
-
-
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {
-        switch (status) {
-            case LocationProvider.AVAILABLE:
-                if (mLocation != null) {
-                    mLocationDialog.setMessage(getString(R.string.location_accuracy,
-                        mLocation.getAccuracy()));
-                }
-                break;
-            case LocationProvider.OUT_OF_SERVICE:
-                break;
-            case LocationProvider.TEMPORARILY_UNAVAILABLE:
-                break;
-        }
+    /**
+     * Any location may be accepted now; keep listening for a better one.
+     */
+    public void onLocationTimeout() {
+        mAcceptTime = System.currentTimeMillis();
+        requestLocation();
     }
 
-	@Override
-	public void notifyTimerFinished() {
-		mLocationDialog.setLocationFound(true);
-	}
-
 	@Override
 	public void onSaveInstanceState(Bundle savedInstanceState) {
-		savedInstanceState.putLong("millisRemaining",mTimer.getMillisUntilFinished());
+		savedInstanceState.putLong("millisRemaining",
+			Math.max(0, mAcceptTime - System.currentTimeMillis()));
 		super.onSaveInstanceState(savedInstanceState);  
 	}
 
@@ -15,6 +15,7 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.PagedCursorAdapter;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
@@ -27,9 +28,11 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
 /**
@@ -43,6 +46,13 @@ public class InstanceChooserList extends ListActivity {
     private static boolean EXIT = true;
     private static boolean DO_NOT_EXIT = false;
     private AlertDialog mAlertDialog;
+    private PagedCursorAdapter mInstances;
+
+    // what the list shows and what opening an instance needs
+    private static final String[] PROJECTION = {
+            InstanceColumns._ID, InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT,
+            InstanceColumns.STATUS, InstanceColumns.CAN_EDIT_WHEN_COMPLETE
+    };
     
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -63,7 +73,6 @@ public class InstanceChooserList extends ListActivity {
         
         String selection = InstanceColumns.STATUS + " is not ?";
         String[] selectionArgs = {InstanceProviderAPI.STATUS_SUBMITTED};
-        Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, selection, selectionArgs, InstanceColumns.STATUS + " desc");
 
         String[] data = new String[] {
                 InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
@@ -73,9 +82,38 @@ public class InstanceChooserList extends ListActivity {
         };
 
         // render total instance view
-        SimpleCursorAdapter instances =
-            new SimpleCursorAdapter(this, R.layout.two_item, c, data, view);
-        setListAdapter(instances);
+        mInstances =
+            new PagedCursorAdapter(this, R.layout.two_item, data, view,
+                InstanceColumns.CONTENT_URI, PROJECTION, selection, selectionArgs,
+                InstanceColumns.STATUS + " desc");
+        setListAdapter(mInstances);
+
+        // the provider's full-text index answers each keystroke, in the background
+        EditText search = (EditText) findViewById(R.id.search_text);
+        search.setVisibility(View.VISIBLE);
+        search.addTextChangedListener(new TextWatcher() {
+            public void afterTextChanged(Editable s) {
+                mInstances.setUri(InstanceColumns.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(InstanceProviderAPI.SEARCH, s.toString()).build());
+            }
+
+
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mInstances != null) {
+            mInstances.close();
+        }
+        super.onDestroy();
     }
     
 
@@ -91,7 +129,6 @@ public class InstanceChooserList extends ListActivity {
     @Override
     protected void onListItemClick(ListView listView, View view, int position, long id) {
         Cursor c = (Cursor) getListAdapter().getItem(position);
-        startManagingCursor(c);
         Uri instanceUri =
             ContentUris.withAppendedId(InstanceColumns.CONTENT_URI,
                 c.getLong(c.getColumnIndex(InstanceColumns._ID)));
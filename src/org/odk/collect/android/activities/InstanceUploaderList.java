@@ -15,6 +15,7 @@
 package org.odk.collect.android.activities;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.adapters.PagedCursorAdapter;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
@@ -32,10 +33,10 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Responsible for displaying all the valid forms in the forms directory. Stores the path to
@@ -45,21 +46,27 @@ import java.util.ArrayList;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
 
-public class InstanceUploaderList extends ListActivity {
+public class InstanceUploaderList extends ListActivity implements
+        PagedCursorAdapter.OnLoadListener {
 
     private static final String BUNDLE_SELECTED_ITEMS_KEY = "selected_items";
     private static final String BUNDLE_TOGGLED_KEY = "toggled";
 
+    // only what the list shows
+    private static final String[] PROJECTION = {
+            InstanceColumns._ID, InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
+    };
+
     private static final int MENU_PREFERENCES = Menu.FIRST;
     private static final int INSTANCE_UPLOADER = 0;
 
     private Button mUploadButton;
     private Button mToggleButton;
 
-    private SimpleCursorAdapter mInstances;
+    private PagedCursorAdapter mInstances;
     private ArrayList<Long> mSelected = new ArrayList<Long>();
-    private boolean mRestored = false;
     private boolean mToggled = false;
+    private boolean mSelectAllOnLoad = false;
 
 
     @Override
@@ -84,6 +91,7 @@ public class InstanceUploaderList extends ListActivity {
                         // items selected
                         uploadSelectedFiles();
                         mToggled = false;
+                        mSelectAllOnLoad = false;
                         mSelected.clear();
                         InstanceUploaderList.this.getListView().clearChoices();
                         mUploadButton.setEnabled(false);
@@ -101,17 +109,15 @@ public class InstanceUploaderList extends ListActivity {
             @Override
             public void onClick(View v) {
                 // toggle selections of items to all or none
-                ListView ls = getListView();
                 mToggled = !mToggled;
                 // remove all items from selected list
                 mSelected.clear();
-                for (int pos = 0; pos < ls.getCount(); pos++) {
-                    ls.setItemChecked(pos, mToggled);
-                    // add all items if mToggled sets to select all
-                    if (mToggled)
-                        mSelected.add(ls.getItemIdAtPosition(pos));
+                // add all items if mToggled sets to select all, once they're all loaded
+                mSelectAllOnLoad = mToggled;
+                if (mToggled && mInstances.hasMore()) {
+                    mInstances.loadAll();
                 }
-                mUploadButton.setEnabled(!(mSelected.size() == 0));
+                onLoad(mInstances);
 
             }
         });
@@ -122,9 +128,6 @@ public class InstanceUploaderList extends ListActivity {
                 InstanceProviderAPI.STATUS_COMPLETE, InstanceProviderAPI.STATUS_SUBMISSION_FAILED
         };
 
-        Cursor c = managedQuery(InstanceColumns.CONTENT_URI, null, selection, selectionArgs, null);
-        startManagingCursor(c);
-
         String[] data = new String[] {
                 InstanceColumns.DISPLAY_NAME, InstanceColumns.DISPLAY_SUBTEXT
         };
@@ -134,7 +137,9 @@ public class InstanceUploaderList extends ListActivity {
 
         // render total instance view
         mInstances =
-            new SimpleCursorAdapter(this, R.layout.two_item_multiple_choice, c, data, view);
+            new PagedCursorAdapter(this, R.layout.two_item_multiple_choice, data, view,
+                InstanceColumns.CONTENT_URI, PROJECTION, selection, selectionArgs, null);
+        mInstances.setOnLoadListener(this);
         setListAdapter(mInstances);
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
         getListView().setItemsCanFocus(false);
@@ -142,22 +147,6 @@ public class InstanceUploaderList extends ListActivity {
 
         // set title
         setTitle(getString(R.string.app_name) + " > " + getString(R.string.send_data));
-
-        // if current activity is being reinitialized due to changing orientation restore all check
-        // marks for ones selected
-        if (mRestored) {
-            ListView ls = getListView();
-            for (long id : mSelected) {
-                for (int pos = 0; pos < ls.getCount(); pos++) {
-                    if (id == ls.getItemIdAtPosition(pos)) {
-                        ls.setItemChecked(pos, true);
-                        break;
-                    }
-                }
-
-            }
-            mRestored = false;
-        }
     }
 
 
@@ -200,6 +189,38 @@ public class InstanceUploaderList extends ListActivity {
     }
 
 
+    /**
+     * Checks the rows that are selected, e.g. from before the screen was rotated, as each page
+     * loads, the list is refreshed or everything is toggled.
+     */
+    @Override
+    public void onLoad(PagedCursorAdapter adapter) {
+        HashSet<Long> selected = new HashSet<Long>(mSelected);
+        ListView ls = getListView();
+        boolean selectAll = mSelectAllOnLoad && !adapter.hasMore();
+        if (selectAll) {
+            mSelectAllOnLoad = false;
+        }
+        for (int pos = 0; pos < ls.getCount(); pos++) {
+            long id = ls.getItemIdAtPosition(pos);
+            if (selectAll && selected.add(id)) {
+                mSelected.add(id);
+            }
+            ls.setItemChecked(pos, selected.contains(id));
+        }
+        mUploadButton.setEnabled(!(mSelected.size() == 0));
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mInstances != null) {
+            mInstances.close();
+        }
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         super.onListItemClick(l, v, position, id);
@@ -226,7 +247,6 @@ public class InstanceUploaderList extends ListActivity {
         for (int i = 0; i < selectedArray.length; i++)
             mSelected.add(selectedArray[i]);
         mToggled = savedInstanceState.getBoolean(BUNDLE_TOGGLED_KEY);
-        mRestored = true;
         mUploadButton.setEnabled(selectedArray.length > 0);
     }
 
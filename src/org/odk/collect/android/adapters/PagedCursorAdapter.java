@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.adapters;
+
+import android.content.AsyncQueryHandler;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.SimpleCursorAdapter;
+
+import java.util.ArrayList;
+
+/**
+ * A SimpleCursorAdapter for the form and instance lists that queries its provider off the UI
+ * thread, a page at a time. The first {@link #PAGE_SIZE} rows are loaded when it's made, and once
+ * the list is scrolled close to the end of what's loaded the next page is queried on its own,
+ * from where the loaded rows end, and shown after them. When the provider reports a change the
+ * loaded rows are queried again, also in the background, instead of the cursor being requeried
+ * on the UI thread.
+ *
+ * Until the first page arrives the adapter is empty. Call {@link #close()} when the list goes
+ * away.
+ */
+public class PagedCursorAdapter extends SimpleCursorAdapter {
+
+    public static final int PAGE_SIZE = 100;
+
+    // the forms and instances providers both take a row limit and an offset as these query
+    // parameters, see FormsProviderAPI.LIMIT and InstanceProviderAPI.LIMIT
+    private static final String LIMIT_PARAMETER = "limit";
+    private static final String OFFSET_PARAMETER = "offset";
+
+    /**
+     * Told, on the UI thread, each time a query's results have been swapped in.
+     */
+    public interface OnLoadListener {
+        void onLoad(PagedCursorAdapter adapter);
+    }
+
+    private final QueryHandler mQueryHandler;
+    private Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+
+    // the cursors making up the loaded rows, in order
+    private ArrayList<Page> mPages = new ArrayList<Page>();
+    private int mLoaded = 0;
+    private boolean mLoadAll = false;
+    private boolean mHasMore = false;
+    private boolean mQuerying = false;
+    // the provider changed while a query was running
+    private boolean mStale = false;
+    // bumped each time the loaded rows are queried from the start, so a query started before
+    // then is dropped when it completes
+    private int mGeneration = 0;
+    private boolean mClosed = false;
+    private OnLoadListener mListener;
+
+    /**
+     * What a query asked for, passed as its cookie.
+     */
+    private static class Query {
+        final int generation;
+        final int offset;
+        // 0 for all the rows
+        final int limit;
+
+
+        Query(int generation, int offset, int limit) {
+            this.generation = generation;
+            this.offset = offset;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * A page of rows. The merged cursor the adapter shows is closed each time a page is added,
+     * so a page only closes its cursor when it's released.
+     */
+    private static class Page extends CursorWrapper {
+        Page(Cursor cursor) {
+            super(cursor);
+        }
+
+
+        @Override
+        public void close() {
+        }
+
+
+        void release() {
+            super.close();
+        }
+    }
+
+    /**
+     * The loaded pages as one cursor. They all watch the same uri, so only the first tells the
+     * adapter of changes.
+     */
+    private static class Pages extends MergeCursor {
+        private final Cursor mFirst;
+
+
+        Pages(Cursor[] pages) {
+            super(pages);
+            mFirst = pages[0];
+        }
+
+
+        @Override
+        public void registerContentObserver(ContentObserver observer) {
+            mFirst.registerContentObserver(observer);
+        }
+
+
+        @Override
+        public void unregisterContentObserver(ContentObserver observer) {
+            mFirst.unregisterContentObserver(observer);
+        }
+    }
+
+    private class QueryHandler extends AsyncQueryHandler {
+        QueryHandler(Context context) {
+            super(context.getContentResolver());
+        }
+
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            Query query = (Query) cookie;
+            if (mClosed || query.generation != mGeneration) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            mQuerying = false;
+            if (cursor == null) {
+                mHasMore = false;
+            } else {
+                mHasMore = query.limit > 0 && cursor.getCount() >= query.limit;
+                ArrayList<Page> released = null;
+                if (query.offset == 0) {
+                    released = mPages;
+                    mPages = new ArrayList<Page>();
+                }
+                mPages.add(new Page(cursor));
+                mLoaded = query.offset + cursor.getCount();
+                changeCursor(new Pages(mPages.toArray(new Cursor[mPages.size()])));
+                if (released != null) {
+                    release(released);
+                }
+            }
+            if (mStale) {
+                refresh();
+            }
+            if (mListener != null) {
+                mListener.onLoad(PagedCursorAdapter.this);
+            }
+        }
+    }
+
+
+    /**
+     * @param projection the columns to load, which must include {@link BaseColumns#_ID} and the
+     *            from columns
+     */
+    public PagedCursorAdapter(Context context, int layout, String[] from, int[] to, Uri uri,
+            String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        super(context, layout, null, from, to);
+        mQueryHandler = new QueryHandler(context);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        // rows with equal keys must stay in the same order from one page to the next
+        mSortOrder = sortOrder == null ? BaseColumns._ID : sortOrder + ", " + BaseColumns._ID;
+        refresh(PAGE_SIZE);
+    }
+
+
+    public void setOnLoadListener(OnLoadListener l) {
+        mListener = l;
+    }
+
+
+    /**
+     * @return true if there are rows past the ones loaded
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+
+    /**
+     * Loads every row instead of a page at a time, e.g. because they're all about to be selected.
+     * A page still loading is dropped.
+     */
+    public void loadAll() {
+        if (!mClosed && !mLoadAll) {
+            mLoadAll = true;
+            refresh(0);
+        }
+    }
+
+
+    /**
+     * Shows the rows at uri instead, e.g. the same list with a search parameter added, starting
+     * again from the first page. The rows already shown stay until the new ones arrive.
+     */
+    public void setUri(Uri uri) {
+        if (mClosed || uri.equals(mUri)) {
+            return;
+        }
+        mUri = uri;
+        mLoadAll = false;
+        refresh(PAGE_SIZE);
+    }
+
+
+    /**
+     * Stops loading and closes the cursor.
+     */
+    public void close() {
+        mClosed = true;
+        mQueryHandler.cancelOperation(0);
+        changeCursor(null);
+        release(mPages);
+        mPages = new ArrayList<Page>();
+    }
+
+
+    private void startQuery(int offset, int limit) {
+        mQuerying = true;
+        Uri uri = mUri;
+        if (limit > 0) {
+            Uri.Builder b =
+                mUri.buildUpon().appendQueryParameter(LIMIT_PARAMETER, String.valueOf(limit));
+            if (offset > 0) {
+                b.appendQueryParameter(OFFSET_PARAMETER, String.valueOf(offset));
+            }
+            uri = b.build();
+        }
+        mQueryHandler.startQuery(0, new Query(mGeneration, offset, limit), uri, mProjection,
+            mSelection, mSelectionArgs, mSortOrder);
+    }
+
+
+    /**
+     * Queries the loaded rows again as one page, superseding any query still running.
+     */
+    private void refresh() {
+        refresh(mLoadAll ? 0 : Math.max(PAGE_SIZE, mLoaded));
+    }
+
+
+    private void refresh(int limit) {
+        mGeneration++;
+        mStale = false;
+        mQueryHandler.cancelOperation(0);
+        startQuery(0, limit);
+    }
+
+
+    private static void release(ArrayList<Page> pages) {
+        for (Page p : pages) {
+            p.release();
+        }
+    }
+
+
+    /**
+     * Queries again in the background rather than requerying the cursor on the UI thread.
+     */
+    @Override
+    protected void onContentChanged() {
+        if (mClosed) {
+            return;
+        }
+        if (mQuerying) {
+            mStale = true;
+        } else {
+            refresh();
+        }
+    }
+
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (mHasMore && !mQuerying && position >= getCount() - PAGE_SIZE / 4) {
+            startQuery(mLoaded, PAGE_SIZE);
+        }
+        return super.getView(position, convertView, parent);
+    }
+}
@@ -24,6 +24,8 @@ import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.SyncBasicHttpContext;
 import org.odk.collect.android.R;
 import org.odk.collect.android.utilities.AgingCredentialsProvider;
+import org.odk.collect.android.utilities.BitmapCache;
+import org.odk.collect.android.utilities.BitmapDecoder;
 
 import android.app.Application;
 import android.content.Context;
@@ -46,6 +48,8 @@ public class Collect extends Application {
 	public static final String METADATA_PATH = ODK_ROOT + "/metadata";
 	public static final String TMPFILE_PATH = CACHE_PATH + "/tmp.jpg";
 	public static final String TMPDRAWFILE_PATH = CACHE_PATH + "/tmpDraw.jpg";
+	public static final String SESSIONS_PATH = ODK_ROOT + "/sessions";
+	public static final String ARCHIVE_PATH = ODK_ROOT + "/.archive";
 
 	public static final String DEFAULT_FONTSIZE = "21";
 
@@ -129,6 +133,27 @@ public class Collect extends Application {
 		PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 		super.onCreate();
 	}
+
+
+	@Override
+	public void onLowMemory() {
+		BitmapCache.getInstance().clear();
+		BitmapDecoder.clearReusable();
+		super.onLowMemory();
+	}
+
+
+	@Override
+	public void onTrimMemory(int level) {
+		if (level >= TRIM_MEMORY_MODERATE) {
+			BitmapCache.getInstance().clear();
+			BitmapDecoder.clearReusable();
+		} else if (level >= TRIM_MEMORY_BACKGROUND) {
+			BitmapCache cache = BitmapCache.getInstance();
+			cache.trimTo(cache.getMaxBytes() / 2);
+		}
+		super.onTrimMemory(level);
+	}
 	
 	/**
 	 * Set application context. While Collect is itself a subclass of Context,
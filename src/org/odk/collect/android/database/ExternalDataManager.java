@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.SharedMediaStore;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Choice lists kept in CSV files in a form's media folder, imported into SQLite so that selects
+ * over them can be queried (and filtered by other answers) without the choices ever being part
+ * of the form definition or held in memory.
+ *
+ * Each CSV is imported once into its own table, named after the MD5 of its contents, with an
+ * index on every column. A replaced CSV gets a new table and the old one is dropped; a CSV in
+ * the shared media store is replaced by a new file instead, and {@link #dropUnused()} drops its
+ * table once no form names it. The first row of the file names the columns.
+ */
+public class ExternalDataManager {
+    private final static String t = "ExternalDataManager";
+
+    private static final String DATABASE_NAME = "externaldata.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String FILES_TABLE = "external_files";
+    private static final String FILES_MD5 = "md5";
+    private static final String FILES_PATH = "path";
+    private static final String FILES_TABLE_NAME = "table_name";
+    private static final String FILES_COLUMNS = "columns";
+
+    private static ExternalDataManager singleton = null;
+
+    private final DatabaseHelper mDbHelper;
+
+    /**
+     * md5 of files already seen this session, by path, length and modification time.
+     */
+    private final HashMap<String, String> mKnownHashes = new HashMap<String, String>();
+
+    /**
+     * An imported CSV.
+     */
+    public static final class ExternalTable {
+        public final String tableName;
+
+        /**
+         * The column names from the CSV header, in file order.
+         */
+        public final String[] headers;
+
+
+        ExternalTable(String tableName, String[] headers) {
+            this.tableName = tableName;
+            this.headers = headers;
+        }
+
+
+        /**
+         * @return the SQL column holding the given CSV column, or null if there isn't one
+         */
+        public String getColumn(String header) {
+            for (int i = 0; i < headers.length; i++) {
+                if (headers[i].equals(header)) {
+                    return columnName(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+
+        DatabaseHelper(String databaseName) {
+            super(Collect.METADATA_PATH, databaseName, null, DATABASE_VERSION);
+        }
+
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + FILES_TABLE + " ("
+                + FILES_MD5 + " text primary key, "
+                + FILES_PATH + " text not null, "
+                + FILES_TABLE_NAME + " text not null, "
+                + FILES_COLUMNS + " text not null );");
+        }
+
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // the imported tables can always be rebuilt from the CSVs
+            Log.w(t, "Upgrading database from version " + oldVersion + " to " + newVersion
+                    + ", which will re-import all external data");
+            Cursor c = db.query(FILES_TABLE, new String[] {
+                FILES_TABLE_NAME
+            }, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    db.execSQL("DROP TABLE IF EXISTS " + c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            db.execSQL("DROP TABLE IF EXISTS " + FILES_TABLE);
+            onCreate(db);
+        }
+    }
+
+
+    public static synchronized ExternalDataManager getInstance() {
+        if (singleton == null) {
+            singleton = new ExternalDataManager();
+        }
+        return singleton;
+    }
+
+
+    private ExternalDataManager() {
+        mDbHelper = new DatabaseHelper(DATABASE_NAME);
+    }
+
+
+    /**
+     * Imports every CSV in a form's media folder that isn't imported yet. Meant to be called from
+     * a background task (e.g. while the form loads) so that widgets never import on the UI thread.
+     */
+    public void importAll(File mediaDir) {
+        File[] files = SharedMediaStore.listFiles(mediaDir);
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isFile() && f.getName().toLowerCase().endsWith(".csv")) {
+                getTable(f);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the table holding the given CSV, importing it first if needed.
+     *
+     * @return the table, or null if the file could not be read
+     */
+    public synchronized ExternalTable getTable(File csv) {
+        if (!csv.exists()) {
+            Log.e(t, "External data file " + csv.getAbsolutePath() + " does not exist");
+            return null;
+        }
+        String key = csv.getAbsolutePath() + "|" + csv.length() + "|" + csv.lastModified();
+        String md5 = mKnownHashes.get(key);
+        if (md5 == null) {
+            md5 = FileUtils.getMd5Hash(csv);
+            if (md5 == null) {
+                return null;
+            }
+            mKnownHashes.put(key, md5);
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        Cursor c = db.query(FILES_TABLE, new String[] {
+                FILES_TABLE_NAME, FILES_COLUMNS
+        }, FILES_MD5 + "=?", new String[] {
+            md5
+        }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                return new ExternalTable(c.getString(0), c.getString(1).split("\t", -1));
+            }
+        } finally {
+            c.close();
+        }
+
+        try {
+            return importCsv(db, csv, md5);
+        } catch (IOException e) {
+            Log.e(t, "Unable to import " + csv.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Drops the tables of shared CSVs whose MD5 no form's media index names any more (e.g. the form
+     * was updated with a new version of the file, or deleted), and of other CSVs that are gone.
+     * Must not be called on the UI thread.
+     */
+    public synchronized void dropUnused() {
+        HashSet<String> used = new HashSet<String>();
+        for (String name : SharedMediaStore.getUsedFiles()) {
+            int dot = name.indexOf('.');
+            used.add((dot == -1 ? name : name.substring(0, dot)).toLowerCase());
+        }
+        String store = new File(SharedMediaStore.STORE_PATH).getAbsolutePath() + File.separator;
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int dropped = 0;
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(FILES_TABLE, new String[] {
+                    FILES_MD5, FILES_PATH, FILES_TABLE_NAME
+            }, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    String path = c.getString(1);
+                    boolean unused =
+                        path.startsWith(store) ? !used.contains(c.getString(0).toLowerCase())
+                                : !new File(path).exists();
+                    if (unused) {
+                        db.execSQL("DROP TABLE IF EXISTS " + c.getString(2));
+                        db.delete(FILES_TABLE, FILES_MD5 + "=?", new String[] {
+                            c.getString(0)
+                        });
+                        dropped++;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (dropped > 0) {
+            Log.i(t, "Dropped " + dropped + " external data tables no form uses");
+        }
+    }
+
+
+    /**
+     * Queries an imported CSV.
+     *
+     * @param columns the CSV columns to return
+     * @param filters CSV column to required value; rows must match all of them. May be null.
+     * @return the matching rows in file order, or null if a column doesn't exist
+     */
+    public Cursor query(ExternalTable table, String[] columns, Map<String, String> filters) {
+        String[] projection = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            projection[i] = table.getColumn(columns[i]);
+            if (projection[i] == null) {
+                Log.e(t, "No column " + columns[i] + " in " + table.tableName);
+                return null;
+            }
+        }
+
+        StringBuilder selection = new StringBuilder();
+        String[] selectionArgs = null;
+        if (filters != null && !filters.isEmpty()) {
+            selectionArgs = new String[filters.size()];
+            int i = 0;
+            for (Map.Entry<String, String> e : filters.entrySet()) {
+                String column = table.getColumn(e.getKey());
+                if (column == null) {
+                    Log.e(t, "No column " + e.getKey() + " in " + table.tableName);
+                    return null;
+                }
+                if (i > 0) {
+                    selection.append(" AND ");
+                }
+                selection.append(column).append("=?");
+                selectionArgs[i++] = e.getValue() == null ? "" : e.getValue();
+            }
+        }
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return db.query(table.tableName, projection, selectionArgs == null ? null : selection
+                .toString(), selectionArgs, null, null, "_id");
+    }
+
+
+    private ExternalTable importCsv(SQLiteDatabase db, File csv, String md5) throws IOException {
+        long start = System.currentTimeMillis();
+        String tableName = "csv_" + md5;
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+        db.beginTransaction();
+        try {
+            String[] headers = readRecord(reader);
+            if (headers == null || headers.length == 0) {
+                throw new IOException("No header row");
+            }
+            if (headers[0].length() > 0 && headers[0].charAt(0) == '\uFEFF') {
+                // byte order mark left by spreadsheet exports
+                headers[0] = headers[0].substring(1);
+            }
+
+            db.execSQL("DROP TABLE IF EXISTS " + tableName);
+            StringBuilder create = new StringBuilder("CREATE TABLE " + tableName
+                    + " (_id integer primary key");
+            StringBuilder insert = new StringBuilder("INSERT INTO " + tableName + " VALUES (null");
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = headers[i].trim();
+                create.append(", ").append(columnName(i)).append(" text");
+                insert.append(", ?");
+            }
+            db.execSQL(create.append(");").toString());
+
+            SQLiteStatement statement = db.compileStatement(insert.append(")").toString());
+            int rows = 0;
+            try {
+                String[] record;
+                while ((record = readRecord(reader)) != null) {
+                    if (record.length == 1 && record[0].length() == 0) {
+                        // blank line
+                        continue;
+                    }
+                    for (int i = 0; i < headers.length; i++) {
+                        statement.bindString(i + 1, i < record.length ? record[i] : "");
+                    }
+                    statement.executeInsert();
+                    rows++;
+                }
+            } finally {
+                statement.close();
+            }
+
+            // indexes are cheaper to build once the rows are in
+            for (int i = 0; i < headers.length; i++) {
+                db.execSQL("CREATE INDEX " + tableName + "_" + i + " ON " + tableName + " ("
+                        + columnName(i) + ");");
+            }
+
+            // a replaced file leaves its previous import behind
+            Cursor c = db.query(FILES_TABLE, new String[] {
+                FILES_TABLE_NAME
+            }, FILES_PATH + "=?", new String[] {
+                csv.getAbsolutePath()
+            }, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    db.execSQL("DROP TABLE IF EXISTS " + c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            db.delete(FILES_TABLE, FILES_PATH + "=?", new String[] {
+                csv.getAbsolutePath()
+            });
+
+            StringBuilder columns = new StringBuilder();
+            for (int i = 0; i < headers.length; i++) {
+                if (i > 0) {
+                    columns.append('\t');
+                }
+                columns.append(headers[i]);
+            }
+            SQLiteStatement register =
+                db.compileStatement("INSERT OR REPLACE INTO " + FILES_TABLE + " (" + FILES_MD5
+                        + ", " + FILES_PATH + ", " + FILES_TABLE_NAME + ", " + FILES_COLUMNS
+                        + ") VALUES (?, ?, ?, ?)");
+            try {
+                register.bindString(1, md5);
+                register.bindString(2, csv.getAbsolutePath());
+                register.bindString(3, tableName);
+                register.bindString(4, columns.toString());
+                register.executeInsert();
+            } finally {
+                register.close();
+            }
+
+            db.setTransactionSuccessful();
+            Log.i(t, "Imported " + rows + " rows from " + csv.getName() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return new ExternalTable(tableName, headers);
+        } finally {
+            db.endTransaction();
+            reader.close();
+        }
+    }
+
+
+    private static String columnName(int i) {
+        return "c" + i;
+    }
+
+
+    /**
+     * Reads one CSV record, honouring quoted fields (which may contain commas, doubled quotes and
+     * line breaks).
+     *
+     * @return the fields, or null at the end of the file
+     */
+    static String[] readRecord(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            for (int i = 0; i < line.length(); i++) {
+                char ch = line.charAt(i);
+                if (quoted) {
+                    if (ch == '"') {
+                        if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                            field.append('"');
+                            i++;
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        field.append(ch);
+                    }
+                } else if (ch == '"') {
+                    quoted = true;
+                } else if (ch == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(ch);
+                }
+            }
+            if (!quoted) {
+                break;
+            }
+            // the quoted field continues on the next line
+            line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            field.append('\n');
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+}
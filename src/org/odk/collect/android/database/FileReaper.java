@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.odk.collect.android.listeners.FileReaperListener;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Deletes the files of forms and instances after their rows are gone. The providers delete a row
+ * and record a tombstone for each of its files and folders in the same transaction, so the row
+ * disappears at once however much is on disk; the reaper then removes the tombstoned paths in
+ * batches on a background thread. Tombstones live in the providers' own databases, so deletions
+ * interrupted by the process dying are finished the next time the provider starts.
+ *
+ * A path that a live row has come to use again (a form downloaded anew into the same cache file,
+ * say) is left alone and its tombstone dropped. Code that looks for files on disk which aren't in
+ * a provider (e.g. the disk sync) should call {@link #waitForPending()} first.
+ */
+public class FileReaper {
+    private final static String t = "FileReaper";
+
+    public static final String TABLE_NAME = "deleted_files";
+    private static final String ID = "_id";
+    private static final String PATH = "path";
+    // the column of the provider's table that would refer to the path if it were still in use
+    private static final String REFERENCED_BY = "referencedBy";
+
+    private static final int BATCH_SIZE = 50;
+
+    private static FileReaper singleton = null;
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    private final ArrayList<Store> mStores = new ArrayList<Store>();
+    private final ArrayList<FileReaperListener> mListeners = new ArrayList<FileReaperListener>();
+    private int mPending = 0;
+    private boolean mQueued = false;
+    private int mRemaining = 0;
+
+    private static class Store {
+        final ODKSQLiteOpenHelper helper;
+        final String table;
+
+
+        Store(ODKSQLiteOpenHelper helper, String table) {
+            this.helper = helper;
+            this.table = table;
+        }
+    }
+
+
+    public static synchronized FileReaper getInstance() {
+        if (singleton == null) {
+            singleton = new FileReaper();
+        }
+        return singleton;
+    }
+
+
+    private FileReaper() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, t);
+            }
+        });
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    /**
+     * Creates the tombstone table. Called by the providers' database helpers.
+     */
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + ID
+                + " integer primary key, " + PATH + " text not null, " + REFERENCED_BY
+                + " text not null);");
+    }
+
+
+    /**
+     * Records that path, a file or folder, is to be deleted. Meant to be called in the transaction
+     * deleting the row it belonged to.
+     *
+     * @param referencedBy the column of the provider's table that holds path, or a file in it,
+     *            while the path is in use
+     */
+    public static void tombstone(SQLiteDatabase db, String path, String referencedBy) {
+        if (path == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(PATH, path);
+        values.put(REFERENCED_BY, referencedBy);
+        db.insert(TABLE_NAME, null, values);
+    }
+
+
+    /**
+     * Adds a provider's database to those reaped, and reaps whatever it has left over.
+     *
+     * @param table the provider's table, for checking that paths are no longer used
+     */
+    public void attach(ODKSQLiteOpenHelper helper, String table) {
+        synchronized (this) {
+            mStores.add(new Store(helper, table));
+        }
+        wake();
+    }
+
+
+    /**
+     * Reaps, in the background, the tombstones committed so far.
+     */
+    public void wake() {
+        synchronized (this) {
+            if (mQueued) {
+                // the pass that's waiting to start will see them
+                return;
+            }
+            mQueued = true;
+            mPending++;
+        }
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Store[] stores;
+                synchronized (FileReaper.this) {
+                    mQueued = false;
+                    stores = mStores.toArray(new Store[mStores.size()]);
+                }
+                try {
+                    reap(stores);
+                } finally {
+                    synchronized (FileReaper.this) {
+                        mPending--;
+                        FileReaper.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Blocks until every committed tombstone has been reaped. Must not be called on the UI thread.
+     */
+    public synchronized void waitForPending() {
+        while (mPending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Registers l for progress reports, made on the UI thread. Must be called on the UI thread.
+     *
+     * @return the number of paths still to be reaped when the last report was made
+     */
+    public int addListener(FileReaperListener l) {
+        mListeners.add(l);
+        synchronized (this) {
+            return mRemaining;
+        }
+    }
+
+
+    public void removeListener(FileReaperListener l) {
+        mListeners.remove(l);
+    }
+
+
+    private void reap(Store[] stores) {
+        int reaped = 0;
+        for (Store s : stores) {
+            SQLiteDatabase db;
+            try {
+                db = s.helper.getWritableDatabase();
+            } catch (SQLiteException e) {
+                // e.g. the card isn't mounted; the next start picks the tombstones up
+                Log.e(t, "Unable to open database for " + s.table + ": " + e.getMessage());
+                continue;
+            }
+
+            while (true) {
+                long last = -1;
+                Cursor c = db.query(TABLE_NAME, new String[] {
+                        ID, PATH, REFERENCED_BY
+                }, null, null, null, null, ID, String.valueOf(BATCH_SIZE));
+                try {
+                    while (c.moveToNext()) {
+                        String path = c.getString(1);
+                        if (isReferenced(db, s.table, c.getString(2), path)) {
+                            Log.i(t, "Keeping " + path + ", it's in use again");
+                        } else {
+                            delete(new File(path));
+                        }
+                        last = c.getLong(0);
+                        reaped++;
+                    }
+                } finally {
+                    c.close();
+                }
+                if (last == -1) {
+                    break;
+                }
+                // the files go first, so that a pass cut short repeats them rather than skips them
+                db.delete(TABLE_NAME, ID + "<=?", new String[] {
+                    String.valueOf(last)
+                });
+                report(reaped, countRemaining(stores));
+            }
+        }
+        if (reaped > 0) {
+            Log.i(t, "Removed " + reaped + " deleted files and folders");
+            report(reaped, countRemaining(stores));
+        }
+    }
+
+
+    private static boolean isReferenced(SQLiteDatabase db, String table, String column,
+            String path) {
+        // the path itself, or anything inside it
+        Cursor c =
+            db.rawQuery("SELECT COUNT(*) FROM " + table + " WHERE " + column + "=? OR substr("
+                    + column + ", 1, " + (path.length() + 1) + ")=?", new String[] {
+                    path, path + File.separator
+            });
+        try {
+            return c.moveToFirst() && c.getInt(0) > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+
+    private static int countRemaining(Store[] stores) {
+        int remaining = 0;
+        for (Store s : stores) {
+            try {
+                Cursor c =
+                    s.helper.getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE_NAME,
+                        null);
+                try {
+                    if (c.moveToFirst()) {
+                        remaining += c.getInt(0);
+                    }
+                } finally {
+                    c.close();
+                }
+            } catch (SQLiteException e) {
+                // not open, reported by reap()
+            }
+        }
+        return remaining;
+    }
+
+
+    private void report(final int reaped, final int remaining) {
+        synchronized (this) {
+            mRemaining = remaining;
+        }
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (FileReaperListener l : new ArrayList<FileReaperListener>(mListeners)) {
+                    l.reaperProgress(reaped, remaining);
+                }
+            }
+        });
+    }
+
+
+    private static void delete(File f) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    delete(child);
+                }
+            }
+        }
+        if (f.exists() && !f.delete()) {
+            Log.w(t, "Unable to delete " + f.getAbsolutePath());
+        }
+    }
+}
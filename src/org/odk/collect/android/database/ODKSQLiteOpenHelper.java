@@ -14,9 +14,16 @@
 
 package org.odk.collect.android.database;
 
+import java.io.File;
+
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.annotation.TargetApi;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.os.Environment;
 import android.util.Log;
 
 
@@ -26,6 +33,11 @@ import android.util.Log;
  * database so there may be issues if a thread opens the database read-only and another thread tries
  * to open the database read/write. I don't think this will ever happen in ODK, though. (fingers
  * crossed).
+ *
+ * On Android 3.0 and up, databases on disk are switched to write-ahead logging. SQLiteDatabase then
+ * keeps a small pool of connections, so queries made outside a transaction run alongside a writer
+ * (a disk sync, a burst of upload statuses) and see the last committed state instead of waiting
+ * for it to finish. Older devices keep the rollback journal and a single connection.
  */
 
 /**
@@ -41,10 +53,20 @@ import android.util.Log;
 public abstract class ODKSQLiteOpenHelper {
     private static final String t = ODKSQLiteOpenHelper.class.getSimpleName();
 
+    // pages of cache per connection, enough to keep the metadata tables and their indexes in
+    // memory between queries
+    private static final int CACHE_SIZE = 1000;
+
+    // files SQLite may keep next to a database, which belong with it when it moves
+    private static final String[] COMPANION_SUFFIXES = {
+            "-journal", "-wal"
+    };
+
     private final String mPath;
     private final String mName;
     private final CursorFactory mFactory;
     private final int mNewVersion;
+    private final String mLegacyPath;
 
     private SQLiteDatabase mDatabase = null;
     private boolean mIsInitializing = false;
@@ -62,6 +84,18 @@ public abstract class ODKSQLiteOpenHelper {
      *            {@link #onUpgrade} will be used to upgrade the database
      */
     public ODKSQLiteOpenHelper(String path, String name, CursorFactory factory, int version) {
+        this(path, name, factory, version, null);
+    }
+
+
+    /**
+     * As {@link #ODKSQLiteOpenHelper(String, String, CursorFactory, int)}, for a database that
+     * used to be kept in legacyPath (or may be again, if where it's kept is the user's choice). If
+     * path doesn't have the database yet, the one in legacyPath is moved there the first time it's
+     * opened.
+     */
+    public ODKSQLiteOpenHelper(String path, String name, CursorFactory factory, int version,
+            String legacyPath) {
         if (version < 1)
             throw new IllegalArgumentException("Version must be >= 1, was " + version);
 
@@ -69,6 +103,7 @@ public abstract class ODKSQLiteOpenHelper {
         mName = name;
         mFactory = factory;
         mNewVersion = version;
+        mLegacyPath = legacyPath;
     }
 
 
@@ -107,6 +142,9 @@ public abstract class ODKSQLiteOpenHelper {
             if (mName == null) {
                 db = SQLiteDatabase.create(null);
             } else {
+                if (mLegacyPath != null) {
+                    migrateFromLegacyPath();
+                }
                 db = SQLiteDatabase.openOrCreateDatabase(mPath + "/" + mName, mFactory);
                 // db = mContext.openOrCreateDatabase(mName, 0, mFactory);
             }
@@ -127,6 +165,9 @@ public abstract class ODKSQLiteOpenHelper {
                 }
             }
 
+            if (mName != null) {
+                configure(db);
+            }
             onOpen(db);
             success = true;
             return db;
@@ -202,6 +243,110 @@ public abstract class ODKSQLiteOpenHelper {
     }
 
 
+    /**
+     * Copies the database and its journal from the legacy path, if it's there and we don't have
+     * one yet, then renames the originals out of the way so that they're never picked up again.
+     * The copy is made under a temporary name, so an interrupted migration starts over.
+     *
+     * @throws SQLiteException if the database should be migrated but can't be
+     */
+    private void migrateFromLegacyPath() {
+        File dir = new File(mPath);
+        File db = new File(dir, mName);
+        if (db.exists()) {
+            return;
+        }
+        File legacy = new File(mLegacyPath, mName);
+        if (!legacy.exists()) {
+            String state = Environment.getExternalStorageState();
+            if (!Environment.MEDIA_MOUNTED.equals(state)
+                    && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+                // the old database may be on the card; starting an empty one would hide it for good
+                throw new SQLiteException("Can't look for " + legacy.getAbsolutePath()
+                        + ", external storage is " + state);
+            }
+            return;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new SQLiteException("Can't create " + dir.getAbsolutePath());
+        }
+
+        long start = System.currentTimeMillis();
+        for (String suffix : COMPANION_SUFFIXES) {
+            File companion = new File(mLegacyPath, mName + suffix);
+            File target = new File(dir, mName + suffix);
+            target.delete();
+            if (companion.exists()) {
+                copyVerified(companion, target);
+            }
+        }
+        File tmp = new File(dir, mName + ".tmp");
+        copyVerified(legacy, tmp);
+        if (!tmp.renameTo(db)) {
+            tmp.delete();
+            throw new SQLiteException("Can't rename " + tmp.getAbsolutePath());
+        }
+
+        for (String suffix : COMPANION_SUFFIXES) {
+            File companion = new File(mLegacyPath, mName + suffix);
+            if (companion.exists()) {
+                retire(companion);
+            }
+        }
+        retire(legacy);
+        Log.i(t, "Moved " + legacy.getAbsolutePath() + " to " + db.getAbsolutePath() + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+
+    /**
+     * Renames f to *.migrated, replacing one left by an earlier move, which not every file system
+     * does on its own.
+     */
+    private static void retire(File f) {
+        File retired = new File(f.getParentFile(), f.getName() + ".migrated");
+        retired.delete();
+        f.renameTo(retired);
+    }
+
+
+    private static void copyVerified(File from, File to) {
+        FileUtils.copyFile(from, to);
+        if (to.length() != from.length()) {
+            to.delete();
+            throw new SQLiteException("Can't copy " + from.getAbsolutePath() + " to "
+                    + to.getAbsolutePath());
+        }
+    }
+
+
+    /**
+     * Applies the journal, cache and sync settings to a newly opened read/write database. Must be
+     * called outside a transaction, as the journal mode can't change inside one.
+     */
+    private void configure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA cache_size = " + CACHE_SIZE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && enableWriteAheadLogging(db)) {
+            // with a write-ahead log a crash can only lose the last commits, never corrupt the
+            // file, so syncing at checkpoints instead of every commit is safe
+            db.execSQL("PRAGMA synchronous = NORMAL");
+            Log.i(t, "Opened " + mName + " with write-ahead logging");
+        }
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean enableWriteAheadLogging(SQLiteDatabase db) {
+        try {
+            return db.enableWriteAheadLogging();
+        } catch (SQLiteException e) {
+            // e.g. a file system that can't hold the shared memory index; the journal still works
+            Log.w(t, "Unable to enable write-ahead logging: " + e.getMessage());
+            return false;
+        }
+    }
+
+
     /**
      * Close any open database object.
      */
@@ -8,8 +8,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.javarosa.core.model.Action;
 import org.javarosa.core.model.FormDef;
@@ -24,42 +22,24 @@ import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.utilities.GeoUtils;
+import org.odk.collect.android.utilities.LocationSampler;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 
-public class PollSensorAction extends Action implements LocationListener {
+public class PollSensorAction extends Action implements LocationSampler.Consumer {
 	private static String name = "pollsensor";
 	private TreeReference target;
 	
-	private LocationManager mLocationManager;
 	private FormDef mModel;
 	private TreeReference mContextRef;
+	private LocationSampler.Request mRequest;
 
-	private class ProvidersChangedHandler extends BroadcastReceiver {
-		@Override
-		public void onReceive(Context context, Intent intent) {
-			Set<String> providers = GeoUtils.evaluateProviders(mLocationManager);
-			requestLocationUpdates(providers);
-		}
-	}
-	
-	private class StopPollingTask extends TimerTask {
-		@Override
-		public void run() {
-			mLocationManager.removeUpdates(PollSensorAction.this);
-		}
-	}
-	
 	public PollSensorAction() {
 		super(name);
 	}
@@ -70,7 +50,7 @@ public class PollSensorAction extends Action implements LocationListener {
 	}
 	
 	/**
-	 * Deal with a pollsensor action: start getting a GPS fix, and prepare to cancel after maximum amount of time.
+	 * Deal with a pollsensor action: ask the shared LocationSampler for a GPS fix, giving up after maximum amount of time.
 	 * @param model The FormDef that triggered the action
 	 * @param contextRef
 	 */
@@ -83,13 +63,10 @@ public class PollSensorAction extends Action implements LocationListener {
 			public void run() {
 				// Start requesting GPS updates
 				Context context = Collect.getStaticApplicationContext();
-				mLocationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-				Set<String> providers = GeoUtils.evaluateProviders(mLocationManager);
+				LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+				Set<String> providers = GeoUtils.evaluateProviders(locationManager);
 				if (providers.isEmpty()) {
-					context.registerReceiver(
-						new ProvidersChangedHandler(), 
-						new IntentFilter(LocationManager.PROVIDERS_CHANGED_ACTION)
-					);
+					// the sampler picks the providers up as soon as they are turned on
 					DialogInterface.OnClickListener onChangeListener = new DialogInterface.OnClickListener() {
 						public void onClick(DialogInterface dialog, int i) {
 							if (i == DialogInterface.BUTTON_POSITIVE) {
@@ -100,30 +77,14 @@ public class PollSensorAction extends Action implements LocationListener {
 					};
 					GeoUtils.showNoGpsDialog(context, onChangeListener);
 				}
-				requestLocationUpdates(providers);
+				// a repeated trigger replaces the earlier request rather than adding a second one
+				LocationSampler sampler = LocationSampler.getInstance();
+				sampler.cancel(mRequest);
+				mRequest = sampler.request(PollSensorAction.this, GeoUtils.ACCEPTABLE_ACCURACY, GeoUtils.MAXIMUM_WAIT, GeoUtils.MAXIMUM_FIX_AGE);
 			}
 		});
 	}
 	
-	/**
-	 * Start polling for location, based on whatever providers are given, and set up a timeout after MAXIMUM_WAIT is exceeded.
-	 * @param providers Set of String objects that may contain LocationManager.GPS_PROVDER and/or LocationManager.NETWORK_PROVIDER
-	 */
-	private void requestLocationUpdates(Set<String> providers) {
-		if (providers.isEmpty()) {
-			mLocationManager.removeUpdates(PollSensorAction.this);
-			return;
-		}
-		
-		for (String provider : providers) {
-			mLocationManager.requestLocationUpdates(provider, 0, 0, PollSensorAction.this);
-		}
-
-		// Cancel polling after maximum time is exceeded
-		Timer timeout = new Timer();
-		timeout.schedule(new StopPollingTask(), GeoUtils.MAXIMUM_WAIT);
-	}
-	
 	public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
 		super.readExternal(in, pf);
 		target = (TreeReference)ExtUtil.read(in, TreeReference.class, pf);
@@ -138,8 +99,7 @@ public class PollSensorAction extends Action implements LocationListener {
 	 * If this action has a target node, update its value with the given location.
 	 * @param location
 	 */
-	@Override
-	public void onLocationChanged(Location location) {
+	public void onLocation(Location location) {
 		if (location != null) {
 			if (target != null) {
 				String result = GeoUtils.locationToString(location);
@@ -151,19 +111,11 @@ public class PollSensorAction extends Action implements LocationListener {
 				IAnswerData val = Recalculate.wrapData(result, dataType);
 				mModel.setValue(val == null ? null: AnswerDataFactory.templateByDataType(dataType).cast(val.uncast()), qualifiedReference);
 			}
-			
-			if (location.getAccuracy() <= GeoUtils.ACCEPTABLE_ACCURACY) {
-				mLocationManager.removeUpdates(this);
-			}
 		}
 	}
 
-	@Override
-	public void onProviderDisabled(String provider) { }
-
-	@Override
-	public void onProviderEnabled(String provider) { }
-
-	@Override
-	public void onStatusChanged(String provider, int status, Bundle extras) { }
+	/**
+	 * Nothing to do when MAXIMUM_WAIT is exceeded: the last location written stays.
+	 */
+	public void onLocationTimeout() { }
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.listeners;
+
+/**
+ * Told, on the UI thread, how the {@link org.odk.collect.android.database.FileReaper} is
+ * getting on.
+ */
+public interface FileReaperListener {
+    /**
+     * @param reaped files and folders removed so far in this pass
+     * @param remaining files and folders still waiting, 0 once the pass is done
+     */
+    void reaperProgress(int reaped, int remaining);
+}
@@ -1,5 +0,0 @@
-package org.odk.collect.android.listeners;
-
-public interface TimerListener {
-	abstract void notifyTimerFinished();
-}
@@ -5,6 +5,8 @@
 package org.odk.collect.android.logic;
 
 import org.javarosa.core.reference.Reference;
+import org.odk.collect.android.utilities.ReferenceResolver;
+import org.odk.collect.android.utilities.SharedMediaStore;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -34,13 +36,13 @@ public class FileReference implements Reference {
 
     @Override
     public boolean doesBinaryExist() {
-        return new File(getInternalURI()).exists();
+        return ReferenceResolver.exists(getLocalURI());
     }
 
 
     @Override
     public InputStream getStream() throws IOException {
-        return new FileInputStream(getInternalURI());
+        return new FileInputStream(getLocalURI());
     }
 
 
@@ -58,7 +60,9 @@ public class FileReference implements Reference {
 
     @Override
     public OutputStream getOutputStream() throws IOException {
-        return new FileOutputStream(getInternalURI());
+        OutputStream os = new FileOutputStream(getInternalURI());
+        invalidate();
+        return os;
     }
 
 
@@ -66,12 +70,24 @@ public class FileReference implements Reference {
     public void remove() {
         // TODO bad practice to ignore return values
         new File(getInternalURI()).delete();
+        invalidate();
+    }
+
+
+    /**
+     * Forgets whether the file exists, under both the path written to and the path
+     * {@link #doesBinaryExist()} checks, which differ while it resolves to the shared store.
+     */
+    private void invalidate() {
+        ReferenceResolver.invalidate(getInternalURI());
+        ReferenceResolver.invalidate(getLocalURI());
     }
 
 
     @Override
     public String getLocalURI() {
-        return getInternalURI();
+        // downloaded form media is kept in the shared store, see SharedMediaStore
+        return SharedMediaStore.resolve(getInternalURI());
     }
 
 
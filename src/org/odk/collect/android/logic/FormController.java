@@ -56,6 +56,8 @@ public class FormController {
     
     private boolean mReadOnly;
 
+    private FormSessionRecorder mRecorder;
+
     public static final boolean STEP_INTO_GROUP = true;
     public static final boolean STEP_OVER_GROUP = false;
 
@@ -93,6 +95,28 @@ public class FormController {
     
 
 
+    /**
+     * Starts (or with null, stops) logging navigation and answer operations performed through
+     * this controller. See {@link FormSessionRecorder}.
+     * 
+     * @param recorder
+     */
+    public void setSessionRecorder(FormSessionRecorder recorder) {
+        if (mRecorder != null && mRecorder != recorder) {
+            mRecorder.close();
+        }
+        mRecorder = recorder;
+        if (mRecorder != null) {
+            mRecorder.record(0, FormSessionRecorder.OP_FORM, getFormTitle(), getLanguage());
+        }
+    }
+
+
+    public FormSessionRecorder getSessionRecorder() {
+        return mRecorder;
+    }
+
+
     /**
      * returns the event for the current FormIndex.
      * 
@@ -281,7 +305,10 @@ public class FormController {
      * @return
      */
     public int answerQuestion(IAnswerData data) {
-        return mFormEntryController.answerQuestion(data);
+        if (mRecorder == null) {
+            return mFormEntryController.answerQuestion(data);
+        }
+        return answerQuestion(getFormIndex(), data);
     }
 
 
@@ -293,7 +320,14 @@ public class FormController {
      * @return
      */
     public int answerQuestion(FormIndex index, IAnswerData data) {
-        return mFormEntryController.answerQuestion(index, data);
+        if (mRecorder == null) {
+            return mFormEntryController.answerQuestion(index, data);
+        }
+        long start = System.nanoTime();
+        int result = mFormEntryController.answerQuestion(index, data);
+        mRecorder.recordAnswer(System.nanoTime() - start, FormSessionRecorder.OP_ANSWER, index,
+            getQuestionPrompt(index).getDataType(), data, result);
+        return result;
     }
 
 
@@ -307,7 +341,14 @@ public class FormController {
      * @return true if saved successfully, false otherwise.
      */
     public boolean saveAnswer(FormIndex index, IAnswerData data) {
-        return mFormEntryController.saveAnswer(index, data);
+        if (mRecorder == null) {
+            return mFormEntryController.saveAnswer(index, data);
+        }
+        long start = System.nanoTime();
+        boolean result = mFormEntryController.saveAnswer(index, data);
+        mRecorder.recordAnswer(System.nanoTime() - start, FormSessionRecorder.OP_SAVE, index,
+            getQuestionPrompt(index).getDataType(), data, result ? 1 : 0);
+        return result;
     }
 
 
@@ -321,7 +362,10 @@ public class FormController {
      * @return true if saved successfully, false otherwise.
      */
     public boolean saveAnswer(IAnswerData data) {
-        return mFormEntryController.saveAnswer(data);
+        if (mRecorder == null) {
+            return mFormEntryController.saveAnswer(data);
+        }
+        return saveAnswer(getFormIndex(), data);
     }
 
 
@@ -331,13 +375,25 @@ public class FormController {
      * @return the next event that should be handled by a view.
      */
     public int stepToNextEvent(boolean stepOverGroup) {
+        if (mRecorder == null) {
+            return stepToNextEventInternal(stepOverGroup);
+        }
+        long start = System.nanoTime();
+        int event = stepToNextEventInternal(stepOverGroup);
+        mRecorder.record(System.nanoTime() - start, FormSessionRecorder.OP_STEP_NEXT,
+            String.valueOf(stepOverGroup), String.valueOf(event));
+        return event;
+    }
+
+
+    private int stepToNextEventInternal(boolean stepOverGroup) {
         if (mFormEntryController.getModel().getEvent() == FormEntryController.EVENT_GROUP && indexIsInFieldList() && stepOverGroup) {
             return stepOverGroup();
         } else {
             int event =  mFormEntryController.stepToNextEvent();
             if(event == FormEntryController.EVENT_PROMPT_NEW_REPEAT &&
             		this.mReadOnly) {
-            	return stepToNextEvent(stepOverGroup);
+            	return stepToNextEventInternal(stepOverGroup);
             }
             return event;
         }
@@ -366,7 +422,7 @@ public class FormController {
 
         // jump to the end of the group
         mFormEntryController.jumpToIndex(indicies.get(indicies.size() - 1));
-        return stepToNextEvent(STEP_OVER_GROUP);
+        return stepToNextEventInternal(STEP_OVER_GROUP);
     }
 
 
@@ -376,6 +432,18 @@ public class FormController {
      * @return the event that should be handled by a view.
      */
     public int stepToPreviousEvent() {
+        if (mRecorder == null) {
+            return stepToPreviousEventInternal();
+        }
+        long start = System.nanoTime();
+        int event = stepToPreviousEventInternal();
+        mRecorder.record(System.nanoTime() - start, FormSessionRecorder.OP_STEP_PREVIOUS,
+            String.valueOf(event));
+        return event;
+    }
+
+
+    private int stepToPreviousEventInternal() {
         /*
          * Right now this will always skip to the beginning of a group if that group is represented
          * as a 'field-list'. Should a need ever arise to step backwards by only one step in a
@@ -386,7 +454,7 @@ public class FormController {
         
         if(event == FormEntryController.EVENT_PROMPT_NEW_REPEAT &&
         		this.mReadOnly) {
-        	return stepToPreviousEvent();
+        	return stepToPreviousEventInternal();
         }
 
 
@@ -415,7 +483,14 @@ public class FormController {
      * @return EVENT for the specified Index.
      */
     public int jumpToIndex(FormIndex index) {
-        return mFormEntryController.jumpToIndex(index);
+        if (mRecorder == null) {
+            return mFormEntryController.jumpToIndex(index);
+        }
+        long start = System.nanoTime();
+        int event = mFormEntryController.jumpToIndex(index);
+        mRecorder.record(System.nanoTime() - start, FormSessionRecorder.OP_JUMP,
+            FormSessionRecorder.encodeIndex(index), String.valueOf(event));
+        return event;
     }
 
 
@@ -425,7 +500,12 @@ public class FormController {
      * @param questionIndex
      */
     public void newRepeat(FormIndex questionIndex) {
+        long start = System.nanoTime();
         mFormEntryController.newRepeat(questionIndex);
+        if (mRecorder != null) {
+            mRecorder.record(System.nanoTime() - start, FormSessionRecorder.OP_NEW_REPEAT,
+                FormSessionRecorder.encodeIndex(questionIndex));
+        }
     }
 
 
@@ -435,7 +515,11 @@ public class FormController {
      * @param questionIndex
      */
     public void newRepeat() {
-        mFormEntryController.newRepeat();
+        if (mRecorder == null) {
+            mFormEntryController.newRepeat();
+        } else {
+            newRepeat(getFormIndex());
+        }
     }
 
 
@@ -445,8 +529,13 @@ public class FormController {
      * (2) > group2 (3) and you call deleteRepeat, it will delete the 3rd instance of group2.
      */
     public void deleteRepeat() {
+        long start = System.nanoTime();
         FormIndex fi = mFormEntryController.deleteRepeat();
         mFormEntryController.jumpToIndex(fi);
+        if (mRecorder != null) {
+            mRecorder.record(System.nanoTime() - start, FormSessionRecorder.OP_DELETE_REPEAT,
+                FormSessionRecorder.encodeIndex(fi));
+        }
     }
 
 
@@ -456,7 +545,11 @@ public class FormController {
      * @param language
      */
     public void setLanguage(String language) {
+        long start = System.nanoTime();
         mFormEntryController.setLanguage(language);
+        if (mRecorder != null) {
+            mRecorder.record(System.nanoTime() - start, FormSessionRecorder.OP_LANGUAGE, language);
+        }
     }
 
 
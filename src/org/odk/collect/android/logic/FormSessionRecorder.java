@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.xform.util.XFormAnswerDataSerializer;
+
+/**
+ * Logs the operations a form entry session performs against a {@link FormController} so that
+ * the session can be re-driven off-device by {@link FormSessionReplayer}.
+ *
+ * Each operation is written as one tab separated line:
+ *
+ * <pre>
+ * &lt;elapsed micros&gt; &lt;op&gt; [&lt;arg&gt; ...]
+ * </pre>
+ *
+ * Indices are written as their fully qualified instance reference (or {@link #INDEX_BEGINNING} /
+ * {@link #INDEX_END}) and answers as their XForm serialized value together with the data type of
+ * the question, which is all the replayer needs to rebuild them against the same form. This class
+ * must not depend on Android so that the log format can be shared with the replayer.
+ */
+public class FormSessionRecorder {
+
+    public static final String OP_FORM = "form";
+    public static final String OP_STEP_NEXT = "step-next";
+    public static final String OP_STEP_PREVIOUS = "step-previous";
+    public static final String OP_JUMP = "jump";
+    public static final String OP_ANSWER = "answer";
+    public static final String OP_SAVE = "save";
+    public static final String OP_NEW_REPEAT = "new-repeat";
+    public static final String OP_DELETE_REPEAT = "delete-repeat";
+    public static final String OP_LANGUAGE = "language";
+
+    public static final String INDEX_BEGINNING = "BEGINNING";
+    public static final String INDEX_END = "END";
+
+    private static final String NULL_VALUE = "\\0";
+
+    private Writer mWriter;
+    private XFormAnswerDataSerializer mSerializer = new XFormAnswerDataSerializer();
+
+
+    public FormSessionRecorder(Writer writer) {
+        mWriter = writer;
+    }
+
+
+    public FormSessionRecorder(File logFile) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile), "UTF-8")));
+    }
+
+
+    /**
+     * Writes a single operation line. Failures are swallowed so that a broken log never affects
+     * the form entry session being recorded.
+     *
+     * @param elapsedNanos time the operation took inside the FormController
+     * @param op one of the OP_ constants
+     * @param args operation arguments, null entries are allowed
+     */
+    public synchronized void record(long elapsedNanos, String op, String... args) {
+        if (mWriter == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(elapsedNanos / 1000).append('\t').append(op);
+        for (String arg : args) {
+            line.append('\t').append(escape(arg));
+        }
+        line.append('\n');
+        try {
+            mWriter.write(line.toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+
+    public void recordAnswer(long elapsedNanos, String op, FormIndex index, int dataType,
+            IAnswerData data, int result) {
+        record(elapsedNanos, op, encodeIndex(index), String.valueOf(dataType),
+            data == null ? null : mSerializer.serializeAnswerData(data, dataType).toString(),
+            String.valueOf(result));
+    }
+
+
+    public synchronized void flush() {
+        if (mWriter != null) {
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    public synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mWriter = null;
+        }
+    }
+
+
+    /**
+     * @return a stable textual representation of the index that survives reloading the form.
+     */
+    public static String encodeIndex(FormIndex index) {
+        if (index == null || index.isBeginningOfFormIndex()) {
+            return INDEX_BEGINNING;
+        } else if (index.isEndOfFormIndex()) {
+            return INDEX_END;
+        }
+        return index.getReference().toString(true);
+    }
+
+
+    public static String escape(String s) {
+        if (s == null) {
+            return NULL_VALUE;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    public static String unescape(String s) {
+        if (NULL_VALUE.equals(s)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                switch (n) {
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        sb.append(n);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormAnswerDataParser;
+import org.javarosa.xform.util.XFormUtils;
+
+/**
+ * Drives a {@link FormController} through a session log written by {@link FormSessionRecorder}
+ * without any Android views, timing every step. This lets a session captured in the field be
+ * re-run on a desktop JVM as a repeatable performance test:
+ *
+ * <pre>
+ * java -cp javarosa-libraries.jar:kxml2-2.3.0.jar:regexp-me.jar:collect-classes \
+ *     org.odk.collect.android.logic.FormSessionReplayer form.xml session.log [iterations]
+ * </pre>
+ *
+ * Indices are resolved against the live form before each step and are not part of the timing.
+ * Sessions are always replayed against a blank instance, so logs of sessions that edited a saved
+ * instance will report diverging steps.
+ */
+public class FormSessionReplayer {
+
+    /**
+     * Timing of one replayed log line.
+     */
+    public static final class StepResult {
+        public final int line;
+        public final String op;
+        public final long recordedMicros;
+        public final long replayedMicros;
+        public final boolean diverged;
+
+
+        StepResult(int line, String op, long recordedMicros, long replayedMicros, boolean diverged) {
+            this.line = line;
+            this.op = op;
+            this.recordedMicros = recordedMicros;
+            this.replayedMicros = replayedMicros;
+            this.diverged = diverged;
+        }
+    }
+
+    private FormEntryModel mModel;
+    private FormController mController;
+
+
+    public FormSessionReplayer(FormDef formDef) {
+        mModel = new FormEntryModel(formDef);
+        mController = new FormController(new FormEntryController(mModel));
+    }
+
+
+    public FormController getController() {
+        return mController;
+    }
+
+
+    /**
+     * Replays every operation in the given log against this replayer's form.
+     *
+     * @param reader the session log
+     * @return the timing of each replayed step, in log order
+     * @throws IOException
+     */
+    public ArrayList<StepResult> replay(BufferedReader reader) throws IOException {
+        ArrayList<StepResult> results = new ArrayList<StepResult>();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = FormSessionRecorder.unescape(fields[i]);
+            }
+            StepResult result = replayStep(lineNumber, fields);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+
+    private StepResult replayStep(int lineNumber, String[] fields) {
+        long recorded = Long.parseLong(fields[0]);
+        String op = fields[1];
+        long start;
+        boolean diverged = false;
+
+        if (FormSessionRecorder.OP_FORM.equals(op)) {
+            if (fields.length > 3 && fields[3] != null) {
+                mController.setLanguage(fields[3]);
+            }
+            return null;
+        } else if (FormSessionRecorder.OP_STEP_NEXT.equals(op)) {
+            start = System.nanoTime();
+            int event = mController.stepToNextEvent(Boolean.parseBoolean(fields[2]));
+            start = System.nanoTime() - start;
+            diverged = event != Integer.parseInt(fields[3]);
+        } else if (FormSessionRecorder.OP_STEP_PREVIOUS.equals(op)) {
+            start = System.nanoTime();
+            int event = mController.stepToPreviousEvent();
+            start = System.nanoTime() - start;
+            diverged = event != Integer.parseInt(fields[2]);
+        } else if (FormSessionRecorder.OP_JUMP.equals(op)) {
+            FormIndex index = resolveIndex(fields[2]);
+            start = System.nanoTime();
+            int event = mController.jumpToIndex(index);
+            start = System.nanoTime() - start;
+            diverged = event != Integer.parseInt(fields[3]);
+        } else if (FormSessionRecorder.OP_ANSWER.equals(op)
+                || FormSessionRecorder.OP_SAVE.equals(op)) {
+            FormIndex index = resolveIndex(fields[2]);
+            IAnswerData data = null;
+            if (fields[4] != null) {
+                IFormElement element = mModel.getForm().getChild(index);
+                data = XFormAnswerDataParser.getAnswerData(fields[4],
+                    Integer.parseInt(fields[3]),
+                    element instanceof QuestionDef ? (QuestionDef) element : null);
+            }
+            int status;
+            start = System.nanoTime();
+            if (FormSessionRecorder.OP_ANSWER.equals(op)) {
+                status = mController.answerQuestion(index, data);
+            } else {
+                status = mController.saveAnswer(index, data) ? 1 : 0;
+            }
+            start = System.nanoTime() - start;
+            diverged = status != Integer.parseInt(fields[5]);
+        } else if (FormSessionRecorder.OP_NEW_REPEAT.equals(op)) {
+            FormIndex index = resolveIndex(fields[2]);
+            start = System.nanoTime();
+            mController.newRepeat(index);
+            start = System.nanoTime() - start;
+        } else if (FormSessionRecorder.OP_DELETE_REPEAT.equals(op)) {
+            start = System.nanoTime();
+            mController.deleteRepeat();
+            start = System.nanoTime() - start;
+            diverged = !FormSessionRecorder.encodeIndex(mController.getFormIndex()).equals(fields[2]);
+        } else if (FormSessionRecorder.OP_LANGUAGE.equals(op)) {
+            start = System.nanoTime();
+            mController.setLanguage(fields[2]);
+            start = System.nanoTime() - start;
+        } else {
+            throw new IllegalArgumentException("Unknown operation '" + op + "' on line "
+                    + lineNumber);
+        }
+        return new StepResult(lineNumber, op, recorded, start / 1000, diverged);
+    }
+
+
+    /**
+     * Walks the form in document order looking for the index whose reference matches the
+     * recorded one.
+     */
+    private FormIndex resolveIndex(String encoded) {
+        if (FormSessionRecorder.INDEX_BEGINNING.equals(encoded)) {
+            return FormIndex.createBeginningOfFormIndex();
+        } else if (FormSessionRecorder.INDEX_END.equals(encoded)) {
+            return FormIndex.createEndOfFormIndex();
+        }
+        FormIndex index = mModel.incrementIndex(FormIndex.createBeginningOfFormIndex());
+        while (!index.isEndOfFormIndex()) {
+            if (encoded.equals(FormSessionRecorder.encodeIndex(index))) {
+                return index;
+            }
+            index = mModel.incrementIndex(index);
+        }
+        throw new IllegalStateException("Recorded index " + encoded
+                + " does not exist in the replayed form. Was the log recorded against this form?");
+    }
+
+
+    /**
+     * Prints one line per step followed by per-operation totals.
+     */
+    public static void report(ArrayList<StepResult> results, PrintStream out) {
+        Map<String, long[]> totals = new HashMap<String, long[]>();
+        out.println("line\top\trecorded_us\treplayed_us");
+        for (StepResult r : results) {
+            out.println(r.line + "\t" + r.op + "\t" + r.recordedMicros + "\t" + r.replayedMicros
+                    + (r.diverged ? "\tDIVERGED" : ""));
+            long[] total = totals.get(r.op);
+            if (total == null) {
+                total = new long[3];
+                totals.put(r.op, total);
+            }
+            total[0]++;
+            total[1] += r.recordedMicros;
+            total[2] += r.replayedMicros;
+        }
+        out.println();
+        out.println("op\tcount\trecorded_us\treplayed_us");
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            long[] total = e.getValue();
+            out.println(e.getKey() + "\t" + total[0] + "\t" + total[1] + "\t" + total[2]);
+        }
+    }
+
+
+    public static FormDef loadForm(String formPath) throws IOException {
+        FileInputStream fis = new FileInputStream(formPath);
+        try {
+            FormDef fd = XFormUtils.getFormFromInputStream(fis);
+            fd.initialize(true, new InstanceInitializationFactory());
+            return fd;
+        } finally {
+            fis.close();
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: FormSessionReplayer <form.xml> <session.log> [iterations]");
+            System.exit(1);
+        }
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        for (int i = 0; i < iterations; i++) {
+            FormSessionReplayer replayer = new FormSessionReplayer(loadForm(args[0]));
+            BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), "UTF-8"));
+            try {
+                System.out.println("# iteration " + (i + 1));
+                report(replayer.replay(reader), System.out);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
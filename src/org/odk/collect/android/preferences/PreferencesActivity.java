@@ -70,6 +70,15 @@ public class PreferencesActivity extends PreferenceActivity implements
     
     public static String KEY_SHOW_START_SCREEN = "odk_show_entry_screen";
 
+    public static String KEY_RECORD_SESSIONS = "record_sessions";
+
+    public static String KEY_INTERNAL_DATABASES = "internal_databases";
+
+    public static String KEY_IMAGE_MAX_DIMENSION = "image_max_dimension";
+    public static String KEY_IMAGE_QUALITY = "image_quality";
+
+    public static String KEY_SEARCH_FIELDS = "search_fields";
+
     public static String KEY_AUTH = "auth";
     public static String KEY_ACCOUNT = "account";
     
@@ -120,6 +129,9 @@ public class PreferencesActivity extends PreferenceActivity implements
         }
         updateFontSize();
         updateShowStart();
+        updateImageMaxDimension();
+        updateImageQuality();
+        updateSearchFields();
     }
 
 
@@ -221,6 +233,9 @@ public class PreferencesActivity extends PreferenceActivity implements
         }
         updateFontSize();
         updateShowStart();
+        updateImageMaxDimension();
+        updateImageQuality();
+        updateSearchFields();
     }
 
 
@@ -294,6 +309,12 @@ public class PreferencesActivity extends PreferenceActivity implements
             updateFontSize();
         } else if(key.equals(KEY_SHOW_START_SCREEN)) {
         	updateShowStart();
+        } else if (key.equals(KEY_IMAGE_MAX_DIMENSION)) {
+            updateImageMaxDimension();
+        } else if (key.equals(KEY_IMAGE_QUALITY)) {
+            updateImageQuality();
+        } else if (key.equals(KEY_SEARCH_FIELDS)) {
+            updateSearchFields();
         }
     }
 
@@ -389,6 +410,29 @@ public class PreferencesActivity extends PreferenceActivity implements
         ListPreference lp = (ListPreference) findPreference(KEY_FONT_SIZE);
         lp.setSummary(lp.getEntry());
     }
+
+
+    private void updateImageMaxDimension() {
+        ListPreference lp = (ListPreference) findPreference(KEY_IMAGE_MAX_DIMENSION);
+        lp.setSummary(lp.getEntry());
+    }
+
+
+    private void updateImageQuality() {
+        ListPreference lp = (ListPreference) findPreference(KEY_IMAGE_QUALITY);
+        lp.setSummary(lp.getEntry());
+    }
+
+
+    private void updateSearchFields() {
+        EditTextPreference etp = (EditTextPreference) findPreference(KEY_SEARCH_FIELDS);
+        String fields = etp.getText();
+        if (fields == null || fields.trim().length() == 0) {
+            etp.setSummary(R.string.search_fields_summary);
+        } else {
+            etp.setSummary(fields);
+        }
+    }
     
     private void updateShowStart() {
 //        ListPreference lp = (ListPreference) findPreference(KEY_SHOW_START_SCREEN);
@@ -14,24 +14,33 @@
 
 package org.odk.collect.android.provider;
 
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileReaper;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
+import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+import org.odk.collect.android.tasks.DiskSyncTask;
 import org.odk.collect.android.utilities.FileUtils;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -43,7 +52,7 @@ public class FormsProvider extends ContentProvider {
     private static final String t = "FormsProvider";
 
     private static final String DATABASE_NAME = "forms.db";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
     private static final String FORMS_TABLE_NAME = "forms";
 
     private static HashMap<String, String> sFormsProjectionMap;
@@ -58,8 +67,9 @@ public class FormsProvider extends ContentProvider {
      */
     private static class DatabaseHelper extends ODKSQLiteOpenHelper {
 
-        DatabaseHelper(String databaseName) {
-            super("/sdcard/odk/metadata", databaseName, null, DATABASE_VERSION);
+        DatabaseHelper(String path, String databaseName, String otherPath) {
+            // a database left in the other place, e.g. before the preference changed, is brought over
+            super(path, databaseName, null, DATABASE_VERSION, otherPath);
         }
 
 
@@ -81,28 +91,127 @@ public class FormsProvider extends ContentProvider {
                     + FormsColumns.SUBMISSION_URI + " text, "
                     + FormsColumns.BASE64_RSA_PUBLIC_KEY + " text, "
                     + FormsColumns.JRCACHE_FILE_PATH + " text not null );");
+            createIndexes(db);
+            FileReaper.createTable(db);
+            // none of the forms the disk sync last indexed are registered in this database
+            DiskSyncTask.invalidateIndex();
         }
 
 
+        /**
+         * Indexes the columns forms are looked up by when downloading, syncing with the disk and
+         * opening an instance. Added in version 4.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_file_path ON "
+                    + FORMS_TABLE_NAME + " (" + FormsColumns.FORM_FILE_PATH + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_md5 ON "
+                    + FORMS_TABLE_NAME + " (" + FormsColumns.MD5_HASH + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_jr_form_id ON "
+                    + FORMS_TABLE_NAME + " (" + FormsColumns.JR_FORM_ID + ");");
+        }
+
+
+        /**
+         * Upgrades one version at a time, keeping the data. Versions before 3 predate this path
+         * and are still rebuilt from scratch (the disk sync re-registers the forms).
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(t, "Upgrading database from version " + oldVersion + " to " + newVersion
-                    + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS forms");
-            onCreate(db);
+            if (oldVersion < 3) {
+                Log.w(t, "Upgrading database from version " + oldVersion + " to " + newVersion
+                        + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS forms");
+                onCreate(db);
+                return;
+            }
+            Log.i(t, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if (oldVersion < 4) {
+                createIndexes(db);
+            }
+            if (oldVersion < 5) {
+                FileReaper.createTable(db);
+            }
         }
     }
 
     private DatabaseHelper mDbHelper;
 
+    // set while a batch runs on the calling thread, so that its operations notify once at the end
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>();
+
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new DatabaseHelper(DATABASE_NAME);
+        // the database lives in fast internal storage unless the user keeps it on the card, where
+        // it outlives the app; the forms and instances stay on the card either way
+        String internalPath = getContext().getDatabasePath(DATABASE_NAME).getParent();
+        boolean internal =
+            PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean(
+                PreferencesActivity.KEY_INTERNAL_DATABASES, true);
+        mDbHelper =
+            internal ? new DatabaseHelper(internalPath, DATABASE_NAME, Collect.METADATA_PATH)
+                    : new DatabaseHelper(Collect.METADATA_PATH, DATABASE_NAME, internalPath);
+        // finishes any deletions the last run didn't get to
+        FileReaper.getInstance().attach(mDbHelper, FORMS_TABLE_NAME);
         return true;
     }
 
 
+    private void notifyChange(Uri uri) {
+        if (mInBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+
+    /**
+     * Inserts all the rows in one transaction, notifying observers once.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        mInBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                insert(uri, v);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.remove();
+        }
+        notifyChange(uri);
+        return values.length;
+    }
+
+
+    /**
+     * Applies the operations in one transaction, notifying observers once. Only called on Android
+     * 2.0 and up, where batches exist.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mInBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.remove();
+        }
+        // any deletes in the batch are committed now
+        FileReaper.getInstance().wake();
+        notifyChange(FormsColumns.CONTENT_URI);
+        return results;
+    }
+
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
@@ -125,7 +234,20 @@ public class FormsProvider extends ContentProvider {
 
         // Get the database and run the query
         SQLiteDatabase db = mDbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        String limit = uri.getQueryParameter(FormsProviderAPI.LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        String offset = uri.getQueryParameter(FormsProviderAPI.OFFSET);
+        if (offset != null) {
+            if (limit == null || !TextUtils.isDigitsOnly(offset)) {
+                throw new IllegalArgumentException("Invalid offset " + offset);
+            }
+            // SQLite's LIMIT <offset>, <count>
+            limit = offset + "," + limit;
+        }
+        Cursor c =
+            qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -208,7 +330,7 @@ public class FormsProvider extends ContentProvider {
         long rowId = db.insert(FORMS_TABLE_NAME, null, values);
         if (rowId > 0) {
             Uri formUri = ContentUris.withAppendedId(FormsColumns.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(formUri, null);
+            notifyChange(formUri);
             return formUri;
         }
 
@@ -236,65 +358,57 @@ public class FormsProvider extends ContentProvider {
 
 
     /**
-     * This method removes the entry from the content provider, and also removes any associated
-     * files. files: form.xml, [formmd5].formdef, formname-media {directory}
+     * This method removes the entry from the content provider. The associated files (form.xml,
+     * [formmd5].formdef, formname-media {directory}) are tombstoned in the same transaction and
+     * removed in the background by the {@link FileReaper}.
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        int count;
+        String selection;
 
         switch (sUriMatcher.match(uri)) {
             case FORMS:
-                Cursor del = null;
-                try {
-                	del = this.query(uri, null, where, whereArgs, null);
-	                del.moveToPosition(-1);
-	                while (del.moveToNext()) {
-	                    deleteFileOrDir(del.getString(del
-	                            .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-	                    deleteFileOrDir(del.getString(del.getColumnIndex(FormsColumns.FORM_FILE_PATH)));
-	                    deleteFileOrDir(del.getString(del.getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
-	                }
-                } finally {
-                	if ( del != null ) {
-                		del.close();
-                	}
-                }
-                count = db.delete(FORMS_TABLE_NAME, where, whereArgs);
+                selection = where;
                 break;
 
             case FORM_ID:
                 String formId = uri.getPathSegments().get(1);
-
-                Cursor c = null;
-                try {
-                	c = this.query(uri, null, where, whereArgs, null);
-	                // This should only ever return 1 record.
-	                c.moveToPosition(-1);
-	                while (c.moveToNext()) {
-	                    deleteFileOrDir(c.getString(c.getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-	                    deleteFileOrDir(c.getString(c.getColumnIndex(FormsColumns.FORM_FILE_PATH)));
-	                    deleteFileOrDir(c.getString(c.getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
-	                }
-                } finally {
-                	if ( c != null ) {
-                		c.close();
-                	}
-                }
-
-                count =
-                    db.delete(FORMS_TABLE_NAME,
-                        FormsColumns._ID + "=" + formId
-                                + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
-                        whereArgs);
+                selection =
+                    FormsColumns._ID + "=" + formId
+                            + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        int count;
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(FORMS_TABLE_NAME, new String[] {
+                    FormsColumns.JRCACHE_FILE_PATH, FormsColumns.FORM_FILE_PATH,
+                    FormsColumns.FORM_MEDIA_PATH
+            }, selection, whereArgs, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    FileReaper.tombstone(db, c.getString(0), FormsColumns.JRCACHE_FILE_PATH);
+                    FileReaper.tombstone(db, c.getString(1), FormsColumns.FORM_FILE_PATH);
+                    FileReaper.tombstone(db, c.getString(2), FormsColumns.FORM_MEDIA_PATH);
+                }
+            } finally {
+                c.close();
+            }
+            count = db.delete(FORMS_TABLE_NAME, selection, whereArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (mInBatch.get() == null) {
+            FileReaper.getInstance().wake();
+        }
+        notifyChange(uri);
         return count;
     }
 
@@ -430,7 +544,7 @@ public class FormsProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -27,6 +27,13 @@ public final class FormsProviderAPI {
 
     // This class cannot be instantiated
     private FormsProviderAPI() {}
+
+    // query parameter limiting the number of rows returned, for loading lists a page at a time
+    public static final String LIMIT = "limit";
+
+    // query parameter skipping that many rows before the limit, for loading the pages after the
+    // first; only used along with LIMIT
+    public static final String OFFSET = "offset";
     
     /**
      * Notes table
@@ -14,25 +14,34 @@
 
 package org.odk.collect.android.provider;
 
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileReaper;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
+import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * 
@@ -42,8 +51,19 @@ public class InstanceProvider extends ContentProvider {
     private static final String t = "InstancesProvider";
 
     private static final String DATABASE_NAME = "instances.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
     private static final String INSTANCES_TABLE_NAME = "instances";
+    // full-text index of the display names and searchable answers, keyed by instance _id
+    private static final String SEARCH_TABLE_NAME = "instances_search";
+    private static final String DOCID = "docid";
+    // the instance summaries, joined to the instances when any of their columns are asked for
+    private static final String SUMMARIES_TABLE_NAME = "instance_summaries";
+    private static final String SUMMARY_INSTANCE_ID = "instanceId";
+    private static final String[] SUMMARY_COLUMNS = {
+            InstanceColumns.QUESTION_COUNT, InstanceColumns.ANSWERED_COUNT,
+            InstanceColumns.ATTACHMENT_COUNT, InstanceColumns.ATTACHMENT_BYTES,
+            InstanceColumns.KEY_FIELDS, InstanceColumns.LAST_QUESTION
+    };
 
     private static HashMap<String, String> sInstancesProjectionMap;
 
@@ -57,8 +77,9 @@ public class InstanceProvider extends ContentProvider {
      */
     private static class DatabaseHelper extends ODKSQLiteOpenHelper {
 
-        DatabaseHelper(String databaseName) {
-            super("/sdcard/odk/metadata", databaseName, null, DATABASE_VERSION);
+        DatabaseHelper(String path, String databaseName, String otherPath) {
+            // a database left in the other place, e.g. before the preference changed, is brought over
+            super(path, databaseName, null, DATABASE_VERSION, otherPath);
         }
 
 
@@ -73,34 +94,177 @@ public class InstanceProvider extends ContentProvider {
                + InstanceColumns.JR_FORM_ID + " text not null, "
                + InstanceColumns.STATUS + " text not null, "
                + InstanceColumns.LAST_STATUS_CHANGE_DATE + " date not null, "
-               + InstanceColumns.DISPLAY_SUBTEXT + " text not null );");   
+               + InstanceColumns.DISPLAY_SUBTEXT + " text not null, "
+               + InstanceColumns.ARCHIVE_PATH + " text );");   
+           createIndexes(db);
+           FileReaper.createTable(db);
+           createSearchIndex(db);
+           createSummaries(db);
         }
 
 
+        /**
+         * Indexes the columns instances are listed and looked up by: status for the chooser and
+         * uploader lists, the file path when saving. Added in version 3.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_status ON "
+                    + INSTANCES_TABLE_NAME + " (" + InstanceColumns.STATUS + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_file_path ON "
+                    + INSTANCES_TABLE_NAME + " (" + InstanceColumns.INSTANCE_FILE_PATH + ");");
+        }
+
+
+        /**
+         * Creates the full-text index searched by {@link InstanceProviderAPI#SEARCH}. FTS3 is
+         * built into SQLite on every Android version we run on. Added in version 5.
+         */
+        private void createSearchIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts3("
+                    + InstanceColumns.DISPLAY_NAME + ", " + InstanceColumns.SEARCH_TEXT + ");");
+        }
+
+
+        /**
+         * Creates the table of instance summaries. Added in version 6.
+         */
+        private void createSummaries(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + SUMMARIES_TABLE_NAME + " ("
+                    + SUMMARY_INSTANCE_ID + " integer primary key, "
+                    + InstanceColumns.QUESTION_COUNT + " integer, "
+                    + InstanceColumns.ANSWERED_COUNT + " integer, "
+                    + InstanceColumns.ATTACHMENT_COUNT + " integer, "
+                    + InstanceColumns.ATTACHMENT_BYTES + " integer, "
+                    + InstanceColumns.KEY_FIELDS + " text, "
+                    + InstanceColumns.LAST_QUESTION + " text);");
+        }
+
+
+        /**
+         * Upgrades one version at a time, keeping the data. Versions before 2 predate this path
+         * and are still rebuilt from scratch.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(t, "Upgrading database from version " + oldVersion + " to " + newVersion
-                    + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS instances");
-            onCreate(db);
+            if (oldVersion < 2) {
+                Log.w(t, "Upgrading database from version " + oldVersion + " to " + newVersion
+                        + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS instances");
+                onCreate(db);
+                return;
+            }
+            Log.i(t, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if (oldVersion < 3) {
+                createIndexes(db);
+            }
+            if (oldVersion < 4) {
+                FileReaper.createTable(db);
+            }
+            if (oldVersion < 5) {
+                createSearchIndex(db);
+                // answers are only indexed from the next save, names can be found right away
+                db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + " (" + DOCID + ", "
+                        + InstanceColumns.DISPLAY_NAME + ") SELECT " + InstanceColumns._ID + ", "
+                        + InstanceColumns.DISPLAY_NAME + " FROM " + INSTANCES_TABLE_NAME);
+            }
+            if (oldVersion < 6) {
+                createSummaries(db);
+            }
+            if (oldVersion < 7) {
+                db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN "
+                        + InstanceColumns.ARCHIVE_PATH + " text");
+            }
         }
     }
 
     private DatabaseHelper mDbHelper;
 
+    // set while a batch runs on the calling thread, so that its operations notify once at the end
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>();
+
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new DatabaseHelper(DATABASE_NAME);
+        // the database lives in fast internal storage unless the user keeps it on the card, where
+        // it outlives the app; the forms and instances stay on the card either way
+        String internalPath = getContext().getDatabasePath(DATABASE_NAME).getParent();
+        boolean internal =
+            PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean(
+                PreferencesActivity.KEY_INTERNAL_DATABASES, true);
+        mDbHelper =
+            internal ? new DatabaseHelper(internalPath, DATABASE_NAME, Collect.METADATA_PATH)
+                    : new DatabaseHelper(Collect.METADATA_PATH, DATABASE_NAME, internalPath);
+        // finishes any deletions the last run didn't get to
+        FileReaper.getInstance().attach(mDbHelper, INSTANCES_TABLE_NAME);
         return true;
     }
 
 
+    private void notifyChange(Uri uri) {
+        if (mInBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+
+    /**
+     * Inserts all the rows in one transaction, notifying observers once.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        mInBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                insert(uri, v);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.remove();
+        }
+        notifyChange(uri);
+        return values.length;
+    }
+
+
+    /**
+     * Applies the operations in one transaction, notifying observers once. Only called on Android
+     * 2.0 and up, where batches exist.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mInBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.remove();
+        }
+        // any deletes in the batch are committed now
+        FileReaper.getInstance().wake();
+        notifyChange(InstanceColumns.CONTENT_URI);
+        return results;
+    }
+
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(INSTANCES_TABLE_NAME);
+        if (wantsSummary(projection)) {
+            qb.setTables(INSTANCES_TABLE_NAME + " LEFT OUTER JOIN " + SUMMARIES_TABLE_NAME + " ON "
+                    + INSTANCES_TABLE_NAME + "." + InstanceColumns._ID + "="
+                    + SUMMARIES_TABLE_NAME + "." + SUMMARY_INSTANCE_ID);
+        } else {
+            qb.setTables(INSTANCES_TABLE_NAME);
+        }
 
         switch (sUriMatcher.match(uri)) {
             case INSTANCES:
@@ -116,9 +280,33 @@ public class InstanceProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        String match = toMatchQuery(uri.getQueryParameter(InstanceProviderAPI.SEARCH));
+        if (match != null) {
+            if (sUriMatcher.match(uri) == INSTANCE_ID) {
+                qb.appendWhere(" AND ");
+            }
+            qb.appendWhere(InstanceColumns._ID + " IN (SELECT " + DOCID + " FROM "
+                    + SEARCH_TABLE_NAME + " WHERE " + SEARCH_TABLE_NAME + " MATCH ");
+            qb.appendWhereEscapeString(match);
+            qb.appendWhere(")");
+        }
+
         // Get the database and run the query
         SQLiteDatabase db = mDbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        String limit = uri.getQueryParameter(InstanceProviderAPI.LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        String offset = uri.getQueryParameter(InstanceProviderAPI.OFFSET);
+        if (offset != null) {
+            if (limit == null || !TextUtils.isDigitsOnly(offset)) {
+                throw new IllegalArgumentException("Invalid offset " + offset);
+            }
+            // SQLite's LIMIT <offset>, <count>
+            limit = offset + "," + limit;
+        }
+        Cursor c =
+            qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -126,6 +314,63 @@ public class InstanceProvider extends ContentProvider {
     }
 
 
+    private static boolean wantsSummary(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            for (String summaryColumn : SUMMARY_COLUMNS) {
+                if (summaryColumn.equals(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Moves the summary columns out of values.
+     *
+     * @return the summary values, empty if there were none
+     */
+    private static ContentValues takeSummary(ContentValues values) {
+        ContentValues summary = new ContentValues();
+        for (String column : SUMMARY_COLUMNS) {
+            if (values.containsKey(column)) {
+                summary.put(column, values.getAsString(column));
+                values.remove(column);
+            }
+        }
+        return summary;
+    }
+
+
+    /**
+     * Turns what was typed into a full-text query matching rows that have every word, or a word
+     * starting with it, in any order. Quoting each word keeps the query syntax out of the user's
+     * hands.
+     *
+     * @return the query, or null if there are no words to search for
+     */
+    private static String toMatchQuery(String search) {
+        if (search == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        for (String word : search.trim().split("\\s+")) {
+            word = word.replace("\"", "").replace("*", "");
+            if (word.length() > 0) {
+                if (b.length() > 0) {
+                    b.append(' ');
+                }
+                b.append('"').append(word).append("*\"");
+            }
+        }
+        return b.length() == 0 ? null : b.toString();
+    }
+
+
     @Override
     public String getType(Uri uri) {
         switch (sUriMatcher.match(uri)) {
@@ -172,11 +417,34 @@ public class InstanceProvider extends ContentProvider {
             values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
         }
 
+        ContentValues searchValues = new ContentValues();
+        searchValues.put(InstanceColumns.DISPLAY_NAME,
+            values.getAsString(InstanceColumns.DISPLAY_NAME));
+        searchValues.put(InstanceColumns.SEARCH_TEXT,
+            values.getAsString(InstanceColumns.SEARCH_TEXT));
+        values.remove(InstanceColumns.SEARCH_TEXT);
+        ContentValues summary = takeSummary(values);
+
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        long rowId = db.insert(INSTANCES_TABLE_NAME, null, values);
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(INSTANCES_TABLE_NAME, null, values);
+            if (rowId > 0) {
+                searchValues.put(DOCID, rowId);
+                db.insert(SEARCH_TABLE_NAME, null, searchValues);
+                if (summary.size() > 0) {
+                    summary.put(SUMMARY_INSTANCE_ID, rowId);
+                    db.insert(SUMMARIES_TABLE_NAME, null, summary);
+                }
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
         if (rowId > 0) {
             Uri instanceUri = ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(instanceUri, null);
+            notifyChange(instanceUri);
             return instanceUri;
         }
 
@@ -200,129 +468,163 @@ public class InstanceProvider extends ContentProvider {
         }
     }
     
-    private void deleteFileOrDir(String fileName ) {
-        File file = new File(fileName);
-        if (file.exists()) {
-            if (file.isDirectory()) {
-                // delete all the containing files
-                File[] files = file.listFiles();
-                for (File f : files) {
-                    // should make this recursive if we get worried about
-                    // the media directory containing directories
-                    f.delete();
-                }
-            }
-            file.delete();
-        }
-    }
-
-
     /**
-     * This method removes the entry from the content provider, and also removes any associated files.
-     * files:  form.xml, [formmd5].formdef, formname-media {directory}
+     * This method removes the entry from the content provider. The instance folder is tombstoned
+     * in the same transaction and removed in the background by the {@link FileReaper}, as is the
+     * archive the instance was packed into, which the reaper keeps while other instances use it.
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        int count;
-        
+        String selection;
+
         switch (sUriMatcher.match(uri)) {
-            case INSTANCES:                
-                Cursor del = null;
-                try {
-                	del = this.query(uri, null, where, whereArgs, null);
-	                del.moveToPosition(-1);
-	                while (del.moveToNext()) {
-	                    String instanceFile = del.getString(del.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
-	                    String instanceDir = (new File(instanceFile)).getParent();
-	                    deleteFileOrDir(instanceDir);
-	                }
-                } finally {
-                	if ( del != null ) {
-                		del.close();
-                	}
-                }
-                count = db.delete(INSTANCES_TABLE_NAME, where, whereArgs);
+            case INSTANCES:
+                selection = where;
                 break;
 
             case INSTANCE_ID:
                 String instanceId = uri.getPathSegments().get(1);
-
-                Cursor c = null;
-                try {
-                	c = this.query(uri, null, where, whereArgs, null);
-	                // This should only ever return 1 record.  I hope.
-	                c.moveToPosition(-1);
-	                while (c.moveToNext()) {
-	                    String instanceFile = c.getString(c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
-	                    String instanceDir = (new File(instanceFile)).getParent();
-	                    deleteFileOrDir(instanceDir);           
-	                }
-                } finally {
-                	if ( c != null ) {
-                		c.close();
-                	}
-                }
-                
-                count =
-                    db.delete(INSTANCES_TABLE_NAME,
-                        InstanceColumns._ID + "=" + instanceId
-                                + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
-                        whereArgs);
+                selection =
+                    InstanceColumns._ID + "=" + instanceId
+                            + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        int count;
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(INSTANCES_TABLE_NAME, new String[] {
+                    InstanceColumns._ID, InstanceColumns.INSTANCE_FILE_PATH,
+                    InstanceColumns.ARCHIVE_PATH
+            }, selection, whereArgs, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    db.delete(SEARCH_TABLE_NAME, DOCID + "=" + c.getLong(0), null);
+                    db.delete(SUMMARIES_TABLE_NAME, SUMMARY_INSTANCE_ID + "=" + c.getLong(0), null);
+                    String instanceDir = new File(c.getString(1)).getParent();
+                    FileReaper.tombstone(db, instanceDir, InstanceColumns.INSTANCE_FILE_PATH);
+                    FileReaper.tombstone(db, c.getString(2), InstanceColumns.ARCHIVE_PATH);
+                }
+            } finally {
+                c.close();
+            }
+            count = db.delete(INSTANCES_TABLE_NAME, selection, whereArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (mInBatch.get() == null) {
+            FileReaper.getInstance().wake();
+        }
+        notifyChange(uri);
         return count;
     }
 
 
+    /**
+     * Updates the rows, the search index with any new display name or searchable answers, and the
+     * summaries with any summary columns. Archives that rows are moved out of are tombstoned, to
+     * be removed once no instance is packed in them.
+     */
     @Override
-    public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+    public int update(Uri uri, ContentValues initialValues, String where, String[] whereArgs) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        int count;
-        String status = null;
+        String selection;
         switch (sUriMatcher.match(uri)) {
             case INSTANCES:
-                if (values.containsKey(InstanceColumns.STATUS)) {
-                    status = values.getAsString(InstanceColumns.STATUS);
-                    
-                    if (values.containsKey(InstanceColumns.DISPLAY_SUBTEXT) == false) {
-                        Date today = new Date();
-                        String text = getDisplaySubtext(status, today);
-                        values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
-                    }
-                }
-                
-                count = db.update(INSTANCES_TABLE_NAME, values, where, whereArgs);
+                selection = where;
                 break;
 
             case INSTANCE_ID:
                 String instanceId = uri.getPathSegments().get(1);
-
-                if (values.containsKey(InstanceColumns.STATUS)) {
-                    status = values.getAsString(InstanceColumns.STATUS);
-                    
-                    if (values.containsKey(InstanceColumns.DISPLAY_SUBTEXT) == false) {
-                        Date today = new Date();
-                        String text = getDisplaySubtext(status, today);
-                        values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
-                    }
-                }
-               
-                count =
-                    db.update(INSTANCES_TABLE_NAME, values, InstanceColumns._ID + "=" + instanceId
-                            + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+                selection =
+                    InstanceColumns._ID + "=" + instanceId
+                            + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        // callers may go on to insert the same values
+        ContentValues values = new ContentValues(initialValues);
+        if (values.containsKey(InstanceColumns.STATUS)) {
+            String status = values.getAsString(InstanceColumns.STATUS);
+
+            if (values.containsKey(InstanceColumns.DISPLAY_SUBTEXT) == false) {
+                Date today = new Date();
+                String text = getDisplaySubtext(status, today);
+                values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
+            }
+        }
+
+        ContentValues searchValues = new ContentValues();
+        if (values.containsKey(InstanceColumns.DISPLAY_NAME)) {
+            searchValues.put(InstanceColumns.DISPLAY_NAME,
+                values.getAsString(InstanceColumns.DISPLAY_NAME));
+        }
+        if (values.containsKey(InstanceColumns.SEARCH_TEXT)) {
+            searchValues.put(InstanceColumns.SEARCH_TEXT,
+                values.getAsString(InstanceColumns.SEARCH_TEXT));
+            values.remove(InstanceColumns.SEARCH_TEXT);
+        }
+        ContentValues summary = takeSummary(values);
+        boolean rearchived = values.containsKey(InstanceColumns.ARCHIVE_PATH);
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            if (searchValues.size() > 0 || summary.size() > 0 || rearchived) {
+                // by id, one row at a time, which the index can look up directly
+                HashSet<String> oldArchives = new HashSet<String>();
+                Cursor c = db.query(INSTANCES_TABLE_NAME, new String[] {
+                        InstanceColumns._ID, InstanceColumns.ARCHIVE_PATH
+                }, selection, whereArgs, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        long id = c.getLong(0);
+                        if (rearchived && !c.isNull(1)) {
+                            oldArchives.add(c.getString(1));
+                        }
+                        if (searchValues.size() > 0) {
+                            db.update(SEARCH_TABLE_NAME, searchValues, DOCID + "=" + id, null);
+                        }
+                        if (summary.size() > 0
+                                && db.update(SUMMARIES_TABLE_NAME, summary, SUMMARY_INSTANCE_ID
+                                        + "=" + id, null) == 0) {
+                            ContentValues newSummary = new ContentValues(summary);
+                            newSummary.put(SUMMARY_INSTANCE_ID, id);
+                            db.insert(SUMMARIES_TABLE_NAME, null, newSummary);
+                        }
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+                oldArchives.remove(values.getAsString(InstanceColumns.ARCHIVE_PATH));
+                for (String archive : oldArchives) {
+                    FileReaper.tombstone(db, archive, InstanceColumns.ARCHIVE_PATH);
+                }
+            }
+            if (values.size() > 0) {
+                count = db.update(INSTANCES_TABLE_NAME, values, selection, whereArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rearchived && mInBatch.get() == null) {
+            FileReaper.getInstance().wake();
+        }
+        if (!"false".equals(uri.getQueryParameter(InstanceProviderAPI.NOTIFY))) {
+            notifyChange(uri);
+        }
         return count;
     }
 
@@ -341,6 +643,10 @@ public class InstanceProvider extends ContentProvider {
         sInstancesProjectionMap.put(InstanceColumns.STATUS, InstanceColumns.STATUS);
         sInstancesProjectionMap.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, InstanceColumns.LAST_STATUS_CHANGE_DATE);
         sInstancesProjectionMap.put(InstanceColumns.DISPLAY_SUBTEXT, InstanceColumns.DISPLAY_SUBTEXT);
+        sInstancesProjectionMap.put(InstanceColumns.ARCHIVE_PATH, InstanceColumns.ARCHIVE_PATH);
+        for (String column : SUMMARY_COLUMNS) {
+            sInstancesProjectionMap.put(column, column);
+        }
     }
 
 }
@@ -27,6 +27,21 @@ public final class InstanceProviderAPI {
 
     // This class cannot be instantiated
     private InstanceProviderAPI() {}
+
+    // query parameter limiting the number of rows returned, for loading lists a page at a time
+    public static final String LIMIT = "limit";
+
+    // query parameter skipping that many rows before the limit, for loading the pages after the
+    // first; only used along with LIMIT
+    public static final String OFFSET = "offset";
+
+    // query parameter restricting the rows to those whose display name or searchable answers
+    // contain all of its words (or words starting with them)
+    public static final String SEARCH = "search";
+
+    // query parameter, set to "false" on an update to leave notifying observers to the caller,
+    // e.g. one that writes many rows one at a time and refreshes the lists every so often
+    public static final String NOTIFY = "notify";
     
     // status for instances
     public static final String STATUS_INCOMPLETE = "incomplete";
@@ -57,6 +72,24 @@ public final class InstanceProviderAPI {
         public static final String CAN_EDIT_WHEN_COMPLETE = "canEditWhenComplete";
         public static final String LAST_STATUS_CHANGE_DATE = "date";
         public static final String DISPLAY_SUBTEXT = "displaySubtext";
+        // the pack a submitted instance's folder has been moved into, null while it's on disk
+        public static final String ARCHIVE_PATH = "archivePath";
+
+        // answers to be found by SEARCH along with the display name, set when the instance is
+        // saved; only kept in the search index, so it can be written but not queried
+        public static final String SEARCH_TEXT = "searchText";
+
+
+        // a summary of the instance, written together each time it is saved so that lists don't
+        // have to parse the instance files; null for instances not saved since they were added
+        public static final String QUESTION_COUNT = "questionCount";
+        public static final String ANSWERED_COUNT = "answeredCount";
+        public static final String ATTACHMENT_COUNT = "attachmentCount";
+        public static final String ATTACHMENT_BYTES = "attachmentBytes";
+        // name=value lines for the questions in the searchable answers preference
+        public static final String KEY_FIELDS = "keyFields";
+        // reference of the question that was on screen when the instance was saved
+        public static final String LAST_QUESTION = "lastQuestion";
         //public static final String DISPLAY_SUB_SUBTEXT = "displaySubSubtext";
 
 
@@ -14,16 +14,28 @@
 
 package org.odk.collect.android.tasks;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.ExternalDataManager;
+import org.odk.collect.android.database.FileReaper;
 import org.odk.collect.android.listeners.DiskSyncListener;
+import org.odk.collect.android.provider.FormsProviderAPI;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+import org.odk.collect.android.utilities.ContentBatch;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.SharedMediaStore;
+import org.odk.collect.android.utilities.ThumbnailStore;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -35,24 +47,108 @@ import android.util.Log;
  * Background task for adding to the forms content provider, any forms that have been added to the
  * sdcard manually. Returns immediately if it detects an error.
  * 
+ * An index of the length, modified time and md5 of each form file, kept in {@link #INDEX_PATH},
+ * means only files that have changed since the last scan are hashed. The index also records the
+ * forms directory's modified time, and while that stays the same (nothing added, removed or
+ * renamed) the scan is skipped altogether. The index outlives the forms database, e.g. when the
+ * app's data is cleared, so the provider throws it away whenever it creates the database.
+ * 
  * @author Carl Hartung (carlhartung@gmail.com)
  */
 public class DiskSyncTask extends AsyncTask<Void, String, String> {
     private final static String t = "DiskSyncTask";
 
+    private static final String INDEX_PATH = Collect.CACHE_PATH + "/disksync";
+    // FAT keeps modified times to 2 seconds, so a directory changed within that long of a scan
+    // might change again without its time moving
+    private static final long MODIFIED_RESOLUTION = 2000;
+
+    // loaded from INDEX_PATH on first use, guarded by DiskSyncTask.class
+    private static long sFormDirModified = 0;
+    private static HashMap<String, IndexEntry> sIndex = null;
+    // set by invalidateIndex(), which doesn't wait for a running scan
+    private static volatile boolean sInvalidated = false;
+
     DiskSyncListener mListener;
 
+    private static class IndexEntry {
+        final long length;
+        final long modified;
+        final String md5;
+
+
+        IndexEntry(long length, long modified, String md5) {
+            this.length = length;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+
+
+        boolean matches(File f) {
+            return f.length() == length && f.lastModified() == modified;
+        }
+    }
+
 
     @Override
     protected String doInBackground(Void... params) {
 
+    	// Files of deleted forms stay on disk until the reaper gets to them,
+    	// don't take them for new forms.
+    	FileReaper.getInstance().waitForPending();
+    	// and with them gone, the shared media only they used can go too
+    	SharedMediaStore.collectGarbage();
+    	ExternalDataManager.getInstance().dropUnused();
+
+        File formDir = new File(Collect.FORMS_PATH);
+        long started = System.currentTimeMillis();
+        long formDirModified = formDir.lastModified();
+        // opening the database first means one made since the last scan has invalidated the index
+        if (!openProvider()) {
+            return "Internal Error: Unable to access Forms content provider";
+        }
+
+        // one scan at a time; one that waited here will usually find nothing left to do
+        synchronized (DiskSyncTask.class) {
+            if (sInvalidated) {
+                sInvalidated = false;
+                sIndex = null;
+                sFormDirModified = 0;
+            }
+            loadIndex();
+            if (formDirModified != 0 && formDirModified == sFormDirModified) {
+                Log.i(t, "Forms directory unchanged since the last scan");
+                return Collect.getInstance().getString(R.string.finished_disk_scan);
+            }
+            HashMap<String, IndexEntry> scanned = new HashMap<String, IndexEntry>();
+            String errors = sync(formDir, scanned);
+            // a scan that failed on some form goes again next time, to report it again
+            long skipWhile =
+                errors == null && started - formDirModified > MODIFIED_RESOLUTION
+                        ? formDirModified : 0;
+            saveIndex(skipWhile, scanned);
+            if (errors != null) {
+                return errors;
+            }
+        }
+        return Collect.getInstance().getString(R.string.finished_disk_scan);
+    }
+
+
+    /**
+     * Brings the provider up to date with the forms directory.
+     *
+     * @param scanned filled with the index entries of the form files in the provider
+     * @return the errors, or null if there were none
+     */
+    private String sync(File formDir, HashMap<String, IndexEntry> scanned) {
     	// Process everything then report what didn't work.
     	StringBuffer errors = new StringBuffer();
     	
-        File formDir = new File(Collect.FORMS_PATH);
         if (formDir.exists() && formDir.isDirectory()) {
-            // Get all the files in the /odk/foms directory
-            ArrayList<File> xFormsToAdd = new ArrayList<File>();
+            // Get all the files in the /odk/foms directory; a set, since each row
+            // of the provider takes its file out
+            LinkedHashSet<File> xFormsToAdd = new LinkedHashSet<File>();
             
             // Step 1: assemble the candidate form files
             //         discard files beginning with "." 
@@ -72,7 +168,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
             // Step 2: quickly run through and figure out what files we need to 
             // parse and update; this is quick, as we only calculate the md5
-            // and see if it has changed.
+            // of files that changed since the last scan and see if it has changed.
             Map<Uri, File> uriToUpdate = new HashMap<Uri, File>();
             
 	        Cursor mCursor = null;
@@ -93,12 +189,26 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 	                String sqlFilename =
 	                    mCursor.getString(mCursor.getColumnIndex(FormsColumns.FORM_FILE_PATH));
 	                String md5 = mCursor.getString(mCursor.getColumnIndex(FormsColumns.MD5_HASH));
+	                String mediaPath =
+	                    mCursor.getString(mCursor.getColumnIndex(FormsColumns.FORM_MEDIA_PATH));
 	                File sqlFile = new File(sqlFilename);
 	                if (sqlFile.exists()) {
+	                    // only images that are new or changed since the last scan are processed
+	                    if (mediaPath != null) {
+	                        ThumbnailStore.getInstance().generateInBackground(new File(mediaPath), null);
+	                    }
 	                    // remove it from the list of forms (we only want forms 
 	                	// we haven't added at the end)
 	                    xFormsToAdd.remove(sqlFile);
-	                    if (!FileUtils.getMd5Hash(sqlFile).contentEquals(md5)) {
+	                    IndexEntry entry = sIndex.get(sqlFile.getAbsolutePath());
+	                    if (entry == null || !entry.matches(sqlFile)) {
+	                        entry = new IndexEntry(sqlFile.length(), sqlFile.lastModified(),
+	                            FileUtils.getMd5Hash(sqlFile));
+	                    }
+	                    if (entry.md5 != null) {
+	                        scanned.put(sqlFile.getAbsolutePath(), entry);
+	                    }
+	                    if (entry.md5 == null || !entry.md5.equals(md5)) {
 	                        // Probably someone overwrite the file on the sdcard
 	                        // So re-parse it and update it's information
 	                        String id = mCursor.getString(mCursor.getColumnIndex(FormsColumns._ID));
@@ -116,7 +226,9 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 	        }
             
 	        // Step3: go through uriToUpdate to parse and update each in turn.
-	        // This is slow because buildContentValues(...) is slow.
+	        // This is slow because buildContentValues(...) is slow. The updates
+	        // are written together, in one transaction, once everything is parsed.
+	        ContentBatch updates = new ContentBatch(FormsProviderAPI.AUTHORITY);
 	        for ( Map.Entry<Uri, File> entry : uriToUpdate.entrySet() ) {
 	        	Uri updateUri = entry.getKey();
 	        	File formDefFile = entry.getValue();
@@ -131,16 +243,18 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 	        		continue;
 	        	}
                 
-                // update in content provider
-                int count =
-                        Collect.getInstance().getContentResolver()
-                                .update(updateUri, values, null, null);
-                    Log.i(t, count + " records successfully updated");
+                updates.update(updateUri, values, null, null);
 	        }
 	        uriToUpdate.clear();
+	        if (updates.size() > 0) {
+	            int count = updates.apply(Collect.getInstance().getContentResolver());
+	            Log.i(t, count + " records successfully updated");
+	        }
 	        
 	        // Step 4: go through the newly-discovered files in xFormsToAdd and add them.
-	        // This is slow because buildContentValues(...) is slow.
+	        // This is slow because buildContentValues(...) is slow, so the rows
+	        // are collected and inserted in one transaction at the end.
+	        ArrayList<ContentValues> inserts = new ArrayList<ContentValues>();
             for (File formDefFile : xFormsToAdd) {
                 // Parse it for the first time...
                 ContentValues values;
@@ -152,15 +266,117 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 	        		continue;
 	        	}
                 
-                // insert into content provider
-                Collect.getInstance().getContentResolver()
-                        .insert(FormsColumns.CONTENT_URI, values);
+                inserts.add(values);
+                queueThumbnails(formDefFile);
+            }
+            if (!inserts.isEmpty()) {
+                int count = Collect.getInstance().getContentResolver().bulkInsert(
+                    FormsColumns.CONTENT_URI, inserts.toArray(new ContentValues[inserts.size()]));
+                Log.i(t, count + " records successfully inserted");
             }
         }
         if ( errors.length() != 0 ) {
         	return errors.toString();
         } else {
-        	return Collect.getInstance().getString(R.string.finished_disk_scan);
+        	return null;
+        }
+    }
+
+
+    /**
+     * Throws away the index, so the next scan goes through every form file. Called when the forms
+     * database is created, as the forms in the index are no longer in it.
+     */
+    public static void invalidateIndex() {
+        sInvalidated = true;
+        new File(INDEX_PATH).delete();
+    }
+
+
+    /**
+     * @return false if the provider couldn't be queried
+     */
+    private static boolean openProvider() {
+        Uri uri =
+            FormsColumns.CONTENT_URI.buildUpon().appendQueryParameter(FormsProviderAPI.LIMIT, "1")
+                    .build();
+        Cursor c =
+            Collect.getInstance().getContentResolver()
+                    .query(uri, new String[] { FormsColumns._ID }, null, null, null);
+        if (c == null) {
+            Log.e(t, "Forms Content Provider returned NULL");
+            return false;
+        }
+        c.close();
+        return true;
+    }
+
+
+    private static void loadIndex() {
+        if (sIndex != null) {
+            return;
+        }
+        sIndex = new HashMap<String, IndexEntry>();
+        File index = new File(INDEX_PATH);
+        if (!index.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(index));
+            // the forms directory's modified time, then a line per form file
+            String line = reader.readLine();
+            long formDirModified = line == null ? 0 : Long.parseLong(line);
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    sIndex.put(fields[0], new IndexEntry(Long.parseLong(fields[1]), Long
+                            .parseLong(fields[2]), fields[3]));
+                }
+            }
+            sFormDirModified = formDirModified;
+        } catch (IOException e) {
+            Log.e(t, "Unable to read disk sync index: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            Log.e(t, "Corrupt disk sync index: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+
+    private static void saveIndex(long formDirModified, HashMap<String, IndexEntry> index) {
+        sFormDirModified = formDirModified;
+        sIndex = index;
+        File temp = new File(INDEX_PATH + ".tmp");
+        Writer w = null;
+        try {
+            w = new FileWriter(temp);
+            w.write(formDirModified + "\n");
+            for (Map.Entry<String, IndexEntry> e : index.entrySet()) {
+                IndexEntry entry = e.getValue();
+                w.write(e.getKey() + "\t" + entry.length + "\t" + entry.modified + "\t"
+                        + entry.md5 + "\n");
+            }
+            w.close();
+            w = null;
+            if (!temp.renameTo(new File(INDEX_PATH))) {
+                Log.e(t, "Unable to rename " + temp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to write disk sync index: " + e.getMessage());
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                }
+            }
         }
     }
 
@@ -226,6 +442,17 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
         return updateValues;
     }
 
+    /**
+     * Queues thumbnail generation for the media of a newly discovered form, which the provider
+     * will place next to the form file.
+     */
+    private void queueThumbnails(File formDefFile) {
+        String path = formDefFile.getAbsolutePath();
+        File mediaDir = new File(path.substring(0, path.lastIndexOf(".")) + "-media");
+        ThumbnailStore.getInstance().generateInBackground(mediaDir, null);
+    }
+
+
     public void setDiskSyncListener(DiskSyncListener l) {
         mListener = l;
     }
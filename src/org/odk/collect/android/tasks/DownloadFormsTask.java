@@ -16,6 +16,7 @@ package org.odk.collect.android.tasks;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
@@ -35,11 +36,14 @@ import org.javarosa.xform.parse.XFormParser;
 import org.kxml2.kdom.Element;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.ExternalDataManager;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.FormDetails;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.DocumentFetchResult;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.SharedMediaStore;
+import org.odk.collect.android.utilities.ThumbnailStore;
 import org.odk.collect.android.utilities.WebUtils;
 
 import android.content.ContentValues;
@@ -162,9 +166,15 @@ public class DownloadFormsTask extends
                 	}
                 	
                 	if ( formMediaPath != null ) {
-                        String error =
-                            downloadManifestAndMediaFiles(formMediaPath, fd,
-                                count, total);
+                        // the shared media it reuses mustn't be collected before the index
+                        // naming it is written
+                        String error;
+                        SharedMediaStore.startDownload();
+                        try {
+                            error = downloadManifestAndMediaFiles(formMediaPath, fd, count, total);
+                        } finally {
+                            SharedMediaStore.finishDownload();
+                        }
                         if (error != null) {
                             message += error;
                         }
@@ -191,6 +201,9 @@ public class DownloadFormsTask extends
             result.put(fd.formName, message);
         }
 
+        // files that updated forms no longer use, and the choice lists imported from them
+        SharedMediaStore.collectGarbage();
+        ExternalDataManager.getInstance().dropUnused();
         return result;
     }
 
@@ -454,7 +467,14 @@ public class DownloadFormsTask extends
         int mediaCount = 0;
         if (files.size() > 0) {
             FileUtils.createFolder(mediaPath);
+            if (!FileUtils.createFolder(SharedMediaStore.STORE_PATH)) {
+                return Collect.getInstance().getString(R.string.access_error,
+                    SharedMediaStore.STORE_PATH);
+            }
             File mediaDir = new File(mediaPath);
+            // each file is fetched only if no form has it yet, the form's folder just names it
+            HashMap<String, File> shared = new HashMap<String, File>();
+            HashMap<String, String> mediaHashes = new HashMap<String, String>();
             for (MediaFile toDownload : files) {
                 if (isCancelled()) {
                     return "cancelled";
@@ -465,28 +485,41 @@ public class DownloadFormsTask extends
                         mediaCount, files.size()), Integer.valueOf(count).toString(), Integer
                             .valueOf(total).toString());
                 try {
-                    File mediaFile = new File(mediaDir, toDownload.filename);
-
-                    String currentFileHash = FileUtils.getMd5Hash(mediaFile);
                     String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
-
-                    if (!mediaFile.exists()) {
-                        downloadFile(mediaFile, toDownload.downloadUrl);
-                    } else {
-                        if (!currentFileHash.contentEquals(downloadFileHash)) {
-                            // if the hashes match, it's the same file
-                            // otherwise delete our current one and replace it with the new one
-                            mediaFile.delete();
-                            downloadFile(mediaFile, toDownload.downloadUrl);
-                        } else {
-                            // exists, and the hash is the same
-                            // no need to download it again
+                    File sharedFile =
+                        SharedMediaStore.getSharedFile(downloadFileHash, toDownload.filename);
+                    shared.put(toDownload.filename, sharedFile);
+                    mediaHashes.put(sharedFile.getName(), downloadFileHash);
+
+                    // if another form (or an earlier version of this one) has it, it's not fetched
+                    if (!sharedFile.exists()) {
+                        // named by its hash, so it mustn't appear until it's known to match
+                        File temp = new File(sharedFile.getAbsolutePath() + ".tmp");
+                        downloadFile(temp, toDownload.downloadUrl);
+                        String currentFileHash = FileUtils.getMd5Hash(temp);
+                        if (currentFileHash == null
+                                || !currentFileHash.equalsIgnoreCase(downloadFileHash)) {
+                            temp.delete();
+                            throw new Exception(Collect.getInstance().getString(
+                                R.string.media_hash_mismatch, toDownload.filename));
+                        }
+                        if (!temp.renameTo(sharedFile)) {
+                            temp.delete();
+                            throw new Exception(Collect.getInstance().getString(
+                                R.string.access_error, sharedFile.getAbsolutePath()));
                         }
                     }
                 } catch (Exception e) {
                     return e.getLocalizedMessage();
                 }
             }
+            try {
+                SharedMediaStore.setIndex(mediaDir, shared);
+            } catch (IOException e) {
+                return e.getLocalizedMessage();
+            }
+            // scale the images down for display while the user gets on with things
+            ThumbnailStore.getInstance().generateInBackground(mediaDir, mediaHashes);
         }
         return null;
     }
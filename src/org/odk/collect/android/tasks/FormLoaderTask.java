@@ -21,10 +21,12 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
 
 import javax.crypto.spec.SecretKeySpec;
 
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.instance.InstanceInitializationFactory;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
@@ -39,8 +41,10 @@ import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.xform.parse.XFormParseException;
 import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.R;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.ExternalDataManager;
 import org.odk.collect.android.jr.extensions.CalendaredDateFormatHandler;
 import org.odk.collect.android.jr.extensions.IntentExtensionParser;
 import org.odk.collect.android.jr.extensions.PollSensorAction;
@@ -51,6 +55,10 @@ import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.ApkUtils;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.InstanceArchiver;
+import org.odk.collect.android.utilities.ReferenceResolver;
+import org.odk.collect.android.utilities.SharedMediaStore;
+import org.odk.collect.android.widgets.ExternalSelectWidget;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -184,30 +192,12 @@ public class FormLoaderTask extends AsyncTask<Uri, String, FormLoaderTask.FECWra
         //TODO: Get a reasonable IIF object
         //iif = something
         
-        try {
-            // import existing data into formdef
-            if (FormEntryActivity.mInstancePath != null) {
-                // This order is important. Import data, then initialize.
-                importData(FormEntryActivity.mInstancePath, fec);
-                fd.initialize(false, iif);
-            } else {
-                fd.initialize(true, iif);
-            }
-            if(mReadOnly) {
-            	fd.getInstance().getRoot().setEnabled(false);
-            }
-        } catch (RuntimeException e) {
-        	e.printStackTrace();
-            mErrorMsg = e.getMessage();
-            return null;
-        }
-        
-
         // set paths to /sdcard/odk/forms/formfilename-media/
         String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
 
         // Remove previous forms
         ReferenceManager._().clearSession();
+        ReferenceResolver.clear();
         
         String formMediaPath = c.getString(c.getColumnIndex(FormsColumns.FORM_MEDIA_PATH));
         
@@ -218,6 +208,8 @@ public class FormLoaderTask extends AsyncTask<Uri, String, FormLoaderTask.FECWra
 		            new RootTranslator("jr://audio/", formMediaPath));
 		        ReferenceManager._().addSessionRootTranslator(
 		            new RootTranslator("jr://video/", formMediaPath));
+		        ReferenceManager._().addSessionRootTranslator(
+		            new RootTranslator("jr://file-csv/", formMediaPath));
 
         } else {
 	        // This should get moved to the Application Class
@@ -234,9 +226,45 @@ public class FormLoaderTask extends AsyncTask<Uri, String, FormLoaderTask.FECWra
 	            new RootTranslator("jr://audio/", "jr://file/forms/" + formFileName + "-media/"));
 	        ReferenceManager._().addSessionRootTranslator(
 	            new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
+	        ReferenceManager._().addSessionRootTranslator(
+	            new RootTranslator("jr://file-csv/", "jr://file/forms/" + formFileName + "-media/"));
         
         }
 
+        // import external choice lists now, while we're off the UI thread, rather than when
+        // their question is first drawn
+        File mediaDir =
+            new File(formMediaPath != null ? formMediaPath : Collect.FORMS_PATH + File.separator
+                    + formFileName + "-media");
+        ExternalDataManager.getInstance().importAll(mediaDir);
+        // the media folder and the shared store aren't written while the form is open
+        ReferenceResolver.addMediaRoot(mediaDir.getPath());
+        ReferenceResolver.addMediaRoot(SharedMediaStore.STORE_PATH);
+
+        // the media paths are set first, answers from external choice lists are looked up in them
+        try {
+            // import existing data into formdef
+            if (FormEntryActivity.mInstancePath != null) {
+                // sent instances may have been packed away, they're extracted as they're opened
+                if (!InstanceArchiver.getInstance().restore(FormEntryActivity.mInstancePath)) {
+                    mErrorMsg = context.getString(R.string.instance_restore_error);
+                    return null;
+                }
+                // This order is important. Import data, then initialize.
+                importData(FormEntryActivity.mInstancePath, fec);
+                fd.initialize(false, iif);
+            } else {
+                fd.initialize(true, iif);
+            }
+            if(mReadOnly) {
+            	fd.getInstance().getRoot().setEnabled(false);
+            }
+        } catch (RuntimeException e) {
+        	e.printStackTrace();
+            mErrorMsg = e.getMessage();
+            return null;
+        }
+
         // clean up vars
         fis = null;
         fd = null;
@@ -268,10 +296,15 @@ public class FormLoaderTask extends AsyncTask<Uri, String, FormLoaderTask.FECWra
             // populate the data model
             TreeReference tr = TreeReference.rootRef();
             tr.add(templateRoot.getName(), TreeReference.INDEX_UNBOUND);
+            // answers from external choice lists aren't among their questions' choices, so
+            // they're read before the import drops them and put back afterwards
+            HashMap<TreeReference, IAnswerData> externalAnswers =
+                ExternalSelectWidget.getSavedAnswers(fec.getModel().getForm(), savedRoot);
             templateRoot.populate(savedRoot, fec.getModel().getForm());
 
             // populated model to current form
             fec.getModel().getForm().getInstance().setRoot(templateRoot);
+            ExternalSelectWidget.restoreSavedAnswers(fec.getModel().getForm(), externalAnswers);
 
             // fix any language issues
             // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
@@ -32,6 +32,7 @@ import org.odk.collect.android.listeners.InstanceUploaderListener;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.InstanceArchiver;
 import org.odk.collect.android.utilities.WebUtils;
 
 import android.content.ContentValues;
@@ -72,10 +73,14 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
     // it can take up to 27 seconds to spin up Aggregate
     private static final int CONNECTION_TIMEOUT = 45000; 
     private static final String fail = "Error: ";
+    // statuses are written as soon as they're known, but the lists are only told this many at a
+    // time
+    private static final int STATUS_BATCH_SIZE = 20;
     private String mAuth = "";
 
     private URI mAuthRequestingServer;
     HashMap<String, String> mResults;
+    private int mUnnotified = 0;
 
 
     public void setAuth(String auth) {
@@ -106,21 +111,21 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
             mResults.put(id,
                 fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
             cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-            Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+            updateStatus(toUpdate, cv);
             return true;
         } catch (URISyntaxException e) {
             e.printStackTrace();
             mResults.put(id,
                 fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
             cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-            Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+            updateStatus(toUpdate, cv);
             return true;
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             mResults.put(id,
                 fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
             cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-            Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+            updateStatus(toUpdate, cv);
             return true;
         }
 
@@ -169,8 +174,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
                                             + uNew.toString());
                                 cv.put(InstanceColumns.STATUS,
                                     InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                                Collect.getInstance().getContentResolver()
-                                        .update(toUpdate, cv, null, null);
+                                updateStatus(toUpdate, cv);
                                 return true;
                             }
                         } catch (Exception e) {
@@ -178,8 +182,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
                             mResults.put(id, fail + urlString + " " + e.getMessage());
                             cv.put(InstanceColumns.STATUS,
                                 InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                            Collect.getInstance().getContentResolver()
-                                    .update(toUpdate, cv, null, null);
+                            updateStatus(toUpdate, cv);
                             return true;
                         }
                     }
@@ -210,8 +213,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
                                     + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ");
                         cv.put(InstanceColumns.STATUS,
                             InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                        Collect.getInstance().getContentResolver()
-                                .update(toUpdate, cv, null, null);
+                        updateStatus(toUpdate, cv);
                         return true;
                     }
                 }
@@ -220,35 +222,35 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
                 Log.e(t, e.getMessage());
                 mResults.put(id, fail + "Client Protocol Exception");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                updateStatus(toUpdate, cv);
                 return true;
             } catch (ConnectTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.getMessage());
                 mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                updateStatus(toUpdate, cv);
                 return true;
             } catch (UnknownHostException e) {
                 e.printStackTrace();
                 mResults.put(id, fail + e.getMessage() + " :: Network Connection Failed");
                 Log.e(t, e.getMessage());
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                updateStatus(toUpdate, cv);
                 return true;
             } catch (SocketTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.getMessage());
                 mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                updateStatus(toUpdate, cv);
                 return true;
             } catch (Exception e) {
                 e.printStackTrace();
                 mResults.put(id, fail + "Generic Exception");
                 Log.e(t, e.getMessage());
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                updateStatus(toUpdate, cv);
                 return true;
             }
         }
@@ -284,7 +286,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
         if (!instanceFile.exists() && !submissionFile.exists()) {
             mResults.put(id, fail + "instance XML file does not exist!");
             cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-            Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+            updateStatus(toUpdate, cv);
             return true;
         }
 
@@ -460,15 +462,14 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
                     }
                     cv.put(InstanceColumns.STATUS,
                         InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                    Collect.getInstance().getContentResolver()
-                            .update(toUpdate, cv, null, null);
+                    updateStatus(toUpdate, cv);
                     return true;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 mResults.put(id, fail + "Generic Exception. " + e.getMessage());
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
-                Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+                updateStatus(toUpdate, cv);
                 return true;
             }
         }
@@ -476,7 +477,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
         // if it got here, it must have worked
         mResults.put(id, Collect.getInstance().getString(R.string.success));
         cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMITTED);
-        Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+        updateStatus(toUpdate, cv);
         return true;
     }
 
@@ -531,18 +532,46 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, HashMap<Strin
 	                if ( !uploadOneSubmission(urlString, id, instance, toUpdate, httpclient, localContext, uriRemap) ) {
 	                	return null; // get credentials...
 	                }
+	                if (mUnnotified >= STATUS_BATCH_SIZE) {
+	                    notifyStatusChanges();
+	                }
 	            }
 	        }
         } finally {
             if (c != null) {
                 c.close();
             }
+            notifyStatusChanges();
         }
 
+        // what was just sent no longer needs a folder of its own
+        InstanceArchiver.getInstance().archiveInBackground();
         return mResults;
     }
 
 
+    /**
+     * Writes an instance's status at once, so that a run cut short never sends it again, but
+     * leaves telling the lists to {@link #notifyStatusChanges()}.
+     */
+    private void updateStatus(Uri toUpdate, ContentValues cv) {
+        Uri quiet =
+            toUpdate.buildUpon().appendQueryParameter(InstanceProviderAPI.NOTIFY, "false")
+                    .build();
+        Collect.getInstance().getContentResolver().update(quiet, cv, null, null);
+        mUnnotified++;
+    }
+
+
+    private void notifyStatusChanges() {
+        if (mUnnotified > 0) {
+            Collect.getInstance().getContentResolver()
+                    .notifyChange(InstanceColumns.CONTENT_URI, null);
+            mUnnotified = 0;
+        }
+    }
+
+
     @Override
     protected void onPostExecute(HashMap<String, String> value) {
         synchronized (this) {
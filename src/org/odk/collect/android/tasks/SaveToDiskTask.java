@@ -23,6 +23,7 @@ import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
@@ -33,15 +34,19 @@ import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.CapturedImageProcessor;
 import org.odk.collect.android.utilities.EncryptionUtils;
 import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
 
@@ -50,6 +55,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -68,6 +74,12 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
     private String mInstanceName;
     private Context context;
     private Uri instanceContentUri;
+
+    // for the instance summary, see putSummary()
+    private int mQuestionCount;
+    private int mAnsweredCount;
+    private String mLastQuestion;
+    private ContentValues mSummary;
     
     SecretKeySpec symetricKey;
 
@@ -104,6 +116,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
 
         FormEntryActivity.mFormController.postProcessInstance();
 
+        // photos still being shrunk would otherwise be encrypted (or left) at full size
+        CapturedImageProcessor.getInstance().waitForPending();
+
         if (exportData(mMarkCompleted)) {
         	return mSave ? SAVED_AND_EXIT : SAVED;
         }
@@ -128,6 +143,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
             }
             // update this whether or not the status is complete...
             values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditAfterCompleted));
+            putSummary(values);
             context.getContentResolver().update(mUri, values, null, null);
         } else if (context.getContentResolver().getType(mUri) == FormsColumns.CONTENT_ITEM_TYPE) {
             // If FormEntryActivity was started with a form, then it's likely the first time we're
@@ -146,6 +162,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
             }
             // update this whether or not the status is complete...
             values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditAfterCompleted));
+            putSummary(values);
 
             String where = InstanceColumns.INSTANCE_FILE_PATH + "=?";
             String[] whereArgs = {
@@ -186,6 +203,80 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
         }
     }
 
+    /**
+     * Adds the instance's summary to values, along with the answers to the questions named in the
+     * searchable answers preference (wherever they are in the instance, including every repeat)
+     * for the search index. The question counts come from the walk in
+     * {@link #validateAnswers(Boolean)}; the rest is worked out on the first call.
+     */
+    private void putSummary(ContentValues values) {
+        if (mSummary == null) {
+            mSummary = new ContentValues();
+            mSummary.put(InstanceColumns.QUESTION_COUNT, mQuestionCount);
+            mSummary.put(InstanceColumns.ANSWERED_COUNT, mAnsweredCount);
+            mSummary.put(InstanceColumns.LAST_QUESTION, mLastQuestion);
+
+            // whatever was captured alongside the instance, before any encryption
+            File instanceXml = new File(FormEntryActivity.mInstancePath);
+            int attachments = 0;
+            long bytes = 0;
+            File[] files = instanceXml.getParentFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    if (f.isFile() && !f.equals(instanceXml) && !name.equals("submission.xml")
+                            && !name.endsWith(".enc")) {
+                        attachments++;
+                        bytes += f.length();
+                    }
+                }
+            }
+            mSummary.put(InstanceColumns.ATTACHMENT_COUNT, attachments);
+            mSummary.put(InstanceColumns.ATTACHMENT_BYTES, bytes);
+
+            String names =
+                PreferenceManager.getDefaultSharedPreferences(context).getString(
+                    PreferencesActivity.KEY_SEARCH_FIELDS, "");
+            HashSet<String> fields = new HashSet<String>();
+            for (String name : names.split("[,\\s]+")) {
+                if (name.length() > 0) {
+                    fields.add(name);
+                }
+            }
+            StringBuilder searchText = new StringBuilder();
+            StringBuilder keyFields = new StringBuilder();
+            if (!fields.isEmpty()) {
+                collectAnswers(FormEntryActivity.mFormController.getInstance().getRoot(), fields,
+                    searchText, keyFields);
+            }
+            mSummary.put(InstanceColumns.SEARCH_TEXT,
+                searchText.length() == 0 ? null : searchText.toString());
+            mSummary.put(InstanceColumns.KEY_FIELDS,
+                keyFields.length() == 0 ? null : keyFields.toString());
+        }
+        values.putAll(mSummary);
+    }
+
+
+    private static void collectAnswers(TreeElement e, HashSet<String> fields,
+            StringBuilder searchText, StringBuilder keyFields) {
+        if (fields.contains(e.getName()) && e.getValue() != null) {
+            String answer = e.getValue().getDisplayText();
+            if (answer != null && answer.length() > 0) {
+                if (searchText.length() > 0) {
+                    searchText.append('\n');
+                    keyFields.append('\n');
+                }
+                searchText.append(answer);
+                keyFields.append(e.getName()).append('=').append(answer);
+            }
+        }
+        for (int i = 0; i < e.getNumChildren(); i++) {
+            collectAnswers(e.getChildAt(i), fields, searchText, keyFields);
+        }
+    }
+
+
     /**
      * Write's the data to the sdcard, and updates the instances content provider.
      * In theory we don't have to write to disk, and this is where you'd add
@@ -378,18 +469,29 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
      */
     private int validateAnswers(Boolean markCompleted) {
         FormIndex i = FormEntryActivity.mFormController.getFormIndex();
+        mLastQuestion = i.isInForm() ? i.getReference().toString() : null;
+        mQuestionCount = 0;
+        mAnsweredCount = 0;
         FormEntryActivity.mFormController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
 
         int event;
         while ((event =
             FormEntryActivity.mFormController.stepToNextEvent(FormController.STEP_OVER_GROUP)) != FormEntryController.EVENT_END_OF_FORM) {
             if (event != FormEntryController.EVENT_QUESTION) {
+                if (event == FormEntryController.EVENT_GROUP
+                        && FormEntryActivity.mFormController.indexIsInFieldList()) {
+                    // the next step goes over the group, count its questions for the summary now
+                    for (FormEntryPrompt prompt : FormEntryActivity.mFormController
+                            .getQuestionPrompts()) {
+                        countQuestion(prompt);
+                    }
+                }
                 continue;
             } else {
+                FormEntryPrompt prompt = FormEntryActivity.mFormController.getQuestionPrompt();
+                countQuestion(prompt);
                 int saveStatus =
-                    FormEntryActivity.mFormController
-                            .answerQuestion(FormEntryActivity.mFormController.getQuestionPrompt()
-                                    .getAnswerValue());
+                    FormEntryActivity.mFormController.answerQuestion(prompt.getAnswerValue());
                 if (markCompleted && saveStatus != FormEntryController.ANSWER_OK) {
                     return saveStatus;
                 }
@@ -400,4 +502,12 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
         return VALIDATED;
     }
 
+
+    private void countQuestion(FormEntryPrompt prompt) {
+        mQuestionCount++;
+        if (prompt.getAnswerValue() != null) {
+            mAnsweredCount++;
+        }
+    }
+
 }
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.widget.ImageView;
+
+/**
+ * Decodes widget images, and encodes QR codes, off the UI thread. A view asking for an image gets
+ * it immediately if it is already in the {@link BitmapCache}, otherwise it shows a placeholder and
+ * the bitmap is set once it is ready. Requests are grouped by the widget that owns them so that
+ * everything still pending for a widget can be cancelled when it is detached from the window, and
+ * restarted if it is attached again.
+ *
+ * All public methods must be called from the UI thread.
+ */
+public class AsyncBitmapLoader {
+    private final static String t = "AsyncBitmapLoader";
+
+    public static final int PLACEHOLDER = android.R.drawable.ic_menu_gallery;
+    public static final int BROKEN_IMAGE = android.R.drawable.ic_menu_report_image;
+
+    /**
+     * Optional callback for widgets that need to react to a decoded image (e.g. to re-measure).
+     */
+    public interface BitmapLoadListener {
+        public void bitmapLoaded(ImageView view, Bitmap b);
+
+
+        /**
+         * @param f the image file, or null for a generated bitmap
+         */
+        public void bitmapFailed(ImageView view, File f);
+    }
+
+    private static AsyncBitmapLoader singleton = null;
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+    private final HashMap<ImageView, Request> mPending = new HashMap<ImageView, Request>();
+    private final HashMap<View, ArrayList<Request>> mByOwner =
+        new HashMap<View, ArrayList<Request>>();
+
+
+    public static synchronized AsyncBitmapLoader getInstance() {
+        if (singleton == null) {
+            singleton = new AsyncBitmapLoader();
+        }
+        return singleton;
+    }
+
+
+    private AsyncBitmapLoader() {
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, t);
+            }
+        });
+    }
+
+
+    /**
+     * Sets the image scaled to the given size into view, decoding it in the background unless it
+     * is already cached. Any earlier request for the same view is cancelled.
+     *
+     * @param owner the widget the view belongs to, used by {@link #cancel(View)}
+     * @param view the view the bitmap is set into
+     * @param f the image file
+     * @param screenHeight
+     * @param screenWidth
+     * @param listener may be null
+     */
+    public void load(View owner, ImageView view, final File f, final int screenHeight,
+            final int screenWidth, BitmapLoadListener listener) {
+        load(owner, view, BitmapCache.getKey(f, screenHeight, screenWidth), f, new Producer() {
+            public Bitmap produce() {
+                return BitmapCache.getInstance().getBitmapScaledToDisplay(f, screenHeight,
+                    screenWidth);
+            }
+        }, listener);
+    }
+
+
+    /**
+     * Sets a QR code for contents, dimension pixels square, into view, encoding it in the
+     * background unless it is already cached.
+     *
+     * @see #load(View, ImageView, File, int, int, BitmapLoadListener)
+     */
+    public void loadQRCode(View owner, ImageView view, final String contents,
+            final int dimension, BitmapLoadListener listener) {
+        load(owner, view, QRCodeEncoder.getKey(contents, dimension), null, new Producer() {
+            public Bitmap produce() {
+                return QRCodeEncoder.getBitmap(contents, dimension);
+            }
+        }, listener);
+    }
+
+
+    private void load(View owner, ImageView view, String key, File f, Producer producer,
+            BitmapLoadListener listener) {
+        Request previous = mPending.remove(view);
+        if (previous != null) {
+            forget(previous);
+            cancelRequest(previous);
+        }
+
+        Bitmap cached = BitmapCache.getInstance().get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            if (listener != null) {
+                listener.bitmapLoaded(view, cached);
+            }
+            return;
+        }
+
+        view.setImageResource(PLACEHOLDER);
+        Request r = new Request(owner, view, key, f, producer, listener);
+        mPending.put(view, r);
+        ArrayList<Request> owned = mByOwner.get(owner);
+        if (owned == null) {
+            owned = new ArrayList<Request>();
+            mByOwner.put(owner, owned);
+        }
+        owned.add(r);
+        r.mFuture = mExecutor.submit(r);
+    }
+
+
+    /**
+     * Cancels every request still pending for views owned by the given widget.
+     *
+     * @return the cancelled requests, for the widget to hold on to and pass to
+     *         {@link #restart(Cancelled)} if it is attached again; null if there were none
+     */
+    public Cancelled cancel(View owner) {
+        ArrayList<Request> owned = mByOwner.remove(owner);
+        if (owned == null) {
+            return null;
+        }
+        ArrayList<Request> cancelled = new ArrayList<Request>();
+        for (Request r : owned) {
+            if (mPending.get(r.mView) == r) {
+                mPending.remove(r.mView);
+                cancelled.add(r);
+            }
+            cancelRequest(r);
+        }
+        return cancelled.isEmpty() ? null : new Cancelled(cancelled);
+    }
+
+
+    /**
+     * Starts the requests {@link #cancel(View)} returned again, except for views that have another
+     * request pending by now.
+     */
+    public void restart(Cancelled cancelled) {
+        for (Request r : cancelled.mRequests) {
+            if (!mPending.containsKey(r.mView)) {
+                load(r.mOwner, r.mView, r.mKey, r.mFile, r.mProducer, r.mListener);
+            }
+        }
+    }
+
+
+    /**
+     * Cancels the request still pending for view, e.g. a recycled list row that no longer shows an
+     * image, so that a late result isn't set into it.
+     */
+    public void cancelLoad(ImageView view) {
+        Request r = mPending.remove(view);
+        if (r != null) {
+            forget(r);
+            cancelRequest(r);
+        }
+    }
+
+
+    private void cancelRequest(Request r) {
+        r.mCancelled = true;
+        if (r.mFuture != null) {
+            r.mFuture.cancel(false);
+        }
+    }
+
+
+    private void forget(Request r) {
+        ArrayList<Request> owned = mByOwner.get(r.mOwner);
+        if (owned != null) {
+            owned.remove(r);
+            if (owned.isEmpty()) {
+                mByOwner.remove(r.mOwner);
+            }
+        }
+    }
+
+
+    private void deliver(Request r, Bitmap b) {
+        forget(r);
+        if (r.mCancelled || mPending.get(r.mView) != r) {
+            return;
+        }
+        mPending.remove(r.mView);
+        if (b != null) {
+            r.mView.setImageBitmap(b);
+            if (r.mListener != null) {
+                r.mListener.bitmapLoaded(r.mView, b);
+            }
+        } else {
+            r.mView.setImageResource(BROKEN_IMAGE);
+            if (r.mListener != null) {
+                r.mListener.bitmapFailed(r.mView, r.mFile);
+            }
+        }
+    }
+
+    /**
+     * Requests cancelled with their widget. Only the widget holds them, so they go when it does.
+     */
+    public static class Cancelled {
+        private final ArrayList<Request> mRequests;
+
+
+        private Cancelled(ArrayList<Request> requests) {
+            mRequests = requests;
+        }
+    }
+
+    /**
+     * Builds a bitmap on the loader thread.
+     */
+    private interface Producer {
+        public Bitmap produce();
+    }
+
+    private class Request implements Runnable {
+        final View mOwner;
+        final ImageView mView;
+        final String mKey;
+        final File mFile;
+        final Producer mProducer;
+        final BitmapLoadListener mListener;
+        Future<?> mFuture;
+        volatile boolean mCancelled = false;
+
+
+        Request(View owner, ImageView view, String key, File f, Producer producer,
+                BitmapLoadListener listener) {
+            mOwner = owner;
+            mView = view;
+            mKey = key;
+            mFile = f;
+            mProducer = producer;
+            mListener = listener;
+        }
+
+
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Bitmap b = null;
+            try {
+                b = mProducer.produce();
+            } catch (OutOfMemoryError e) {
+                Log.e(t, "Out of memory producing " + mKey);
+            } catch (RuntimeException e) {
+                // the executor's Future would swallow it and the placeholder never be replaced
+                Log.e(t, "Error producing " + mKey + ": " + e.getMessage());
+            }
+            if (b == null) {
+                Log.e(t, "Unable to produce " + mKey);
+            }
+            final Bitmap result = b;
+            mHandler.post(new Runnable() {
+                public void run() {
+                    deliver(Request.this, result);
+                }
+            });
+        }
+    }
+}
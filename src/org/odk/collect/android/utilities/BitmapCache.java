@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * App-wide least recently used cache of decoded form media, shared by every widget that shows an
+ * image so that rebuilding a screen (relevance refreshes, rotation, swiping back) doesn't decode
+ * the same files again. Entries are keyed by path, last modified time and target size, so a file
+ * that is replaced on disk is decoded afresh. The cache is bounded by the bytes held by its bitmaps
+ * and is emptied by {@link org.odk.collect.android.application.Collect} when the system reports
+ * memory pressure.
+ *
+ * Bitmaps handed out by this cache are shared and must never be recycled or drawn into by callers.
+ */
+public class BitmapCache {
+    private final static String t = "BitmapCache";
+
+    private static BitmapCache singleton = null;
+
+    private final LinkedHashMap<String, Bitmap> mBitmaps =
+        new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+
+    public static synchronized BitmapCache getInstance() {
+        if (singleton == null) {
+            // an eighth of the heap leaves plenty of room for the form itself
+            singleton = new BitmapCache(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return singleton;
+    }
+
+
+    BitmapCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+
+    /**
+     * Cached equivalent of {@link FileUtils#getBitmapScaledToDisplay(File, int, int)}. On a miss
+     * the smallest pre-scaled copy from the {@link ThumbnailStore} that still covers the size the
+     * image is shown at, fitted to the box, is decoded if there is one.
+     *
+     * @return the shared bitmap, or null if the file could not be decoded
+     */
+    public Bitmap getBitmapScaledToDisplay(File f, int screenHeight, int screenWidth) {
+        String key = getKey(f, screenHeight, screenWidth);
+        Bitmap b = get(key);
+        if (b == null) {
+            File source = f;
+            int[] size = BitmapDecoder.getScaledSize(f, screenHeight, screenWidth);
+            if (size != null) {
+                source = ThumbnailStore.getInstance().getClosest(f, Math.max(size[0], size[1]));
+            }
+            b = FileUtils.getBitmapScaledToDisplay(source, screenHeight, screenWidth);
+            if (b != null) {
+                put(key, b);
+            }
+        }
+        return b;
+    }
+
+
+    public static String getKey(File f, int height, int width) {
+        return f.getAbsolutePath() + "|" + f.lastModified() + "|" + height + "x" + width;
+    }
+
+
+    public synchronized Bitmap get(String key) {
+        return mBitmaps.get(key);
+    }
+
+
+    public synchronized void put(String key, Bitmap b) {
+        long size = sizeOf(b);
+        if (size > mMaxBytes) {
+            // would evict everything else and still not fit
+            return;
+        }
+        Bitmap old = mBitmaps.put(key, b);
+        if (old != null) {
+            mBytes -= sizeOf(old);
+        }
+        mBytes += size;
+        trimTo(mMaxBytes);
+    }
+
+
+    /**
+     * Drops everything but the most recently used bitmaps until at most maxBytes are held.
+     */
+    public synchronized void trimTo(long maxBytes) {
+        Iterator<Map.Entry<String, Bitmap>> it = mBitmaps.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            mBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+
+    public synchronized void clear() {
+        Log.i(t, "Clearing " + mBitmaps.size() + " bitmaps (" + mBytes + " bytes)");
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+
+    private static long sizeOf(Bitmap b) {
+        return (long) b.getRowBytes() * b.getHeight();
+    }
+}
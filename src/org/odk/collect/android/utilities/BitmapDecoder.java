@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decodes images to the size they will be displayed at.
+ *
+ * Bounds are read once per file (and remembered), the file is subsampled by the largest power of
+ * two that keeps it at least as big as the target box, and the result is then scaled to fit the
+ * box exactly. Opaque (JPEG) images are decoded as RGB_565, halving their memory. Where the
+ * platform allows it the full size intermediate of one decode is reused for the next image of
+ * the same dimensions, which is the common case for a set of choice images.
+ *
+ * {@link #getScaledSize(File, int, int)} answers what size a decode would produce without
+ * touching any pixels, for layout measurements.
+ */
+public class BitmapDecoder {
+    private final static String t = "BitmapDecoder";
+
+    private static final int MAX_BOUNDS = 256;
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    /**
+     * Bounds by path and modification time, most recently used last.
+     */
+    private static final LinkedHashMap<String, Bounds> sBounds =
+        new LinkedHashMap<String, Bounds>(32, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bounds> eldest) {
+                return size() > MAX_BOUNDS;
+            }
+        };
+
+    /**
+     * Discarded full size intermediates available for reuse, by dimensions and config.
+     */
+    private static final HashMap<String, Bitmap> sReusable = new HashMap<String, Bitmap>();
+
+    private static final ThreadLocal<byte[]> sTempStorage = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TEMP_STORAGE_SIZE];
+        }
+    };
+
+    public static final class Bounds {
+        public final int width;
+        public final int height;
+        public final boolean opaque;
+
+
+        Bounds(int width, int height, boolean opaque) {
+            this.width = width;
+            this.height = height;
+            this.opaque = opaque;
+        }
+    }
+
+
+    /**
+     * @return the dimensions of the image, or null if it can't be decoded
+     */
+    public static Bounds getBounds(File f) {
+        String key = f.getAbsolutePath() + "|" + f.lastModified();
+        synchronized (sBounds) {
+            Bounds b = sBounds.get(key);
+            if (b != null) {
+                return b;
+            }
+        }
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        o.inTempStorage = sTempStorage.get();
+        BitmapFactory.decodeFile(f.getAbsolutePath(), o);
+        if (o.outWidth <= 0 || o.outHeight <= 0) {
+            return null;
+        }
+        Bounds b = new Bounds(o.outWidth, o.outHeight, "image/jpeg".equals(o.outMimeType));
+        synchronized (sBounds) {
+            sBounds.put(key, b);
+        }
+        return b;
+    }
+
+
+    /**
+     * The largest power of two the image can be subsampled by and still cover the target box.
+     */
+    public static int computeSampleSize(int width, int height, int targetHeight, int targetWidth) {
+        float ratio = Math.max((float) width / targetWidth, (float) height / targetHeight);
+        int sample = 1;
+        while (sample * 2 <= ratio) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+
+    /**
+     * Computes the size {@link #decode(File, int, int)} would return, without decoding.
+     *
+     * @return {width, height} or null if the file is not an image
+     */
+    public static int[] getScaledSize(File f, int targetHeight, int targetWidth) {
+        Bounds b = getBounds(f);
+        if (b == null) {
+            return null;
+        }
+        return fit(b.width, b.height, targetHeight, targetWidth);
+    }
+
+
+    private static int[] fit(int width, int height, int targetHeight, int targetWidth) {
+        if (width <= targetWidth && height <= targetHeight) {
+            // never scale up
+            return new int[] {
+                    width, height
+            };
+        }
+        float scale = Math.min((float) targetWidth / width, (float) targetHeight / height);
+        return new int[] {
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))
+        };
+    }
+
+
+    /**
+     * Decodes f to fit within targetWidth x targetHeight, preserving its aspect ratio. Images
+     * smaller than the target are returned at their own size.
+     *
+     * @return the bitmap, or null if the file could not be decoded
+     */
+    public static Bitmap decode(File f, int targetHeight, int targetWidth) {
+        Bounds b = getBounds(f);
+        if (b == null) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = computeSampleSize(b.width, b.height, targetHeight, targetWidth);
+        options.inPreferredConfig = b.opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        options.inTempStorage = sTempStorage.get();
+
+        int[] size = fit(b.width, b.height, targetHeight, targetWidth);
+        boolean needsScaling =
+            b.width / options.inSampleSize != size[0] || b.height / options.inSampleSize != size[1];
+        if (needsScaling) {
+            prepareForReuse(options, b);
+        }
+
+        Bitmap sampled = decodeFile(f, options);
+        if (sampled == null) {
+            return null;
+        }
+        if (sampled.getWidth() == size[0] && sampled.getHeight() == size[1]) {
+            return sampled;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, size[0], size[1], true);
+        if (scaled != sampled) {
+            releaseForReuse(sampled);
+        }
+        Log.i(t, "Decoded " + f.getName() + " (" + b.width + "x" + b.height + ") at "
+                + size[0] + "x" + size[1] + " with sample size " + options.inSampleSize);
+        return scaled;
+    }
+
+
+    private static Bitmap decodeFile(File f, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            // the reused bitmap was rejected, try again without it
+            Log.w(t, "Unable to reuse bitmap for " + f.getName() + ": " + e.getMessage());
+            clearReuse(options);
+            return BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+        }
+    }
+
+
+    private static String reuseKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + "|" + config;
+    }
+
+
+    /**
+     * Before KitKat a bitmap can only be decoded into one of exactly the same size, without
+     * subsampling, which is exactly the case of a full size intermediate we are about to scale.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void prepareForReuse(BitmapFactory.Options options, Bounds b) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || options.inSampleSize != 1) {
+            return;
+        }
+        options.inMutable = true;
+        synchronized (sReusable) {
+            options.inBitmap =
+                sReusable.remove(reuseKey(b.width, b.height, options.inPreferredConfig));
+        }
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void clearReuse(BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            options.inBitmap = null;
+        }
+    }
+
+
+    private static void releaseForReuse(Bitmap b) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && b.isMutable()) {
+            synchronized (sReusable) {
+                // one spare per size is plenty for a screen of same-sized choice images
+                Bitmap previous =
+                    sReusable.put(reuseKey(b.getWidth(), b.getHeight(), b.getConfig()), b);
+                if (previous != null && previous != b) {
+                    previous.recycle();
+                }
+            }
+        } else {
+            b.recycle();
+        }
+    }
+
+
+    /**
+     * Drops the spare intermediates, e.g. when memory is low.
+     */
+    public static void clearReusable() {
+        synchronized (sReusable) {
+            for (Bitmap b : sReusable.values()) {
+                b.recycle();
+            }
+            sReusable.clear();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.odk.collect.android.preferences.PreferencesActivity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Shrinks photos once they've been placed in an instance folder. Cameras write full sensor
+ * resolution images which then have to be hashed, maybe encrypted, and uploaded; when the
+ * {@link PreferencesActivity#KEY_IMAGE_MAX_DIMENSION} preference is set, captured and chosen
+ * images are downsampled to fit within that many pixels and recompressed at
+ * {@link PreferencesActivity#KEY_IMAGE_QUALITY}, keeping their EXIF orientation, date and
+ * location.
+ *
+ * Images are rewritten in place on a background thread, through a temporary file that is renamed
+ * over the original, so the answer can point at the file straight away and anything reading it
+ * sees either the original or the finished copy. Code about to read instance files in bulk (e.g.
+ * saving) should call {@link #waitForPending()} first.
+ */
+public class CapturedImageProcessor {
+    private final static String t = "CapturedImageProcessor";
+
+    /**
+     * Preference value meaning images are kept as captured.
+     */
+    public static final String KEEP_ORIGINAL = "0";
+    public static final String DEFAULT_QUALITY = "85";
+
+    private static CapturedImageProcessor singleton = null;
+
+    private final ExecutorService mExecutor;
+    private int mPending = 0;
+
+
+    public static synchronized CapturedImageProcessor getInstance() {
+        if (singleton == null) {
+            singleton = new CapturedImageProcessor();
+        }
+        return singleton;
+    }
+
+
+    private CapturedImageProcessor() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, t);
+            }
+        });
+    }
+
+
+    /**
+     * Queues f to be shrunk according to the current preferences. Does nothing if they say to
+     * keep images as captured.
+     */
+    public void processInBackground(Context context, final File f) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        final int maxDimension;
+        final int quality;
+        try {
+            maxDimension =
+                Integer.parseInt(settings.getString(PreferencesActivity.KEY_IMAGE_MAX_DIMENSION,
+                    KEEP_ORIGINAL));
+            quality =
+                Integer.parseInt(settings.getString(PreferencesActivity.KEY_IMAGE_QUALITY,
+                    DEFAULT_QUALITY));
+        } catch (NumberFormatException e) {
+            Log.e(t, "Invalid image preferences: " + e.getMessage());
+            return;
+        }
+        if (maxDimension <= 0) {
+            return;
+        }
+
+        synchronized (this) {
+            mPending++;
+        }
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    process(f, maxDimension, quality);
+                } finally {
+                    synchronized (CapturedImageProcessor.this) {
+                        mPending--;
+                        CapturedImageProcessor.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Blocks until every queued image has been processed. Must not be called on the UI thread.
+     */
+    public synchronized void waitForPending() {
+        while (mPending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Shrinks f in place on the calling thread.
+     *
+     * @return true if f was rewritten
+     */
+    public static boolean process(File f, int maxDimension, int quality) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getAbsolutePath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            Log.e(t, "Not an image: " + f.getAbsolutePath());
+            return false;
+        }
+        if (bounds.outWidth <= maxDimension && bounds.outHeight <= maxDimension) {
+            // already small enough, recompressing would only lose quality
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        long originalLength = f.length();
+        Bitmap b = null;
+        File tmp = new File(f.getAbsolutePath() + ".tmp");
+        try {
+            b = decode(f, bounds.outWidth, bounds.outHeight, maxDimension);
+            if (b == null) {
+                return false;
+            }
+
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                if (!b.compress(Bitmap.CompressFormat.JPEG, quality, os)) {
+                    throw new IOException("Compression failed");
+                }
+            } finally {
+                os.close();
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ECLAIR) {
+                Exif.copy(f, tmp);
+            }
+
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Unable to rename " + tmp.getAbsolutePath());
+            }
+            Log.i(t, "Shrunk " + f.getName() + " from " + bounds.outWidth + "x"
+                    + bounds.outHeight + " (" + originalLength + " bytes) to " + b.getWidth()
+                    + "x" + b.getHeight() + " (" + f.length() + " bytes) in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        } catch (IOException e) {
+            Log.e(t, "Unable to shrink " + f.getAbsolutePath() + ": " + e.getMessage());
+            tmp.delete();
+            return false;
+        } catch (OutOfMemoryError e) {
+            Log.e(t, "Out of memory shrinking " + f.getAbsolutePath());
+            tmp.delete();
+            return false;
+        } finally {
+            if (b != null) {
+                b.recycle();
+            }
+        }
+    }
+
+
+    private static Bitmap decode(File f, int width, int height, int maxDimension) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize =
+            BitmapDecoder.computeSampleSize(width, height, maxDimension, maxDimension);
+        Bitmap sampled = BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+        if (sampled == null) {
+            return null;
+        }
+        float scale =
+            Math.min((float) maxDimension / sampled.getWidth(), (float) maxDimension
+                    / sampled.getHeight());
+        if (scale >= 1) {
+            return sampled;
+        }
+        Bitmap scaled =
+            Bitmap.createScaledBitmap(sampled, Math.max(1, Math.round(sampled.getWidth() * scale)),
+                Math.max(1, Math.round(sampled.getHeight() * scale)), true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Kept apart so that ExifInterface, which needs Android 2.0, is only loaded where it exists.
+     */
+    private static class Exif {
+        private static final String[] TAGS = {
+                ExifInterface.TAG_ORIENTATION, ExifInterface.TAG_DATETIME,
+                ExifInterface.TAG_MAKE, ExifInterface.TAG_MODEL, ExifInterface.TAG_FLASH,
+                ExifInterface.TAG_WHITE_BALANCE, ExifInterface.TAG_GPS_LATITUDE,
+                ExifInterface.TAG_GPS_LATITUDE_REF, ExifInterface.TAG_GPS_LONGITUDE,
+                ExifInterface.TAG_GPS_LONGITUDE_REF
+        };
+
+
+        static void copy(File from, File to) throws IOException {
+            ExifInterface source = new ExifInterface(from.getAbsolutePath());
+            ExifInterface dest = new ExifInterface(to.getAbsolutePath());
+            boolean any = false;
+            for (String tag : TAGS) {
+                String value = source.getAttribute(tag);
+                if (value != null) {
+                    dest.setAttribute(tag, value);
+                    any = true;
+                }
+            }
+            if (any) {
+                dest.saveAttributes();
+            }
+        }
+    }
+}
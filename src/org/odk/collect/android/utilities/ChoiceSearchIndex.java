@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed search structures over the labels of a select's choices, so that filtering a list
+ * of tens of thousands of choices doesn't touch every label on every keystroke.
+ *
+ * Labels are lowercased once. Prefix queries binary search a sorted copy of the labels (the flat
+ * equivalent of a prefix trie). Substring queries intersect the postings of every pair of adjacent
+ * characters in the query and only then check candidates with {@link String#contains}; "chars"
+ * queries do the same with the postings of single characters. When a query extends the previous
+ * one only the previous matches are searched. Results are always in choice order.
+ *
+ * Instances are safe to query from a filter thread while the UI thread looks labels up.
+ */
+public class ChoiceSearchIndex {
+
+    public static final String MATCH_SUBSTRING = "substring";
+    public static final String MATCH_PREFIX = "prefix";
+    public static final String MATCH_CHARS = "chars";
+
+    private final String[] mLabels;
+    private final String[] mNormalized;
+
+    /**
+     * Choice positions ordered by normalized label.
+     */
+    private final Integer[] mSorted;
+
+    private final HashMap<Character, int[]> mCharPostings = new HashMap<Character, int[]>();
+    private final HashMap<Integer, int[]> mPairPostings = new HashMap<Integer, int[]>();
+    private final HashMap<String, Integer> mByLabel;
+
+    private String mLastMode = null;
+    private String mLastQuery = null;
+    private int[] mLastMatches = null;
+
+
+    /**
+     * @param labels the display text of each choice, in choice order
+     */
+    public ChoiceSearchIndex(List<String> labels) {
+        int count = labels.size();
+        mLabels = labels.toArray(new String[count]);
+        mNormalized = new String[count];
+        mByLabel = new HashMap<String, Integer>(count * 2);
+
+        HashMap<Character, IntList> chars = new HashMap<Character, IntList>();
+        HashMap<Integer, IntList> pairs = new HashMap<Integer, IntList>();
+        for (int i = 0; i < count; i++) {
+            String label = mLabels[i];
+            if (!mByLabel.containsKey(label)) {
+                // the first choice with a label wins, as it did with a linear search
+                mByLabel.put(label, i);
+            }
+
+            String n = normalize(label);
+            mNormalized[i] = n;
+            for (int j = 0; j < n.length(); j++) {
+                add(chars, n.charAt(j), i);
+                if (j + 1 < n.length()) {
+                    add(pairs, pairKey(n.charAt(j), n.charAt(j + 1)), i);
+                }
+            }
+        }
+        for (Map.Entry<Character, IntList> e : chars.entrySet()) {
+            mCharPostings.put(e.getKey(), e.getValue().toArray());
+        }
+        for (Map.Entry<Integer, IntList> e : pairs.entrySet()) {
+            mPairPostings.put(e.getKey(), e.getValue().toArray());
+        }
+
+        mSorted = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            mSorted[i] = i;
+        }
+        Arrays.sort(mSorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return mNormalized[a].compareTo(mNormalized[b]);
+            }
+        });
+    }
+
+
+    public int size() {
+        return mLabels.length;
+    }
+
+
+    public String getLabel(int position) {
+        return mLabels[position];
+    }
+
+
+    /**
+     * @return the position of the first choice whose label is exactly label, or -1
+     */
+    public int indexOfLabel(String label) {
+        Integer position = mByLabel.get(label);
+        return position == null ? -1 : position;
+    }
+
+
+    /**
+     * @param query the text typed so far
+     * @param mode one of {@link #MATCH_PREFIX}, {@link #MATCH_SUBSTRING} or {@link #MATCH_CHARS};
+     *            anything else is treated as substring
+     * @return the labels matching query, in choice order
+     */
+    public ArrayList<String> filter(String query, String mode) {
+        int[] matches = search(normalize(query), mode);
+        ArrayList<String> labels = new ArrayList<String>(matches.length);
+        for (int position : matches) {
+            labels.add(mLabels[position]);
+        }
+        return labels;
+    }
+
+
+    private synchronized int[] search(String query, String mode) {
+        int[] candidates = null;
+        if (mLastQuery != null && mLastQuery.length() > 0 && mode.equals(mLastMode)
+                && query.startsWith(mLastQuery)) {
+            // a longer query can only match a subset of what the shorter one did
+            candidates = mLastMatches;
+        } else if (MATCH_PREFIX.equals(mode)) {
+            candidates = prefixRange(query);
+        } else if (MATCH_CHARS.equals(mode)) {
+            for (int i = 0; i < query.length()
+                    && (candidates == null || candidates.length > 0); i++) {
+                candidates = intersect(candidates, mCharPostings.get(query.charAt(i)));
+            }
+        } else if (query.length() == 1) {
+            candidates = intersect(null, mCharPostings.get(query.charAt(0)));
+        } else {
+            for (int i = 0; i + 1 < query.length()
+                    && (candidates == null || candidates.length > 0); i++) {
+                candidates =
+                    intersect(candidates, mPairPostings.get(pairKey(query.charAt(i),
+                        query.charAt(i + 1))));
+            }
+        }
+        if (candidates == null) {
+            // empty query
+            candidates = new int[mLabels.length];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = i;
+            }
+        }
+
+        // postings only narrow things down, check every candidate for real
+        IntList matches = new IntList(candidates.length);
+        for (int position : candidates) {
+            if (matches(mNormalized[position], query, mode)) {
+                matches.add(position);
+            }
+        }
+
+        mLastMode = mode;
+        mLastQuery = query;
+        mLastMatches = matches.toArray();
+        return mLastMatches;
+    }
+
+
+    private static boolean matches(String label, String query, String mode) {
+        if (MATCH_PREFIX.equals(mode)) {
+            return label.startsWith(query);
+        } else if (MATCH_CHARS.equals(mode)) {
+            // every typed character must be in the label, as many times as it was typed
+            char[] remaining = label.toCharArray();
+            int length = remaining.length;
+            for (int i = 0; i < query.length(); i++) {
+                char c = query.charAt(i);
+                int j = 0;
+                while (j < length && remaining[j] != c) {
+                    j++;
+                }
+                if (j == length) {
+                    return false;
+                }
+                remaining[j] = remaining[--length];
+            }
+            return true;
+        } else {
+            return label.contains(query);
+        }
+    }
+
+
+    /**
+     * @return the positions of the choices whose labels start with prefix, in choice order
+     */
+    private int[] prefixRange(String prefix) {
+        int low = 0;
+        int high = mSorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mNormalized[mSorted[mid]].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        IntList range = new IntList(16);
+        for (int i = low; i < mSorted.length && mNormalized[mSorted[i]].startsWith(prefix); i++) {
+            range.add(mSorted[i]);
+        }
+        int[] positions = range.toArray();
+        Arrays.sort(positions);
+        return positions;
+    }
+
+
+    /**
+     * Intersects two sorted position lists. A null a means "everything"; a null b means nothing
+     * has that key.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        if (b == null) {
+            return new int[0];
+        }
+        if (a == null) {
+            return b;
+        }
+        IntList result = new IntList(Math.min(a.length, b.length));
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result.add(a[i]);
+                i++;
+                j++;
+            }
+        }
+        return result.toArray();
+    }
+
+
+    private static String normalize(String s) {
+        return s == null ? "" : s.toLowerCase();
+    }
+
+
+    private static int pairKey(char a, char b) {
+        return (a << 16) | b;
+    }
+
+
+    private static <K> void add(HashMap<K, IntList> postings, K key, int position) {
+        IntList list = postings.get(key);
+        if (list == null) {
+            list = new IntList(4);
+            postings.put(key, list);
+        }
+        // labels with a repeated character or pair would otherwise add themselves twice
+        if (list.size == 0 || list.values[list.size - 1] != position) {
+            list.add(position);
+        }
+    }
+
+    /**
+     * A growable list of ints, without boxing every position.
+     */
+    private static final class IntList {
+        int[] values;
+        int size = 0;
+
+
+        IntList(int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+
+        int[] toArray() {
+            if (size == values.length) {
+                return values;
+            }
+            int[] trimmed = new int[size];
+            System.arraycopy(values, 0, trimmed, 0, size);
+            return trimmed;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Collects updates and deletes against one of our providers and applies them together. On
+ * Android 2.0 and up they go through {@link ContentResolver#applyBatch(String, ArrayList)}, which
+ * the forms and instances providers run in a single transaction with a single change
+ * notification; older devices don't have batches and get the operations one by one. A batch that
+ * fails is rolled back by the provider and its operations are then applied one by one as well, so
+ * none are lost.
+ */
+public class ContentBatch {
+    private final static String t = "ContentBatch";
+
+    private final String mAuthority;
+    private final ArrayList<Operation> mOperations = new ArrayList<Operation>();
+
+    private static class Operation {
+        final Uri uri;
+        final ContentValues values; // null for deletes
+        final String where;
+        final String[] whereArgs;
+
+
+        Operation(Uri uri, ContentValues values, String where, String[] whereArgs) {
+            this.uri = uri;
+            this.values = values;
+            this.where = where;
+            this.whereArgs = whereArgs;
+        }
+    }
+
+
+    public ContentBatch(String authority) {
+        mAuthority = authority;
+    }
+
+
+    /**
+     * Queues an update. The values are copied, so the caller may reuse them.
+     */
+    public void update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        mOperations.add(new Operation(uri, new ContentValues(values), where, whereArgs));
+    }
+
+
+    public void delete(Uri uri, String where, String[] whereArgs) {
+        mOperations.add(new Operation(uri, null, where, whereArgs));
+    }
+
+
+    public int size() {
+        return mOperations.size();
+    }
+
+
+    /**
+     * Applies and clears the queued operations.
+     *
+     * @return the number of rows affected
+     */
+    public int apply(ContentResolver cr) {
+        if (mOperations.isEmpty()) {
+            return 0;
+        }
+        int count = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ECLAIR) {
+            count = Batch.apply(cr, mAuthority, mOperations);
+        }
+        if (count == -1) {
+            count = 0;
+            for (Operation o : mOperations) {
+                if (o.values == null) {
+                    count += cr.delete(o.uri, o.where, o.whereArgs);
+                } else {
+                    count += cr.update(o.uri, o.values, o.where, o.whereArgs);
+                }
+            }
+        }
+        mOperations.clear();
+        return count;
+    }
+
+    /**
+     * Kept apart so that ContentProviderOperation, which needs Android 2.0, is only loaded where
+     * it exists.
+     */
+    private static class Batch {
+        /**
+         * @return the number of rows affected, or -1 if the batch failed
+         */
+        static int apply(ContentResolver cr, String authority, ArrayList<Operation> operations) {
+            ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(operations.size());
+            for (Operation o : operations) {
+                ContentProviderOperation.Builder b;
+                if (o.values == null) {
+                    b = ContentProviderOperation.newDelete(o.uri);
+                } else {
+                    b = ContentProviderOperation.newUpdate(o.uri).withValues(o.values);
+                }
+                ops.add(b.withSelection(o.where, o.whereArgs).build());
+            }
+            try {
+                int count = 0;
+                for (ContentProviderResult r : cr.applyBatch(authority, ops)) {
+                    if (r.count != null) {
+                        count += r.count;
+                    }
+                }
+                return count;
+            } catch (RemoteException e) {
+                Log.e(t, "Unable to apply " + ops.size() + " operations: " + e.getMessage());
+            } catch (OperationApplicationException e) {
+                Log.e(t, "Unable to apply " + ops.size() + " operations: " + e.getMessage());
+            } catch (SQLException e) {
+                // e.g. a constraint or a full disk, thrown from inside the provider's transaction
+                Log.e(t, "Unable to apply " + ops.size() + " operations: " + e.getMessage());
+            }
+            return -1;
+        }
+    }
+}
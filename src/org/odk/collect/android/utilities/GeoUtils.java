@@ -20,6 +20,7 @@ import android.location.LocationManager;
 public class GeoUtils {
 	public static final double ACCEPTABLE_ACCURACY = 5;	// Good enough accuracy to stop pinging the GPS
 	public static final int MAXIMUM_WAIT = 300 * 1000;	// For passive collection, milliseconds to wait for GPS before giving up
+	public static final int MAXIMUM_FIX_AGE = 30 * 1000;	// Milliseconds an earlier fix can be reused for instead of asking the GPS again
 
 	/**
 	 * Format location in a string for user display.
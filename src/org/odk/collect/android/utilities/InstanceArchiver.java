@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Packs the folders of submitted instances into compressed archives under
+ * {@link Collect#ARCHIVE_PATH}, so that the card isn't left holding every instance's files, a
+ * folder each, for good. A pack is a zip of up to {@link #PACK_SIZE} instance folders, each file
+ * an entry under its folder's name, and the zip's central directory is the index an instance is
+ * found by again. Media that's already compressed is stored rather than deflated.
+ *
+ * The instances provider records the pack in {@link InstanceColumns#ARCHIVE_PATH}.
+ * {@link #restore(String)} extracts an instance's folder when it's opened, after which it's on
+ * disk again until the next pass (if it's still submitted). An instance that's open is never
+ * packed; it's left alone until {@link #release(String)}. The provider tombstones the packs that
+ * instances leave or are deleted from, and the FileReaper removes a pack once no instance is in
+ * it.
+ */
+public class InstanceArchiver {
+    private final static String t = "InstanceArchiver";
+
+    public static final int PACK_SIZE = 100;
+
+    private static final String PACK_EXTENSION = ".zip";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // deflating these only costs time
+    private static final HashSet<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+        "jpg", "jpeg", "png", "gif", "3gp", "3gpp", "mp4", "m4a", "amr", "mp3", "ogg", "enc"));
+
+    private static InstanceArchiver singleton = null;
+
+    private final ExecutorService mExecutor;
+    // held while instance folders are being removed or put back
+    private final Object mLock = new Object();
+    // folders of the instances that are open, one entry per restore(), guarded by mLock
+    private final ArrayList<String> mOpenFolders = new ArrayList<String>();
+    private boolean mQueued = false;
+
+
+    public static synchronized InstanceArchiver getInstance() {
+        if (singleton == null) {
+            singleton = new InstanceArchiver();
+        }
+        return singleton;
+    }
+
+
+    private InstanceArchiver() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, t);
+            }
+        });
+    }
+
+
+    /**
+     * Packs, in the background, the submitted instances still on disk.
+     */
+    public void archiveInBackground() {
+        synchronized (this) {
+            if (mQueued) {
+                // the pass that's waiting to start will see them
+                return;
+            }
+            mQueued = true;
+        }
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                synchronized (InstanceArchiver.this) {
+                    mQueued = false;
+                }
+                archive();
+            }
+        });
+    }
+
+
+    private void archive() {
+        ContentResolver cr = Collect.getInstance().getContentResolver();
+        String[] projection = {
+                InstanceColumns._ID, InstanceColumns.INSTANCE_FILE_PATH
+        };
+        String selection =
+            InstanceColumns.STATUS + "=? AND " + InstanceColumns.ARCHIVE_PATH + " IS NULL AND "
+                    + InstanceColumns._ID + ">?";
+        long lastId = -1;
+        while (true) {
+            ArrayList<Long> ids = new ArrayList<Long>();
+            ArrayList<File> folders = new ArrayList<File>();
+            int rows;
+            Cursor c =
+                cr.query(
+                    InstanceColumns.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(InstanceProviderAPI.LIMIT,
+                                String.valueOf(PACK_SIZE)).build(), projection, selection,
+                    new String[] {
+                            InstanceProviderAPI.STATUS_SUBMITTED, String.valueOf(lastId)
+                    }, InstanceColumns._ID);
+            if (c == null) {
+                return;
+            }
+            try {
+                rows = c.getCount();
+                while (c.moveToNext()) {
+                    // instances that can't be packed are passed over, not tried again
+                    lastId = c.getLong(0);
+                    File folder = new File(c.getString(1)).getParentFile();
+                    if (isPackable(folder)) {
+                        ids.add(lastId);
+                        folders.add(folder);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (!ids.isEmpty() && !pack(cr, ids, folders)) {
+                // e.g. the card is full, there's no point going on
+                return;
+            }
+            if (rows < PACK_SIZE) {
+                return;
+            }
+        }
+    }
+
+
+    private static boolean isPackable(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null || files.length == 0) {
+            return false;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                Log.w(t, "Not packing " + folder.getAbsolutePath() + ", it has a folder in it");
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Writes the folders into a new pack, points their rows at it and removes them.
+     *
+     * @return false if the pack couldn't be written
+     */
+    private boolean pack(ContentResolver cr, ArrayList<Long> ids, ArrayList<File> folders) {
+        File dir = new File(Collect.ARCHIVE_PATH);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(t, "Unable to create " + dir.getAbsolutePath());
+            return false;
+        }
+        File pack = new File(dir, "instances-" + System.currentTimeMillis() + PACK_EXTENSION);
+        File temp = new File(pack.getPath() + TEMP_EXTENSION);
+
+        try {
+            ZipOutputStream zos =
+                new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                for (File folder : folders) {
+                    for (File f : folder.listFiles()) {
+                        addEntry(zos, folder.getName() + "/" + f.getName(), f);
+                    }
+                }
+            } finally {
+                zos.close();
+            }
+            verify(temp, folders);
+        } catch (IOException e) {
+            Log.e(t, "Unable to write " + temp.getAbsolutePath() + ": " + e.getMessage());
+            temp.delete();
+            return false;
+        }
+        if (!temp.renameTo(pack)) {
+            Log.e(t, "Unable to rename " + temp.getAbsolutePath());
+            temp.delete();
+            return false;
+        }
+
+        synchronized (mLock) {
+            // rows that were opened, resent or deleted meanwhile aren't moved, nor are instances
+            // that are open now
+            ContentBatch batch = new ContentBatch(InstanceProviderAPI.AUTHORITY);
+            ContentValues values = new ContentValues();
+            values.put(InstanceColumns.ARCHIVE_PATH, pack.getAbsolutePath());
+            String where =
+                InstanceColumns.STATUS + "=? AND " + InstanceColumns.ARCHIVE_PATH + " IS NULL";
+            String[] whereArgs = {
+                InstanceProviderAPI.STATUS_SUBMITTED
+            };
+            for (int i = 0; i < ids.size(); i++) {
+                if (mOpenFolders.contains(folders.get(i).getAbsolutePath())) {
+                    continue;
+                }
+                batch.update(ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, ids.get(i)),
+                    values, where, whereArgs);
+            }
+            int packed = batch.apply(cr);
+
+            HashSet<String> moved = new HashSet<String>();
+            Cursor c = cr.query(InstanceColumns.CONTENT_URI, new String[] {
+                InstanceColumns.INSTANCE_FILE_PATH
+            }, InstanceColumns.ARCHIVE_PATH + "=?", new String[] {
+                pack.getAbsolutePath()
+            }, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        moved.add(new File(c.getString(0)).getParent());
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            for (File folder : folders) {
+                if (moved.contains(folder.getAbsolutePath())) {
+                    delete(folder);
+                }
+            }
+            if (packed == 0) {
+                pack.delete();
+            }
+            Log.i(t, "Packed " + packed + " instances into " + pack.getName());
+        }
+        return true;
+    }
+
+
+    private static void addEntry(ZipOutputStream zos, String name, File f) throws IOException {
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        zos.setLevel(COMPRESSED_EXTENSIONS.contains(extension) ? Deflater.NO_COMPRESSION
+                : Deflater.DEFAULT_COMPRESSION);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(f.lastModified());
+        zos.putNextEntry(entry);
+        InputStream is = new FileInputStream(f);
+        try {
+            copy(is, zos);
+        } finally {
+            is.close();
+        }
+        zos.closeEntry();
+    }
+
+
+    /**
+     * Reads the pack's index back, checking every file is in it at its full length.
+     */
+    private static void verify(File pack, ArrayList<File> folders) throws IOException {
+        ZipFile zip = new ZipFile(pack);
+        try {
+            for (File folder : folders) {
+                for (File f : folder.listFiles()) {
+                    ZipEntry entry = zip.getEntry(folder.getName() + "/" + f.getName());
+                    if (entry == null || entry.getSize() != f.length()) {
+                        throw new IOException(f.getAbsolutePath() + " didn't make it in whole");
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+
+    /**
+     * Makes sure the instance at instancePath is on disk, extracting its folder from its pack if
+     * it has been archived, and keeps it out of the packs until {@link #release(String)} is
+     * called, whether or not it could be restored. Must not be called on the UI thread.
+     *
+     * @return false if the instance isn't on disk and couldn't be extracted
+     */
+    public boolean restore(String instancePath) {
+        File instanceXml = new File(instancePath);
+        ContentResolver cr = Collect.getInstance().getContentResolver();
+        synchronized (mLock) {
+            mOpenFolders.add(instanceXml.getParentFile().getAbsolutePath());
+            if (instanceXml.exists()) {
+                return true;
+            }
+            long id;
+            String archive;
+            Cursor c = cr.query(InstanceColumns.CONTENT_URI, new String[] {
+                    InstanceColumns._ID, InstanceColumns.ARCHIVE_PATH
+            }, InstanceColumns.INSTANCE_FILE_PATH + "=?", new String[] {
+                instancePath
+            }, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                if (!c.moveToFirst() || c.isNull(1)) {
+                    return false;
+                }
+                id = c.getLong(0);
+                archive = c.getString(1);
+            } finally {
+                c.close();
+            }
+
+            // extracted beside the folder and renamed, so a half-extracted folder is never used
+            File folder = instanceXml.getParentFile();
+            File temp = new File(folder.getPath() + TEMP_EXTENSION);
+            delete(temp);
+            String prefix = folder.getName() + "/";
+            try {
+                if (!temp.mkdirs()) {
+                    throw new IOException("Unable to create " + temp.getAbsolutePath());
+                }
+                ZipFile zip = new ZipFile(archive);
+                try {
+                    Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (!entry.getName().startsWith(prefix)) {
+                            continue;
+                        }
+                        File f = new File(temp, entry.getName().substring(prefix.length()));
+                        InputStream is = zip.getInputStream(entry);
+                        try {
+                            OutputStream os = new FileOutputStream(f);
+                            try {
+                                copy(is, os);
+                            } finally {
+                                os.close();
+                            }
+                        } finally {
+                            is.close();
+                        }
+                        f.setLastModified(entry.getTime());
+                    }
+                } finally {
+                    zip.close();
+                }
+            } catch (IOException e) {
+                Log.e(t, "Unable to extract " + folder.getName() + " from " + archive + ": "
+                        + e.getMessage());
+                delete(temp);
+                return false;
+            }
+            // an empty folder may have been left by an earlier pass
+            folder.delete();
+            if (!temp.renameTo(folder) || !instanceXml.exists()) {
+                Log.e(t, "Unable to restore " + instancePath);
+                return false;
+            }
+
+            // the folder is the instance again; the pack goes once nothing else is in it
+            ContentValues values = new ContentValues();
+            values.putNull(InstanceColumns.ARCHIVE_PATH);
+            cr.update(ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, id), values, null,
+                null);
+            Log.i(t, "Restored " + folder.getName() + " from " + archive);
+            return true;
+        }
+    }
+
+
+    /**
+     * Lets the instance at instancePath, opened with {@link #restore(String)}, be packed again.
+     */
+    public void release(String instancePath) {
+        synchronized (mLock) {
+            mOpenFolders.remove(new File(instancePath).getParentFile().getAbsolutePath());
+        }
+    }
+
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+    }
+
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        if (f.exists() && !f.delete()) {
+            Log.w(t, "Unable to delete " + f.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+
+import org.odk.collect.android.application.Collect;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The one place location fixes are requested from. Each consumer (a pollsensor action, the
+ * GeoPoint screen) asks for a fix of a given accuracy; the location providers run while at least
+ * one request is waiting and are turned off as soon as the last one is satisfied, cancelled or
+ * times out. A recent enough fix, ours or one the system already has, is handed out straight
+ * away, and if it is accurate enough the providers aren't started at all. A fix without an
+ * accuracy is never taken for an accurate one, and ages are measured on the elapsed realtime
+ * clock rather than against the device's wall clock, which needn't agree with a GPS fix's time.
+ *
+ * Timeouts run on the main looper, so no request costs a thread. All methods must be called, and
+ * all callbacks are made, on the UI thread.
+ */
+public class LocationSampler {
+    private final static String t = "LocationSampler";
+
+    /**
+     * Timeout for requests that last until they are satisfied or cancelled.
+     */
+    public static final long NO_TIMEOUT = 0;
+
+    private static LocationSampler singleton = null;
+
+    private final Context mContext;
+    private final LocationManager mLocationManager;
+    private final Handler mHandler;
+
+    private final ArrayList<Request> mRequests = new ArrayList<Request>();
+    private Set<String> mProviders = Collections.emptySet();
+    private boolean mListening = false;
+
+    // the last fix we received, and when on the elapsed realtime clock
+    private Location mLastFix;
+    private long mLastFixElapsed;
+
+    /**
+     * Gets the fixes for a {@link Request}.
+     */
+    public interface Consumer {
+        /**
+         * Called with each new fix until the request is satisfied (this call included), cancelled
+         * or times out. The first call may be a cached fix.
+         */
+        public void onLocation(Location location);
+
+
+        /**
+         * Called when the request times out without an accurate enough fix.
+         */
+        public void onLocationTimeout();
+    }
+
+    /**
+     * A consumer waiting for a fix; keep it to cancel the request.
+     */
+    public final class Request {
+        private final Consumer mConsumer;
+        private final double mAccuracy;
+        private final long mDeadline;
+        private boolean mNeedsProviders = true;
+
+        private final Runnable mTimeout = new Runnable() {
+            public void run() {
+                if (finish(Request.this)) {
+                    mConsumer.onLocationTimeout();
+                }
+            }
+        };
+
+
+        private Request(Consumer consumer, double accuracy, long timeout) {
+            mConsumer = consumer;
+            mAccuracy = accuracy;
+            mDeadline = timeout == NO_TIMEOUT ? 0 : SystemClock.elapsedRealtime() + timeout;
+        }
+
+
+        /**
+         * @return milliseconds until the request times out, or -1 if it doesn't
+         */
+        public long getMillisRemaining() {
+            if (mDeadline == 0) {
+                return -1;
+            }
+            return Math.max(0, mDeadline - SystemClock.elapsedRealtime());
+        }
+    }
+
+    private final LocationListener mListener = new LocationListener() {
+        public void onLocationChanged(Location location) {
+            if (location == null) {
+                return;
+            }
+            mLastFix = location;
+            mLastFixElapsed = SystemClock.elapsedRealtime();
+            // consumers may cancel (or make) requests as they go
+            for (Request r : new ArrayList<Request>(mRequests)) {
+                if (r.mNeedsProviders && mRequests.contains(r)) {
+                    deliver(r, location);
+                }
+            }
+        }
+
+
+        public void onProviderDisabled(String provider) {
+        }
+
+
+        public void onProviderEnabled(String provider) {
+        }
+
+
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    };
+
+    private final BroadcastReceiver mProvidersChanged = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mListening) {
+                mLocationManager.removeUpdates(mListener);
+                requestUpdates();
+            }
+        }
+    };
+
+
+    public static synchronized LocationSampler getInstance() {
+        if (singleton == null) {
+            singleton = new LocationSampler(Collect.getStaticApplicationContext());
+        }
+        return singleton;
+    }
+
+
+    private LocationSampler(Context context) {
+        mContext = context;
+        mLocationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    /**
+     * Asks for a fix at least as accurate as accuracy.
+     *
+     * @param timeout milliseconds to wait for one, or {@link #NO_TIMEOUT}
+     * @param maxCachedAge how old, in milliseconds, a fix may be to be given out without asking
+     *            the providers; 0 to always ask them, e.g. when the user asked for a location
+     * @return the request, for {@link #cancel(Request)}
+     */
+    public Request request(Consumer consumer, double accuracy, long timeout, long maxCachedAge) {
+        final Request r = new Request(consumer, accuracy, timeout);
+        mRequests.add(r);
+
+        final Location cached = getCachedFix(maxCachedAge);
+        if (cached != null) {
+            // posted so that the consumer has its request before it hears back
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mRequests.contains(r)) {
+                        deliver(r, cached);
+                    }
+                }
+            });
+            if (isAccurate(cached, accuracy)) {
+                Log.i(t, "Serving cached " + cached.getProvider() + " fix, accuracy "
+                        + cached.getAccuracy());
+                r.mNeedsProviders = false;
+                return r;
+            }
+        }
+
+        if (timeout != NO_TIMEOUT) {
+            mHandler.postDelayed(r.mTimeout, timeout);
+        }
+        updateListening();
+        return r;
+    }
+
+
+    /**
+     * Withdraws a request; nothing more is delivered to its consumer. Does nothing if the request
+     * is already over.
+     */
+    public void cancel(Request r) {
+        if (r != null) {
+            finish(r);
+        }
+    }
+
+
+    private void deliver(Request r, Location location) {
+        if (isAccurate(location, r.mAccuracy)) {
+            finish(r);
+        }
+        r.mConsumer.onLocation(location);
+    }
+
+
+    /**
+     * @return true if the request was still waiting
+     */
+    private boolean finish(Request r) {
+        mHandler.removeCallbacks(r.mTimeout);
+        if (!mRequests.remove(r)) {
+            return false;
+        }
+        updateListening();
+        return true;
+    }
+
+
+    private void updateListening() {
+        boolean needed = false;
+        for (Request r : mRequests) {
+            if (r.mNeedsProviders) {
+                needed = true;
+                break;
+            }
+        }
+
+        if (needed && !mListening) {
+            mListening = true;
+            mContext.registerReceiver(mProvidersChanged, new IntentFilter(
+                    LocationManager.PROVIDERS_CHANGED_ACTION));
+            requestUpdates();
+        } else if (!needed && mListening) {
+            mListening = false;
+            mContext.unregisterReceiver(mProvidersChanged);
+            mLocationManager.removeUpdates(mListener);
+            Log.i(t, "Stopped location updates");
+        }
+    }
+
+
+    private void requestUpdates() {
+        mProviders = GeoUtils.evaluateProviders(mLocationManager);
+        for (String provider : mProviders) {
+            mLocationManager.requestLocationUpdates(provider, 0, 0, mListener);
+        }
+        Log.i(t, "Requested location updates from " + mProviders);
+    }
+
+
+    private static boolean isAccurate(Location location, double accuracy) {
+        // a fix without an accuracy reports 0
+        return location.hasAccuracy() && location.getAccuracy() <= accuracy;
+    }
+
+
+    /**
+     * @return the most accurate fix no older than maxAge, or null
+     */
+    private Location getCachedFix(long maxAge) {
+        if (maxAge <= 0) {
+            return null;
+        }
+        Location best = null;
+        ArrayList<Location> candidates = new ArrayList<Location>();
+        candidates.add(mLastFix);
+        for (String provider : new String[] {
+                LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER
+        }) {
+            try {
+                candidates.add(mLocationManager.getLastKnownLocation(provider));
+            } catch (IllegalArgumentException e) {
+                // no such provider on this device
+            }
+        }
+        for (Location l : candidates) {
+            if (l == null) {
+                continue;
+            }
+            long age = getAge(l);
+            if (age >= 0 && age <= maxAge && (best == null || isBetter(l, best))) {
+                best = l;
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     * @return milliseconds since the fix was made, or -1 if that isn't known
+     */
+    private long getAge(Location l) {
+        if (l == mLastFix) {
+            return SystemClock.elapsedRealtime() - mLastFixElapsed;
+        }
+        // Location.getElapsedRealtimeNanos() is Android 4.2 and up; before that the system's fixes
+        // only have a wall clock time, which can't be trusted, so they aren't reused
+        if (Build.VERSION.SDK_INT >= 17) {
+            try {
+                Method m = Location.class.getMethod("getElapsedRealtimeNanos");
+                long elapsed = ((Long) m.invoke(l)).longValue() / 1000000;
+                if (elapsed > 0) {
+                    return SystemClock.elapsedRealtime() - elapsed;
+                }
+            } catch (Exception e) {
+                Log.e(t, "Unable to read fix age: " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+
+    private static boolean isBetter(Location location, Location current) {
+        if (location.hasAccuracy() != current.hasAccuracy()) {
+            return location.hasAccuracy();
+        }
+        if (location.getAccuracy() != current.getAccuracy()) {
+            return location.getAccuracy() < current.getAccuracy();
+        }
+        return location.getTime() > current.getTime();
+    }
+
+}
@@ -1,37 +0,0 @@
-package org.odk.collect.android.utilities;
-
-import org.odk.collect.android.listeners.TimerListener;
-
-import android.os.CountDownTimer;
-
-/**
- * simple class that calls back to a TimerListener after a set amount of time
- * 
- * @author wspride
- *
- */
-
-public class ODKTimer extends CountDownTimer{
-
-	TimerListener mTimerListener;
-	long mUntilFinished;
-
-	public ODKTimer(long millisInFuture, TimerListener tl) {
-		super(millisInFuture, 1000);
-		mTimerListener = tl;
-	}
-
-	@Override
-	public void onFinish() {
-		mTimerListener.notifyTimerFinished();
-	}
-
-	@Override
-	public void onTick(long millisUntilFinished) {
-		mUntilFinished = millisUntilFinished;
-	}
-	
-	public long getMillisUntilFinished(){
-		return mUntilFinished;
-	}
-}
\ No newline at end of file
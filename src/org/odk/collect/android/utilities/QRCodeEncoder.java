@@ -16,6 +16,7 @@ package org.odk.collect.android.utilities;
  * limitations under the License.
  */
 
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.Map;
 
@@ -49,6 +50,46 @@ public final class QRCodeEncoder {
     }
 
     
+    /**
+     * @return the key the code for contents at the given size is cached under in the
+     *         {@link BitmapCache}
+     */
+    public static String getKey(String contents, int dimension) {
+        return "qr|" + dimension + "|" + contents;
+    }
+
+
+    /**
+     * Returns the code for contents from the {@link BitmapCache}, encoding and caching it first if
+     * needed. Safe to call from any thread; the bitmap is shared and must not be recycled.
+     *
+     * @return the code, or null if contents can't be encoded
+     */
+    public static Bitmap getBitmap(String contents, int dimension) {
+        String key = getKey(contents, dimension);
+        Bitmap b = BitmapCache.getInstance().get(key);
+        if (b == null) {
+            try {
+                b = new QRCodeEncoder(contents, dimension).encodeAsBitmap();
+                BitmapCache.getInstance().put(key, b);
+            } catch (WriterException e) {
+                e.printStackTrace();
+                return null;
+            } catch (RuntimeException e) {
+                // e.g. contents too long for any version of the code
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return b;
+    }
+
+
+    /**
+     * Encodes the code at one pixel per module and then expands each module into a whole number
+     * of pixels, so the result is as large as possible without exceeding the requested dimension
+     * and is built from a single pixel buffer.
+     */
     public Bitmap encodeAsBitmap() throws WriterException {
         Map<EncodeHintType, Object> hints = null;
         String encoding = guessAppropriateEncoding(contents);
@@ -57,21 +98,25 @@ public final class QRCodeEncoder {
             hints.put(EncodeHintType.CHARACTER_SET, encoding);
         }
         MultiFormatWriter writer = new MultiFormatWriter();
-        BitMatrix result = writer.encode(contents, format, dimension, dimension, hints);
-        int width = result.getWidth();
-        int height = result.getHeight();
-        int[] pixels = new int[width * height];
-        // All are 0, or black, by default
-        for (int y = 0; y < height; y++) {
-            int offset = y * width;
-            for (int x = 0; x < width; x++) {
-                pixels[offset + x] = result.get(x, y) ? BLACK : WHITE;
+        // a size of 0 gets the smallest matrix, quiet zone included
+        BitMatrix result = writer.encode(contents, format, 0, 0, hints);
+        int modules = result.getWidth();
+        int scale = Math.max(1, dimension / modules);
+        int size = modules * scale;
+
+        int[] row = new int[size];
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < modules; y++) {
+            for (int x = 0; x < modules; x++) {
+                Arrays.fill(row, x * scale, (x + 1) * scale, result.get(x, y) ? BLACK : WHITE);
+            }
+            for (int i = 0; i < scale; i++) {
+                System.arraycopy(row, 0, pixels, (y * scale + i) * size, size);
             }
         }
 
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bitmap;
+        // black and white need no alpha, which halves the size of the bitmap
+        return Bitmap.createBitmap(pixels, size, size, Bitmap.Config.RGB_565);
     }
 
     private static String guessAppropriateEncoding(CharSequence contents) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.core.reference.ReferenceManager;
+
+/**
+ * Remembers where the form's media references (jr://images/..., jr://audio/... and so on) point
+ * and whether those files exist. Every question render resolves the same handful of references
+ * through the root translators and then checks the file system; neither answer changes while a
+ * form is open, because {@link org.odk.collect.android.tasks.FormLoaderTask} installs the session
+ * translators once per form. It calls {@link #clear()} whenever it replaces them, and then names
+ * the form's media folders with {@link #addMediaRoot(String)}.
+ *
+ * Only files under those folders, which nothing writes while the form is open, have their
+ * existence remembered. Anything else, e.g. an instance's attachments, is checked every time.
+ */
+public class ReferenceResolver {
+
+    private static final HashMap<String, String> sLocalURIs = new HashMap<String, String>();
+    private static final HashMap<String, Boolean> sExists = new HashMap<String, Boolean>();
+    private static final ArrayList<String> sMediaRoots = new ArrayList<String>();
+
+
+    /**
+     * Equivalent to ReferenceManager._().DeriveReference(uri).getLocalURI(), only resolved once
+     * per session.
+     */
+    public static String getLocalURI(String uri) throws InvalidReferenceException {
+        synchronized (sLocalURIs) {
+            String local = sLocalURIs.get(uri);
+            if (local != null) {
+                return local;
+            }
+        }
+        // invalid references aren't remembered, they're rare and the exception carries the detail
+        String local = ReferenceManager._().DeriveReference(uri).getLocalURI();
+        synchronized (sLocalURIs) {
+            sLocalURIs.put(uri, local);
+        }
+        return local;
+    }
+
+
+    /**
+     * Marks the folder at path as holding read-only form media, whose files' existence may be
+     * remembered until the next {@link #clear()}.
+     */
+    public static void addMediaRoot(String path) {
+        String root = new File(path).getAbsolutePath() + File.separator;
+        synchronized (sExists) {
+            sMediaRoots.add(root);
+        }
+    }
+
+
+    /**
+     * @return whether the file at localURI (as returned by {@link #getLocalURI(String)}) exists;
+     *         under a media root, whether it existed the first time it was asked about this
+     *         session
+     */
+    public static boolean exists(String localURI) {
+        synchronized (sExists) {
+            if (!isMedia(localURI)) {
+                return new File(localURI).exists();
+            }
+            Boolean exists = sExists.get(localURI);
+            if (exists == null) {
+                exists = new File(localURI).exists();
+                sExists.put(localURI, exists);
+            }
+            return exists;
+        }
+    }
+
+
+    private static boolean isMedia(String localURI) {
+        String path = new File(localURI).getAbsolutePath();
+        for (String root : sMediaRoots) {
+            if (path.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Forgets whether localURI exists, e.g. because it has just been written or deleted.
+     */
+    public static void invalidate(String localURI) {
+        synchronized (sExists) {
+            sExists.remove(localURI);
+        }
+    }
+
+
+    /**
+     * Forgets everything, e.g. because the session root translators are about to change.
+     */
+    public static void clear() {
+        synchronized (sLocalURIs) {
+            sLocalURIs.clear();
+        }
+        synchronized (sExists) {
+            sExists.clear();
+            sMediaRoots.clear();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.odk.collect.android.application.Collect;
+
+import android.util.Log;
+
+/**
+ * Keeps the media files of downloaded forms once each, named by their MD5, however many forms use
+ * them. The card's FAT file system has no links, so instead a form's media folder holds an index
+ * of the shared files it uses by the names the form knows them by;
+ * {@link org.odk.collect.android.logic.FileReference} resolves through it, and
+ * {@link #listFiles(File)} lists a media folder with the shared files in it.
+ * Files actually in the folder (e.g. copied there by hand) take precedence.
+ *
+ * Shared files no media folder's index names any more are removed by {@link #collectGarbage()},
+ * except while a download that may be reusing them is under way.
+ */
+public class SharedMediaStore {
+    private final static String t = "SharedMediaStore";
+
+    public static final String STORE_PATH = Collect.ODK_ROOT + "/.media";
+
+    // in each media folder, lines of name, tab, shared file name
+    private static final String INDEX_FILE = ".shared";
+    private static final String MEDIA_FOLDER_SUFFIX = "-media";
+
+    // files younger than this may belong to a download whose index isn't written yet
+    private static final long GARBAGE_MIN_AGE = 60 * 60 * 1000;
+
+    // downloads between startDownload() and finishDownload(), guarded by the class
+    private static int sDownloads = 0;
+
+    // media folder path to its index, and when the index was read
+    private static final HashMap<String, Index> sIndexes = new HashMap<String, Index>();
+
+    private static class Index {
+        final long modified;
+        final HashMap<String, String> files;
+
+
+        Index(long modified, HashMap<String, String> files) {
+            this.modified = modified;
+            this.files = files;
+        }
+    }
+
+
+    /**
+     * @return where the file with the given MD5 is kept, keeping the extension of name so that
+     *         players and viewers know what it is. It may not exist yet.
+     */
+    public static File getSharedFile(String md5, String name) {
+        int dot = name.lastIndexOf('.');
+        String extension = dot == -1 ? "" : name.substring(dot).toLowerCase();
+        return new File(STORE_PATH, md5.toLowerCase() + extension);
+    }
+
+
+    /**
+     * Replaces the index of mediaDir, and deletes any files in the folder by the same names, which
+     * would hide the shared ones.
+     *
+     * @param files name in the form to shared file (as from {@link #getSharedFile(String, String)})
+     */
+    public static void setIndex(File mediaDir, Map<String, File> files) throws IOException {
+        File index = new File(mediaDir, INDEX_FILE);
+        File temp = new File(mediaDir, INDEX_FILE + ".tmp");
+        Writer w = new FileWriter(temp);
+        try {
+            for (Map.Entry<String, File> e : files.entrySet()) {
+                w.write(e.getKey() + "\t" + e.getValue().getName() + "\n");
+            }
+        } finally {
+            w.close();
+        }
+        if (!temp.renameTo(index)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp.getAbsolutePath());
+        }
+        for (String name : files.keySet()) {
+            File local = new File(mediaDir, name);
+            if (local.isFile() && !local.delete()) {
+                Log.w(t, "Unable to delete " + local.getAbsolutePath());
+            }
+        }
+        synchronized (sIndexes) {
+            sIndexes.remove(mediaDir.getAbsolutePath());
+        }
+    }
+
+
+    /**
+     * @return path itself if there is a file there, otherwise the shared file its folder's index
+     *         gives for it, if any
+     */
+    public static String resolve(String path) {
+        File f = new File(path);
+        if (f.exists()) {
+            return path;
+        }
+        File parent = f.getParentFile();
+        if (parent == null) {
+            return path;
+        }
+        String shared = getIndex(parent).get(f.getName());
+        return shared == null ? path : new File(STORE_PATH, shared).getAbsolutePath();
+    }
+
+
+    /**
+     * Lists the files in mediaDir together with the shared files its index names, the latter by
+     * their paths in the store.
+     *
+     * @return the files, or null if mediaDir isn't a folder
+     */
+    public static File[] listFiles(File mediaDir) {
+        File[] local = mediaDir.listFiles();
+        if (local == null) {
+            return null;
+        }
+        HashMap<String, String> index = getIndex(mediaDir);
+        if (index.isEmpty()) {
+            return local;
+        }
+        ArrayList<File> files = new ArrayList<File>(local.length + index.size());
+        for (File f : local) {
+            if (!f.getName().equals(INDEX_FILE)) {
+                files.add(f);
+            }
+        }
+        for (Map.Entry<String, String> e : index.entrySet()) {
+            if (!new File(mediaDir, e.getKey()).exists()) {
+                files.add(new File(STORE_PATH, e.getValue()));
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+
+    private static HashMap<String, String> getIndex(File mediaDir) {
+        File file = new File(mediaDir, INDEX_FILE);
+        long modified = file.lastModified();
+        synchronized (sIndexes) {
+            Index index = sIndexes.get(mediaDir.getAbsolutePath());
+            if (index != null && index.modified == modified) {
+                return index.files;
+            }
+        }
+        HashMap<String, String> files = readIndex(file);
+        synchronized (sIndexes) {
+            sIndexes.put(mediaDir.getAbsolutePath(), new Index(modified, files));
+        }
+        return files;
+    }
+
+
+    private static HashMap<String, String> readIndex(File file) {
+        HashMap<String, String> files = new HashMap<String, String>();
+        if (!file.exists()) {
+            return files;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    files.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + file.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return files;
+    }
+
+
+    /**
+     * Marks a download as under way. Until the matching {@link #finishDownload()} nothing is
+     * collected, so a shared file the download finds and reuses is still there when it writes the
+     * index naming it. Waits for a collection that has already started.
+     */
+    public static synchronized void startDownload() {
+        sDownloads++;
+    }
+
+
+    public static synchronized void finishDownload() {
+        sDownloads--;
+    }
+
+
+    /**
+     * @return the names of the shared files that some form's media folder uses
+     */
+    public static HashSet<String> getUsedFiles() {
+        HashSet<String> used = new HashSet<String>();
+        File[] forms = new File(Collect.FORMS_PATH).listFiles();
+        if (forms != null) {
+            for (File f : forms) {
+                if (f.isDirectory() && f.getName().endsWith(MEDIA_FOLDER_SUFFIX)) {
+                    used.addAll(readIndex(new File(f, INDEX_FILE)).values());
+                }
+            }
+        }
+        return used;
+    }
+
+
+    /**
+     * Deletes the shared files that no form's media folder uses, unless a download is under way.
+     * Must not be called on the UI thread, nor while forms are being deleted (see
+     * FileReaper#waitForPending()).
+     */
+    public static synchronized void collectGarbage() {
+        if (sDownloads > 0) {
+            Log.i(t, "Not collecting media while forms download");
+            return;
+        }
+        File[] shared = new File(STORE_PATH).listFiles();
+        if (shared == null || !new File(Collect.FORMS_PATH).isDirectory()) {
+            return;
+        }
+        HashSet<String> used = getUsedFiles();
+        long cutoff = System.currentTimeMillis() - GARBAGE_MIN_AGE;
+        int deleted = 0;
+        for (File f : shared) {
+            if (!used.contains(f.getName()) && f.lastModified() < cutoff && f.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Log.i(t, "Deleted " + deleted + " media files no form uses");
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.odk.collect.android.application.Collect;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Pre-scaled copies of form media images, generated in the background once media has been
+ * downloaded or discovered on the sdcard, so that rendering a choice image decodes a file close
+ * to the size it is displayed at instead of the full resolution original.
+ *
+ * Thumbnails are stored in {@link #THUMBNAIL_PATH} as [md5]_[size].[ext], one per entry of
+ * {@link #LEVELS} smaller than the original. Since they're keyed by content, forms sharing the
+ * same media share thumbnails. An index of path, length, modified time and md5 avoids re-hashing
+ * media files when looking thumbnails up; a file that no longer matches its index entry is simply
+ * served at full size until it is regenerated. The index is appended to as thumbnails are made and
+ * rewritten without superseded lines and deleted files once they make up most of it.
+ */
+public class ThumbnailStore {
+    private final static String t = "ThumbnailStore";
+
+    public static final String THUMBNAIL_PATH = Collect.CACHE_PATH + "/thumbnails";
+
+    /**
+     * Longest edge, in pixels, of each generated size: list rows, grid cells and full screen.
+     */
+    public static final int[] LEVELS = {
+            160, 320, 640, 1280
+    };
+
+    private static final String INDEX_FILE = "index";
+    private static final int JPEG_QUALITY = 85;
+    // the index is compacted once it has this many lines more than twice its entries
+    private static final int COMPACT_SLACK = 64;
+
+    private static ThumbnailStore singleton = null;
+
+    private HashMap<String, IndexEntry> mIndex = null;
+    private int mIndexLines = 0;
+    private final ExecutorService mExecutor;
+
+    private static class IndexEntry {
+        final long length;
+        final long modified;
+        final String md5;
+
+
+        IndexEntry(long length, long modified, String md5) {
+            this.length = length;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+
+
+        boolean matches(File f) {
+            return f.length() == length && f.lastModified() == modified;
+        }
+    }
+
+
+    public static synchronized ThumbnailStore getInstance() {
+        if (singleton == null) {
+            singleton = new ThumbnailStore();
+        }
+        return singleton;
+    }
+
+
+    private ThumbnailStore() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, t);
+            }
+        });
+    }
+
+
+    /**
+     * Returns the smallest pre-scaled copy of original whose longest edge is at least
+     * maxDimension, or the original itself if there isn't one.
+     */
+    public File getClosest(File original, int maxDimension) {
+        IndexEntry e;
+        synchronized (this) {
+            e = getIndex().get(original.getAbsolutePath());
+        }
+        if (e == null || !e.matches(original)) {
+            return original;
+        }
+        for (int level : LEVELS) {
+            if (level >= maxDimension) {
+                File thumb = getThumbnailFile(original, e.md5, level);
+                if (thumb.exists()) {
+                    return thumb;
+                }
+            }
+        }
+        return original;
+    }
+
+
+    /**
+     * Queues thumbnail generation for every image in a form's media directory.
+     *
+     * @param mediaDir the form's media directory
+     * @param knownHashes md5 of files by name, e.g. from the manifest, to avoid re-hashing. May be
+     *            null.
+     */
+    public void generateInBackground(final File mediaDir, final Map<String, String> knownHashes) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                generate(mediaDir, knownHashes);
+            }
+        });
+    }
+
+
+    /**
+     * Generates any missing thumbnails for the images in mediaDir on the calling thread.
+     */
+    public void generate(File mediaDir, Map<String, String> knownHashes) {
+        File[] files = SharedMediaStore.listFiles(mediaDir);
+        if (files == null) {
+            return;
+        }
+        if (!FileUtils.createFolder(THUMBNAIL_PATH)) {
+            Log.e(t, "Unable to create " + THUMBNAIL_PATH);
+            return;
+        }
+        for (File f : files) {
+            if (!f.isFile() || !isImage(f)) {
+                continue;
+            }
+            IndexEntry e;
+            synchronized (this) {
+                e = getIndex().get(f.getAbsolutePath());
+            }
+            if (e != null && e.matches(f)) {
+                continue;
+            }
+            String md5 = knownHashes == null ? null : knownHashes.get(f.getName());
+            if (md5 == null) {
+                md5 = FileUtils.getMd5Hash(f);
+            }
+            if (md5 == null) {
+                continue;
+            }
+            try {
+                generateThumbnails(f, md5);
+                addToIndex(f, new IndexEntry(f.length(), f.lastModified(), md5));
+            } catch (OutOfMemoryError oom) {
+                Log.e(t, "Out of memory generating thumbnails for " + f.getAbsolutePath());
+            } catch (IOException ioe) {
+                Log.e(t, "Unable to write thumbnails for " + f.getAbsolutePath() + ": "
+                        + ioe.getMessage());
+            }
+        }
+        compactIndex();
+    }
+
+
+    private void generateThumbnails(File f, String md5) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getAbsolutePath(), bounds);
+        int longest = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longest <= 0) {
+            // not something BitmapFactory understands
+            return;
+        }
+
+        for (int level : LEVELS) {
+            if (level >= longest) {
+                break;
+            }
+            File thumb = getThumbnailFile(f, md5, level);
+            if (thumb.exists()) {
+                continue;
+            }
+
+            // sample down by the largest power of two that stays above the level, then scale
+            // the rest of the way
+            int sample = 1;
+            while (longest / (sample * 2) >= level) {
+                sample *= 2;
+            }
+            BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inSampleSize = sample;
+            Bitmap sampled = BitmapFactory.decodeFile(f.getAbsolutePath(), o);
+            if (sampled == null) {
+                return;
+            }
+            float scale = (float) level / Math.max(sampled.getWidth(), sampled.getHeight());
+            int width = Math.max(1, Math.round(sampled.getWidth() * scale));
+            int height = Math.max(1, Math.round(sampled.getHeight() * scale));
+            Bitmap scaled = Bitmap.createScaledBitmap(sampled, width, height, true);
+            if (scaled != sampled) {
+                sampled.recycle();
+            }
+
+            File tmp = new File(thumb.getAbsolutePath() + ".tmp");
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                if (isPng(f)) {
+                    scaled.compress(Bitmap.CompressFormat.PNG, 100, os);
+                } else {
+                    scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
+                }
+            } finally {
+                os.close();
+                scaled.recycle();
+            }
+            if (!tmp.renameTo(thumb)) {
+                tmp.delete();
+                throw new IOException("Unable to rename " + tmp.getAbsolutePath());
+            }
+        }
+    }
+
+
+    private static File getThumbnailFile(File original, String md5, int level) {
+        return new File(THUMBNAIL_PATH, md5 + "_" + level + (isPng(original) ? ".png" : ".jpg"));
+    }
+
+
+    private static boolean isPng(File f) {
+        return f.getName().toLowerCase().endsWith(".png");
+    }
+
+
+    private static boolean isImage(File f) {
+        String name = f.getName().toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")
+                || name.endsWith(".gif") || name.endsWith(".bmp");
+    }
+
+
+    private HashMap<String, IndexEntry> getIndex() {
+        if (mIndex == null) {
+            mIndex = new HashMap<String, IndexEntry>();
+            File index = new File(THUMBNAIL_PATH, INDEX_FILE);
+            if (index.exists()) {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new FileReader(index));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        mIndexLines++;
+                        String[] fields = line.split("\t");
+                        if (fields.length == 4) {
+                            // later lines supersede earlier ones for the same path
+                            mIndex.put(fields[0], new IndexEntry(Long.parseLong(fields[1]), Long
+                                    .parseLong(fields[2]), fields[3]));
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(t, "Unable to read thumbnail index: " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    Log.e(t, "Corrupt thumbnail index: " + e.getMessage());
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        }
+        return mIndex;
+    }
+
+
+    private synchronized void addToIndex(File f, IndexEntry e) {
+        getIndex().put(f.getAbsolutePath(), e);
+        Writer w = null;
+        try {
+            w = new FileWriter(new File(THUMBNAIL_PATH, INDEX_FILE), true);
+            w.write(f.getAbsolutePath() + "\t" + e.length + "\t" + e.modified + "\t" + e.md5 + "\n");
+            mIndexLines++;
+        } catch (IOException ioe) {
+            Log.e(t, "Unable to update thumbnail index: " + ioe.getMessage());
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Rewrites the index with one line per file still on disk, if superseded lines have come to
+     * make up most of it.
+     */
+    private synchronized void compactIndex() {
+        HashMap<String, IndexEntry> index = getIndex();
+        if (mIndexLines <= index.size() * 2 + COMPACT_SLACK) {
+            return;
+        }
+        for (Iterator<String> it = index.keySet().iterator(); it.hasNext();) {
+            if (!new File(it.next()).exists()) {
+                it.remove();
+            }
+        }
+        File temp = new File(THUMBNAIL_PATH, INDEX_FILE + ".tmp");
+        Writer w = null;
+        try {
+            w = new FileWriter(temp);
+            for (Map.Entry<String, IndexEntry> e : index.entrySet()) {
+                IndexEntry entry = e.getValue();
+                w.write(e.getKey() + "\t" + entry.length + "\t" + entry.modified + "\t"
+                        + entry.md5 + "\n");
+            }
+            w.close();
+            w = null;
+            if (temp.renameTo(new File(THUMBNAIL_PATH, INDEX_FILE))) {
+                Log.i(t, "Compacted thumbnail index from " + mIndexLines + " to " + index.size()
+                        + " lines");
+                mIndexLines = index.size();
+            } else {
+                temp.delete();
+            }
+        } catch (IOException ioe) {
+            Log.e(t, "Unable to compact thumbnail index: " + ioe.getMessage());
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+}
@@ -3,8 +3,8 @@ package org.odk.collect.android.views;
 import java.io.File;
 
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
 import org.odk.collect.android.R;
+import org.odk.collect.android.utilities.ReferenceResolver;
 
 import android.content.ActivityNotFoundException;
 import android.content.Context;
@@ -97,8 +97,7 @@ public class ResizingImageView extends ImageView {
 		}
 		
 		try {
-			String imageFilename = ReferenceManager._()
-					.DeriveReference(imageFileURI).getLocalURI();
+			String imageFilename = ReferenceResolver.getLocalURI(imageFileURI);
 			File bigImage = new File(imageFilename);
 
 			Intent i = new Intent("android.intent.action.VIEW");
@@ -8,8 +8,8 @@ import java.io.File;
 import java.io.IOException;
 
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
 import org.odk.collect.android.R;
+import org.odk.collect.android.utilities.ReferenceResolver;
 
 import android.content.Context;
 import android.media.MediaPlayer;
@@ -31,6 +31,8 @@ public class AudioButton extends ImageButton implements OnClickListener {
     private MediaState currentState;
     private AudioController controller;
     private Object residingViewId;
+    // the source this button holds a reference to in the AudioPlayerPool, if any
+    private String registeredURI;
     
     /*
      * Constructor for if not explicitly using an AudioController
@@ -41,6 +43,7 @@ public class AudioButton extends ImageButton implements OnClickListener {
     	//default implementation of controller if none is passed in
     	this.controller = new AudioController() {
     		private MediaPlayer mp;
+    		private String source;
     		
     		@Override
         	public MediaEntity getCurrMedia() {
@@ -50,6 +53,7 @@ public class AudioButton extends ImageButton implements OnClickListener {
         	@Override
         	public void setCurrent(MediaEntity newEntity) {
         		this.mp = newEntity.getPlayer();
+        		this.source = newEntity.getSource();
         	}
 
         	@Override
@@ -60,8 +64,9 @@ public class AudioButton extends ImageButton implements OnClickListener {
         	@Override
         	public void releaseCurrentMediaEntity() {
         		if (mp != null) {
-        			mp.reset();
-        			mp.release();
+        			// kept prepared for the next tap while the prompt is on screen
+        			AudioPlayerPool.getInstance().recycle(source, mp);
+        			mp = null;
         		}
         	}
 
@@ -125,6 +130,12 @@ public class AudioButton extends ImageButton implements OnClickListener {
     }
     
     public void resetButton(String URI, boolean visible) {
+    	if (registeredURI != null && !registeredURI.equals(URI)) {
+    		// recycled for different audio
+    		unregisterFromPool();
+    		this.URI = URI;
+    		registerWithPool();
+    	}
         this.URI = URI;
         this.currentState = MediaState.Ready;
     	this.setImageResource(R.drawable.ic_media_btn_play);
@@ -147,6 +158,7 @@ public class AudioButton extends ImageButton implements OnClickListener {
     @Override
     protected void onAttachedToWindow() {
     	super.onAttachedToWindow();
+    	registerWithPool();
     	/*As soon as this button is attached to the Window we want it to "grab" the handle
     	to the currently playing media. This will have the side effect of dropping the handle
     	from anything else that was currently holding it. Only one View at a time should
@@ -154,6 +166,37 @@ public class AudioButton extends ImageButton implements OnClickListener {
     	attachToMedia();
     }
     
+    @Override
+    protected void onDetachedFromWindow() {
+    	unregisterFromPool();
+    	super.onDetachedFromWindow();
+    }
+    
+    /*
+     * Lets the player pool prepare this button's audio ahead of a tap
+     */
+    private void registerWithPool() {
+    	if (registeredURI != null || URI == null) {
+    		return;
+    	}
+        try {
+            String audioFilename = ReferenceResolver.getLocalURI(URI);
+            if (ReferenceResolver.exists(audioFilename)) {
+            	registeredURI = URI;
+            	AudioPlayerPool.getInstance().register(URI, audioFilename);
+            }
+        } catch (InvalidReferenceException e) {
+        	// reported when the button is tapped
+        }
+    }
+    
+    private void unregisterFromPool() {
+    	if (registeredURI != null) {
+    		AudioPlayerPool.getInstance().unregister(registeredURI);
+    		registeredURI = null;
+    	}
+    }
+    
     private void attachToMedia() {
     	/*
     	 * Check if the button in this view had media assigned to 
@@ -243,7 +286,7 @@ public class AudioButton extends ImageButton implements OnClickListener {
 
         String audioFilename = "";
         try {
-            audioFilename = ReferenceManager._().DeriveReference(URI).getLocalURI();
+            audioFilename = ReferenceResolver.getLocalURI(URI);
         } catch (InvalidReferenceException e) {
             Log.e(t, "Invalid reference exception");
             e.printStackTrace();
@@ -268,13 +311,18 @@ public class AudioButton extends ImageButton implements OnClickListener {
         
         switch(currentState) {
         case Ready:
-        	MediaPlayer player = new MediaPlayer();
+        	MediaPlayer player = AudioPlayerPool.getInstance().acquire(URI);
             try {
-                player.setDataSource(audioFilename);
-                player.prepare();
+            	if (player == null) {
+            		// not prepared ahead of time (yet), do it now
+            		player = new MediaPlayer();
+            		player.setDataSource(audioFilename);
+            		player.prepare();
+            	}
                 player.setOnCompletionListener(new OnCompletionListener() {
                     @Override
                     public void onCompletion(MediaPlayer mediaPlayer) {
+                    	setStateToReady();
                     	endPlaying();
                     }
 
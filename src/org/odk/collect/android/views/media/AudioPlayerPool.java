@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.views.media;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.media.MediaPlayer;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Keeps prepared MediaPlayers for the audio prompts on screen, so that tapping an
+ * {@link AudioButton} starts the sound right away instead of preparing the file first.
+ *
+ * Buttons register their audio when they are attached to the window and unregister it when they
+ * are detached; the file is prepared in the background while at least one button on screen uses
+ * it, and its player is released once none does. A player handed out for playback can be given
+ * back afterwards and is rewound for the next tap instead of being released. At most
+ * {@link #MAX_PLAYERS} idle players are kept; audio beyond that is prepared on tap as before.
+ *
+ * All public methods must be called from the UI thread.
+ */
+public class AudioPlayerPool {
+    private final static String t = "AudioPlayerPool";
+
+    public static final int MAX_PLAYERS = 6;
+
+    private static AudioPlayerPool singleton = null;
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * Number of attached buttons using each source.
+     */
+    private final HashMap<String, Integer> mReferences = new HashMap<String, Integer>();
+
+    /**
+     * Idle players by source. A null value means the player is still being prepared.
+     */
+    private final HashMap<String, MediaPlayer> mPlayers = new HashMap<String, MediaPlayer>();
+
+
+    public static synchronized AudioPlayerPool getInstance() {
+        if (singleton == null) {
+            singleton = new AudioPlayerPool();
+        }
+        return singleton;
+    }
+
+
+    private AudioPlayerPool() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, t);
+            }
+        });
+    }
+
+
+    /**
+     * Notes that a button on screen plays source, preparing a player for it in the background if
+     * there's room.
+     *
+     * @param source the audio URI, used as the key
+     * @param filename the local file the URI resolves to
+     */
+    public synchronized void register(final String source, final String filename) {
+        Integer count = mReferences.get(source);
+        mReferences.put(source, count == null ? 1 : count + 1);
+        if (mPlayers.containsKey(source) || mPlayers.size() >= MAX_PLAYERS) {
+            return;
+        }
+
+        mPlayers.put(source, null);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                MediaPlayer player = new MediaPlayer();
+                try {
+                    player.setDataSource(filename);
+                    player.prepare();
+                } catch (IOException e) {
+                    // the button reports the problem when it's tapped
+                    Log.e(t, "Unable to prepare " + filename + ": " + e.getMessage());
+                    player.release();
+                    player = null;
+                }
+                prepared(source, player);
+            }
+        });
+    }
+
+
+    private synchronized void prepared(String source, MediaPlayer player) {
+        if (player == null || !mReferences.containsKey(source) || !mPlayers.containsKey(source)
+                || mPlayers.get(source) != null) {
+            // failed, no longer on screen, or a recycled player got there first
+            if (mPlayers.get(source) == null) {
+                mPlayers.remove(source);
+            }
+            if (player != null) {
+                player.release();
+            }
+            return;
+        }
+        mPlayers.put(source, player);
+    }
+
+
+    /**
+     * Notes that a button playing source has left the screen, releasing the idle player for it if
+     * no other button uses it.
+     */
+    public synchronized void unregister(String source) {
+        Integer count = mReferences.get(source);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mReferences.put(source, count - 1);
+            return;
+        }
+        mReferences.remove(source);
+        MediaPlayer player = mPlayers.remove(source);
+        if (player != null) {
+            player.release();
+        }
+    }
+
+
+    /**
+     * Takes the prepared player for source out of the pool.
+     *
+     * @return the player, ready to start, or null if there isn't one (yet)
+     */
+    public synchronized MediaPlayer acquire(String source) {
+        MediaPlayer player = mPlayers.get(source);
+        if (player == null) {
+            return null;
+        }
+        mPlayers.remove(source);
+        return player;
+    }
+
+
+    /**
+     * Gives back a player that's done playing source. It's rewound and kept if source is still on
+     * screen and there's room, and released otherwise.
+     */
+    public synchronized void recycle(String source, MediaPlayer player) {
+        if (player == null) {
+            return;
+        }
+        if (mReferences.containsKey(source) && mPlayers.get(source) == null
+                && (mPlayers.containsKey(source) || mPlayers.size() < MAX_PLAYERS)) {
+            try {
+                if (player.isPlaying()) {
+                    player.pause();
+                }
+                player.seekTo(0);
+                player.setOnCompletionListener(null);
+                // replaces a player that may still be being prepared; that one is dropped
+                mPlayers.put(source, player);
+                return;
+            } catch (IllegalStateException e) {
+                Log.w(t, "Unable to rewind player for " + source);
+            }
+        }
+        player.reset();
+        player.release();
+    }
+}
@@ -4,11 +4,10 @@ package org.odk.collect.android.views.media;
 import java.io.File;
 
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
 import org.odk.collect.android.R;
 import org.odk.collect.android.preferences.PreferencesActivity;
-import org.odk.collect.android.utilities.FileUtils;
-import org.odk.collect.android.utilities.QRCodeEncoder;
+import org.odk.collect.android.utilities.AsyncBitmapLoader;
+import org.odk.collect.android.utilities.ReferenceResolver;
 import org.odk.collect.android.views.ResizingImageView;
 
 import android.app.Activity;
@@ -50,6 +49,9 @@ public class MediaLayout extends RelativeLayout {
     private int minimumHeight =-1;
     private int maximumHeight =-1;
 
+    // images cancelled when the layout was last detached, restarted if it comes back
+    private AsyncBitmapLoader.Cancelled mCancelledImages;
+
 
     public MediaLayout(Context c) {
         super(c);
@@ -106,7 +108,7 @@ public class MediaLayout extends RelativeLayout {
                     String videoFilename = "";
                     try {
                         videoFilename =
-                            ReferenceManager._().DeriveReference(videoURI).getLocalURI();
+                            ReferenceResolver.getLocalURI(videoURI);
                     } catch (InvalidReferenceException e) {
                         Log.e(t, "Invalid reference exception");
                         e.printStackTrace();
@@ -168,7 +170,6 @@ public class MediaLayout extends RelativeLayout {
         
         View imageView= null;
         if(qrCodeContent != null ) {
-            Bitmap image;
             Display display =
                     ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
                             .getDefaultDisplay();
@@ -181,23 +182,18 @@ public class MediaLayout extends RelativeLayout {
                 
                 int minimumDim = Math.min(screenWidth,  screenHeight);
 
-            	try {
-            		QRCodeEncoder qrCodeEncoder = new QRCodeEncoder(qrCodeContent,minimumDim);
-                
-            		image = qrCodeEncoder.encodeAsBitmap();
-            		
-            		mImageView = new ResizingImageView(getContext());
-            		mImageView.setPadding(10, 10, 10, 10);
-            		mImageView.setAdjustViewBounds(true);
-            		mImageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
-            		mImageView.setImageBitmap(image);
-            		mImageView.setId(23423534);
-            		//mImageView.resizeMaxMin(minimumHeight, maximumHeight);
-            		
-            		imageView = mImageView;
-            	} catch(Exception e) {
-            		e.printStackTrace();
-            	}
+            	mImageView = new ResizingImageView(getContext());
+            	mImageView.setPadding(10, 10, 10, 10);
+            	mImageView.setAdjustViewBounds(true);
+            	mImageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            	mImageView.setId(23423534);
+            	//mImageView.resizeMaxMin(minimumHeight, maximumHeight);
+
+            	// cached across refreshes and rotations, encoded in the background otherwise
+            	AsyncBitmapLoader.getInstance().loadQRCode(this, mImageView, qrCodeContent,
+            	    minimumDim, null);
+
+            	imageView = mImageView;
             }
         	
     	} else if (imageURI != null) {
@@ -224,44 +220,40 @@ public class MediaLayout extends RelativeLayout {
                 
                 //If we didn't get an image yet, try for a norm
 
-                final String imageFilename = ReferenceManager._().DeriveReference(imageURI).getLocalURI();
+                final String imageFilename = ReferenceResolver.getLocalURI(imageURI);
                 final File imageFile = new File(imageFilename);
-                if (imageFile.exists()) {
-                    Bitmap b = null;
-                    try {
-                        Display display =
-                                ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
-                                        .getDefaultDisplay();
-
-
-                        int screenWidth = display.getWidth();
-                        int screenHeight = display.getHeight();
-                        b =
-                            FileUtils
-                                    .getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                    } catch (OutOfMemoryError e) {
-                        errorMsg = "ERROR: " + e.getMessage();
-                    }
+                if (ReferenceResolver.exists(imageFilename)) {
+                    Display display =
+                            ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
+                                    .getDefaultDisplay();
 
-                    if (b != null) {
-                    	mImageView = new ResizingImageView(getContext(), imageURI, bigImageURI);
-                        mImageView.setPadding(10, 10, 10, 10);
-                        mImageView.setAdjustViewBounds(true);
-                		
-                		if(ResizingImageView.resizeMethod.equals("full")){
-                            mImageView.setMaxHeight(maxHeight);
-                            mImageView.setMaxWidth(maxWidth);
-                		}
-                       
-                        mImageView.setImageBitmap(b);
-                        mImageView.setId(23423534);
-                        imageView = mImageView;
-                    } else if (errorMsg == null) {
-                        // An error hasn't been logged and loading the image failed, so it's likely
-                        // a bad file.
-                        errorMsg = getContext().getString(R.string.file_invalid, imageFile);
 
-                    }
+                    int screenWidth = display.getWidth();
+                    int screenHeight = display.getHeight();
+
+                    mImageView = new ResizingImageView(getContext(), imageURI, bigImageURI);
+                    mImageView.setPadding(10, 10, 10, 10);
+                    mImageView.setAdjustViewBounds(true);
+            		
+            		if(ResizingImageView.resizeMethod.equals("full")){
+                        mImageView.setMaxHeight(maxHeight);
+                        mImageView.setMaxWidth(maxWidth);
+            		}
+
+                    mImageView.setId(23423534);
+                    imageView = mImageView;
+                    // decoded in the background, a broken image icon replaces the placeholder if
+                    // the file turns out not to be a valid image
+                    AsyncBitmapLoader.getInstance().load(this, mImageView, imageFile,
+                        screenHeight, screenWidth, new AsyncBitmapLoader.BitmapLoadListener() {
+                            public void bitmapLoaded(ImageView view, Bitmap b) {
+                            }
+
+
+                            public void bitmapFailed(ImageView view, File f) {
+                                Log.e(t, getContext().getString(R.string.file_invalid, f));
+                            }
+                        });
                 } else if (errorMsg == null) {
                     // An error hasn't been logged. We should have an image, but the file doesn't
                     // exist.
@@ -342,4 +334,22 @@ public class MediaLayout extends RelativeLayout {
         }
     }
 
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mCancelledImages != null) {
+            AsyncBitmapLoader.getInstance().restart(mCancelledImages);
+            mCancelledImages = null;
+        }
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // don't decode an image or encode a QR code nobody will see
+        mCancelledImages = AsyncBitmapLoader.getInstance().cancel(this);
+        super.onDetachedFromWindow();
+    }
+
 }
@@ -6,17 +6,24 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.form.api.FormEntryPrompt;
+import org.odk.collect.android.activities.FormEntryActivity;
+import org.odk.collect.android.utilities.ChoiceSearchIndex;
 
 import android.content.Context;
 import android.graphics.Color;
 import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
+import android.widget.BaseAdapter;
 import android.widget.Filter;
 import android.widget.Filterable;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Vector;
 
@@ -40,9 +47,16 @@ public class AutoCompleteWidget extends QuestionWidget {
     String filterType;
 
     // The various filter types
-    String match_substring = "substring";
-    String match_prefix = "prefix";
-    String match_chars = "chars";
+    String match_substring = ChoiceSearchIndex.MATCH_SUBSTRING;
+    String match_prefix = ChoiceSearchIndex.MATCH_PREFIX;
+    String match_chars = ChoiceSearchIndex.MATCH_CHARS;
+
+    // Shared by every filtering call and by getAnswer
+    ChoiceSearchIndex mIndex;
+
+    private static ChoiceSearchIndex sLastIndex = null;
+    private static WeakReference<Vector<SelectChoice>> sLastItems = null;
+    private static String sLastLanguage = null;
 
 
     public AutoCompleteWidget(Context context, FormEntryPrompt prompt, String filterType) {
@@ -60,9 +74,7 @@ public class AutoCompleteWidget extends QuestionWidget {
             this.filterType = match_substring;
         }
 
-        for (SelectChoice sc : mItems) {
-            choices.add(prompt.getSelectChoiceText(sc));
-        }
+        mIndex = getIndex(prompt, mItems);
         choices.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
 
         autocomplete.setAdapter(choices);
@@ -80,6 +92,7 @@ public class AutoCompleteWidget extends QuestionWidget {
 
             if (sMatch.equals(s)) {
                 autocomplete.setText(mItems.get(i).getLabelInnerText());
+                break;
             }
         }
 
@@ -91,10 +104,9 @@ public class AutoCompleteWidget extends QuestionWidget {
     @Override
     public IAnswerData getAnswer() {
         String response = autocomplete.getText().toString();
-        for (SelectChoice sc : mItems) {
-            if (response.equals(mPrompt.getSelectChoiceText(sc))) {
-                return new SelectOneData(new Selection(sc));
-            }
+        int position = mIndex.indexOfLabel(response);
+        if (position != -1) {
+            return new SelectOneData(new Selection(mItems.get(position)));
         }
 
         // If the user has typed text into the autocomplete box that doesn't match any answer, warn
@@ -124,138 +136,112 @@ public class AutoCompleteWidget extends QuestionWidget {
 
     }
 
-    private class AutoCompleteAdapter extends ArrayAdapter<String> implements Filterable {
+    /**
+     * Returns the search index for the given prompt's choices, reusing the one built for the last
+     * autocomplete question if it was built from the same choices in the same language, as happens
+     * whenever the question is redrawn.
+     */
+    private static synchronized ChoiceSearchIndex getIndex(FormEntryPrompt prompt,
+            Vector<SelectChoice> items) {
+        String language =
+            FormEntryActivity.mFormController == null ? null : FormEntryActivity.mFormController
+                    .getLanguage();
+        if (sLastIndex != null && sLastItems != null && sLastItems.get() == items
+                && (language == null ? sLastLanguage == null : language.equals(sLastLanguage))) {
+            return sLastIndex;
+        }
+
+        ArrayList<String> labels = new ArrayList<String>(items.size());
+        for (SelectChoice sc : items) {
+            labels.add(prompt.getSelectChoiceText(sc));
+        }
+        sLastIndex = new ChoiceSearchIndex(labels);
+        sLastItems = new WeakReference<Vector<SelectChoice>>(items);
+        sLastLanguage = language;
+        return sLastIndex;
+    }
+
+    private class AutoCompleteAdapter extends BaseAdapter implements Filterable {
 
+        private final int mResource;
+        private int mDropDownResource;
+        private final LayoutInflater mInflater;
         private ItemsFilter mFilter;
-        public ArrayList<String> mItems;
+        private ArrayList<String> mMatches;
 
 
         public AutoCompleteAdapter(Context context, int textViewResourceId) {
-            super(context, textViewResourceId);
-            mItems = new ArrayList<String>();
+            mResource = textViewResourceId;
+            mDropDownResource = textViewResourceId;
+            mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            mMatches = new ArrayList<String>(0);
         }
 
 
-        @Override
-        public void add(String toAdd) {
-            super.add(toAdd);
-            mItems.add(toAdd);
+        public void setDropDownViewResource(int resource) {
+            mDropDownResource = resource;
         }
 
 
-        @Override
         public int getCount() {
-            return mItems.size();
+            return mMatches.size();
         }
 
 
-        @Override
         public String getItem(int position) {
-            return mItems.get(position);
+            return mMatches.get(position);
         }
 
 
-        @Override
-        public int getPosition(String item) {
-            return mItems.indexOf(item);
+        public long getItemId(int position) {
+            return position;
         }
 
 
-        public Filter getFilter() {
-            if (mFilter == null) {
-                mFilter = new ItemsFilter(mItems);
-            }
-            return mFilter;
+        public View getView(int position, View convertView, ViewGroup parent) {
+            return createView(position, convertView, parent, mResource);
         }
 
 
         @Override
-        public long getItemId(int position) {
-            return position;
+        public View getDropDownView(int position, View convertView, ViewGroup parent) {
+            return createView(position, convertView, parent, mDropDownResource);
         }
 
-        private class ItemsFilter extends Filter {
-            final ArrayList<String> mItemsArray;
 
+        private View createView(int position, View convertView, ViewGroup parent, int resource) {
+            TextView text =
+                (TextView) (convertView != null ? convertView : mInflater.inflate(resource,
+                    parent, false));
+            text.setText(getItem(position));
+            return text;
+        }
 
-            public ItemsFilter(ArrayList<String> list) {
-                if (list == null) {
-                    mItemsArray = new ArrayList<String>();
-                } else {
-                    mItemsArray = new ArrayList<String>(list);
-                }
+
+        public Filter getFilter() {
+            if (mFilter == null) {
+                mFilter = new ItemsFilter();
             }
+            return mFilter;
+        }
 
+        private class ItemsFilter extends Filter {
 
             @Override
             protected FilterResults performFiltering(CharSequence prefix) {
-                // Initiate our results object
                 FilterResults results = new FilterResults();
-
-                // If the adapter array is empty, check the actual items array and use it
-                if (mItems == null) {
-                    mItems = new ArrayList<String>(mItemsArray);
-                }
-
-                // No prefix is sent to filter by so we're going to send back the original array
+                ArrayList<String> matches;
                 if (prefix == null || prefix.length() == 0) {
-                    results.values = mItemsArray;
-                    results.count = mItemsArray.size();
-                } else {
-                    // Compare lower case strings
-                    String prefixString = prefix.toString().toLowerCase();
-
-                    // Local to here so we're not changing actual array
-                    final ArrayList<String> items = mItems;
-                    final int count = items.size();
-                    final ArrayList<String> newItems = new ArrayList<String>(count);
-
-                    for (int i = 0; i < count; i++) {
-                        final String item = items.get(i);
-                        String item_compare = item.toLowerCase();
-
-                        // Match the strings using the filter specified
-                        if (filterType.equals(match_substring)
-                                && (item_compare.startsWith(prefixString) || item_compare
-                                        .contains(prefixString))) {
-                            newItems.add(item);
-                        } else if (filterType.equals(match_prefix)
-                                && item_compare.startsWith(prefixString)) {
-                            newItems.add(item);
-                        } else if (filterType.equals(match_chars)) {
-                            char[] toMatch = prefixString.toCharArray();
-
-                            boolean matches = true;
-                            for (int j = 0; j < toMatch.length; j++) {
-                                int index = item_compare.indexOf(toMatch[j]);
-                                if (index > -1) {
-                                    item_compare =
-                                        item_compare.substring(0, index)
-                                                + item_compare.substring(index + 1);
-                                } else {
-                                    matches = false;
-                                    break;
-                                }
-                            }
-
-                            if (matches) {
-                                newItems.add(item);
-                            }
-
-                        } else {
-                            // Default to substring
-                            if (item_compare.startsWith(prefixString)
-                                    || item_compare.contains(prefixString)) {
-                                newItems.add(item);
-                            }
-                        }
+                    matches = new ArrayList<String>(mIndex.size());
+                    for (int i = 0; i < mIndex.size(); i++) {
+                        matches.add(mIndex.getLabel(i));
                     }
-
-                    // Set and return
-                    results.values = newItems;
-                    results.count = newItems.size();
+                } else {
+                    // runs on the filter thread; the index only touches labels matching so far
+                    matches = mIndex.filter(prefix.toString(), filterType);
                 }
-
+                results.values = matches;
+                results.count = matches.size();
                 return results;
             }
 
@@ -263,7 +249,7 @@ public class AutoCompleteWidget extends QuestionWidget {
             @SuppressWarnings("unchecked")
             @Override
             protected void publishResults(CharSequence constraint, FilterResults results) {
-                mItems = (ArrayList<String>) results.values;
+                mMatches = (ArrayList<String>) results.values;
                 // Let the adapter know about the updated list
                 if (results.count > 0) {
                     notifyDataSetChanged();
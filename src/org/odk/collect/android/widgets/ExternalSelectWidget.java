@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.AbstractTreeElement;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.model.xform.XPathReference;
+import org.odk.collect.android.R;
+import org.odk.collect.android.database.ExternalDataManager;
+import org.odk.collect.android.database.ExternalDataManager.ExternalTable;
+import org.odk.collect.android.utilities.ReferenceResolver;
+import org.odk.collect.android.utilities.StringUtils;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.Display;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.RadioButton;
+import android.widget.TextView;
+
+/**
+ * Select one and select multiple questions whose choices come from a CSV in the form's media
+ * folder rather than from the form itself. The appearance names the file and, optionally, columns
+ * that must equal other answers, which is how cascading selects are expressed:
+ *
+ * <pre>
+ * external:villages.csv
+ * external:villages.csv?district=/data/district&amp;region=/data/region
+ * </pre>
+ *
+ * The "name" column holds the choice values and the "label" column the text shown; without those
+ * headers the first and second columns are used. Rows are read from the imported table through a
+ * cursor as they scroll into view, so no choice is held in memory. When an answer a filter
+ * refers to changes on the same screen, {@link #refreshChoices()} runs the query again.
+ *
+ * The form definition is shared by every prompt, so its questions are left alone: each answer
+ * carries a {@link SelectChoice} of its own, built for the picked row. JavaRosa drops answers
+ * that aren't among their question's choices when a saved instance is imported, so those are
+ * read from the saved instance by {@link #getSavedAnswers(FormDef, TreeElement)} and put back by
+ * {@link #restoreSavedAnswers(FormDef, Map)}. Questions with an itemset are left to the usual
+ * widgets, since JavaRosa matches their answers against the itemset instead.
+ */
+public class ExternalSelectWidget extends QuestionWidget {
+    private static final String t = "ExternalSelectWidget";
+
+    public static final String APPEARANCE_PREFIX = "external:";
+
+    private static final String VALUE_COLUMN = "name";
+    private static final String LABEL_COLUMN = "label";
+
+    // JavaRosa looks a selection's choice up in the question while its index is unset, which would
+    // fail for the choices made here
+    private static final int DETACHED_INDEX = Integer.MAX_VALUE;
+
+    private final boolean mMultiple;
+    private final FormDef mForm;
+    private final Source mSource;
+
+    // selected values to their labels, in the order they were picked; positions change with the
+    // filters, values don't
+    private final LinkedHashMap<String, String> mSelected = new LinkedHashMap<String, String>();
+
+    // the filter values the cursor was queried with
+    private LinkedHashMap<String, String> mFilterValues;
+    private Cursor mCursor;
+    private final ListView mList;
+    private final ChoiceAdapter mAdapter;
+
+
+    @SuppressWarnings("unchecked")
+    public ExternalSelectWidget(Context context, FormEntryPrompt prompt, FormDef form,
+            boolean multiple) {
+        super(context, prompt);
+        mMultiple = multiple;
+        mForm = form;
+
+        if (prompt.getAnswerValue() != null) {
+            Vector<Selection> selections;
+            if (mMultiple) {
+                selections = (Vector<Selection>) getCurrentAnswer().getValue();
+            } else {
+                selections = new Vector<Selection>();
+                selections.add((Selection) getCurrentAnswer().getValue());
+            }
+            for (Selection s : selections) {
+                mSelected.put(s.getValue(), s.choice == null ? s.getValue() : s.choice
+                        .getLabelInnerText());
+            }
+        }
+
+        mSource = Source.parse(prompt.getAppearanceHint());
+        mFilterValues = resolveFilters();
+        mCursor = mSource.query(mFilterValues);
+
+        mAdapter = new ChoiceAdapter();
+        mList = new ListView(getContext());
+        mList.setAdapter(mAdapter);
+        mList.setItemsCanFocus(false);
+        mList.setEnabled(!prompt.isReadOnly());
+        mList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                toggle(position);
+            }
+        });
+
+        // the question list scrolls too, keep drags that start on the choices for this list
+        mList.setOnTouchListener(new OnTouchListener() {
+            public boolean onTouch(View v, MotionEvent event) {
+                int action = event.getAction();
+                if (action == MotionEvent.ACTION_DOWN) {
+                    v.getParent().requestDisallowInterceptTouchEvent(true);
+                } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    v.getParent().requestDisallowInterceptTouchEvent(false);
+                }
+                return false;
+            }
+        });
+
+        if (mCursor == null) {
+            TextView error = new TextView(getContext());
+            error.setText(StringUtils.getStringRobust(getContext(),
+                R.string.external_choices_unavailable, prompt.getAppearanceHint()));
+            error.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+            addView(error);
+        } else {
+            addView(mList, new LinearLayout.LayoutParams(LayoutParams.FILL_PARENT,
+                    getListHeight()));
+        }
+    }
+
+
+    private int getListHeight() {
+        Display display =
+            ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
+                    .getDefaultDisplay();
+        // short (already filtered) lists only take the room they need
+        int rowHeight = (int) (mAnswerFontsize * 3 * getResources().getDisplayMetrics().density);
+        int height = Math.min(display.getHeight() / 2, rowHeight * mCursor.getCount());
+        return Math.max(height, rowHeight);
+    }
+
+
+    /**
+     * Whether prompt is a select this widget should show: one with an external appearance and no
+     * itemset.
+     */
+    public static boolean handles(FormEntryPrompt prompt) {
+        String appearance = prompt.getAppearanceHint();
+        return appearance != null && appearance.startsWith(APPEARANCE_PREFIX)
+                && prompt.getQuestion().getDynamicChoices() == null;
+    }
+
+
+    /**
+     * An imported CSV and the columns holding the choices' values and labels.
+     */
+    private static class Choices {
+        final ExternalTable table;
+        final String valueColumn;
+        final String labelColumn;
+
+
+        Choices(ExternalTable table, String valueColumn, String labelColumn) {
+            this.table = table;
+            this.valueColumn = valueColumn;
+            this.labelColumn = labelColumn;
+        }
+    }
+
+    /**
+     * An appearance taken apart: the CSV, and the CSV columns that must equal the answers at the
+     * given paths.
+     */
+    private static class Source {
+        final String fileName;
+        final LinkedHashMap<String, String> filters = new LinkedHashMap<String, String>();
+
+
+        private Source(String fileName) {
+            this.fileName = fileName;
+        }
+
+
+        static Source parse(String appearance) {
+            String spec = appearance.substring(APPEARANCE_PREFIX.length()).trim();
+            int query = spec.indexOf('?');
+            if (query == -1) {
+                return new Source(spec);
+            }
+            Source source = new Source(spec.substring(0, query));
+            for (String clause : spec.substring(query + 1).split("&")) {
+                int equals = clause.indexOf('=');
+                if (equals == -1) {
+                    Log.e(t, "Ignoring malformed filter '" + clause + "'");
+                    continue;
+                }
+                source.filters.put(clause.substring(0, equals).trim(), clause.substring(
+                    equals + 1).trim());
+            }
+            return source;
+        }
+
+
+        /**
+         * @return the table and its value and label columns, or null if anything is missing
+         */
+        Choices open() {
+            File csv;
+            try {
+                csv = new File(ReferenceResolver.getLocalURI("jr://file-csv/" + fileName));
+            } catch (InvalidReferenceException e) {
+                Log.e(t, "Invalid external data reference " + fileName);
+                return null;
+            }
+
+            ExternalTable table = ExternalDataManager.getInstance().getTable(csv);
+            if (table == null) {
+                return null;
+            }
+            if (table.getColumn(VALUE_COLUMN) != null && table.getColumn(LABEL_COLUMN) != null) {
+                return new Choices(table, VALUE_COLUMN, LABEL_COLUMN);
+            }
+            if (table.headers.length < 2) {
+                Log.e(t, csv.getName() + " needs a value and a label column");
+                return null;
+            }
+            return new Choices(table, table.headers[0], table.headers[1]);
+        }
+
+
+        /**
+         * @return the cursor over (value, label) rows, or null if anything is missing
+         */
+        Cursor query(Map<String, String> filterValues) {
+            Choices choices = open();
+            if (choices == null) {
+                return null;
+            }
+            return ExternalDataManager.getInstance().query(choices.table, new String[] {
+                    choices.valueColumn, choices.labelColumn
+            }, filterValues);
+        }
+    }
+
+
+    /**
+     * Reads the saved answers of external selects, which JavaRosa would drop when savedRoot is
+     * imported as they aren't among their questions' choices. Must be called after the form's
+     * jr://file-csv/ root is set.
+     *
+     * @return the answers by the reference of the element holding them
+     */
+    public static HashMap<TreeReference, IAnswerData> getSavedAnswers(FormDef form,
+            TreeElement savedRoot) {
+        HashMap<TreeReference, QuestionDef> questions = new HashMap<TreeReference, QuestionDef>();
+        findQuestions(form, questions);
+        HashMap<TreeReference, IAnswerData> answers = new HashMap<TreeReference, IAnswerData>();
+        if (!questions.isEmpty()) {
+            getSavedAnswers(savedRoot, questions, answers);
+        }
+        return answers;
+    }
+
+
+    /**
+     * Puts the answers {@link #getSavedAnswers(FormDef, TreeElement)} read back into the form's
+     * instance, once it has been populated.
+     */
+    public static void restoreSavedAnswers(FormDef form, Map<TreeReference, IAnswerData> answers) {
+        for (Map.Entry<TreeReference, IAnswerData> e : answers.entrySet()) {
+            TreeElement element = form.getInstance().resolveReference(e.getKey());
+            if (element != null) {
+                element.setValue(e.getValue());
+            }
+        }
+    }
+
+
+    private static void findQuestions(IFormElement element,
+            HashMap<TreeReference, QuestionDef> questions) {
+        if (element instanceof QuestionDef) {
+            QuestionDef q = (QuestionDef) element;
+            String appearance = q.getAppearanceAttr();
+            if (appearance != null && appearance.startsWith(APPEARANCE_PREFIX)
+                    && q.getDynamicChoices() == null && q.getBind() != null) {
+                questions.put(((TreeReference) q.getBind().getReference()).genericize(), q);
+            }
+        }
+        Vector<IFormElement> children = element.getChildren();
+        if (children != null) {
+            for (IFormElement child : children) {
+                findQuestions(child, questions);
+            }
+        }
+    }
+
+
+    private static void getSavedAnswers(TreeElement node,
+            HashMap<TreeReference, QuestionDef> questions,
+            HashMap<TreeReference, IAnswerData> answers) {
+        for (int i = 0; i < node.getNumChildren(); i++) {
+            getSavedAnswers(node.getChildAt(i), questions, answers);
+        }
+        QuestionDef q = questions.get(node.getRef().genericize());
+        if (q == null || node.getValue() == null) {
+            return;
+        }
+        Choices choices = Source.parse(q.getAppearanceAttr()).open();
+        if (choices == null) {
+            return;
+        }
+        Vector<Selection> vc = new Vector<Selection>();
+        for (String value : node.getValue().uncast().getString().split(" ")) {
+            if (value.length() == 0) {
+                continue;
+            }
+            // the label as the CSV has it now, or the value if the row is gone
+            String label = value;
+            HashMap<String, String> filter = new HashMap<String, String>();
+            filter.put(choices.valueColumn, value);
+            Cursor c = ExternalDataManager.getInstance().query(choices.table, new String[] {
+                choices.labelColumn
+            }, filter);
+            if (c != null) {
+                try {
+                    if (c.moveToFirst()) {
+                        label = c.getString(0);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            vc.add(new Selection(newChoice(value, label)));
+        }
+        if (vc.isEmpty()) {
+            return;
+        }
+        if (q.getControlType() == Constants.CONTROL_SELECT_MULTI) {
+            answers.put(node.getRef(), new SelectMultiData(vc));
+        } else {
+            answers.put(node.getRef(), new SelectOneData(vc.get(0)));
+        }
+    }
+
+
+    /**
+     * @return a choice for one row of the CSV, belonging to no question
+     */
+    private static SelectChoice newChoice(String value, String label) {
+        SelectChoice choice = new SelectChoice(null, label, value, false);
+        choice.setIndex(DETACHED_INDEX);
+        return choice;
+    }
+
+
+    private LinkedHashMap<String, String> resolveFilters() {
+        LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+        TreeReference context = mPrompt.getIndex().getReference();
+        for (Map.Entry<String, String> e : mSource.filters.entrySet()) {
+            values.put(e.getKey(), resolveValue(mForm, e.getValue(), context));
+        }
+        return values;
+    }
+
+
+    /**
+     * Queries the choices again if the answers the filters refer to have changed, e.g. because
+     * they're on the same screen. Selections the new filters rule out are dropped.
+     */
+    public void refreshChoices() {
+        if (mCursor == null || mSource.filters.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<String, String> filterValues = resolveFilters();
+        if (filterValues.equals(mFilterValues)) {
+            return;
+        }
+        Cursor cursor = mSource.query(filterValues);
+        if (cursor == null) {
+            return;
+        }
+        mFilterValues = filterValues;
+        mCursor.close();
+        mCursor = cursor;
+        if (!mSelected.isEmpty()) {
+            HashSet<String> values = new HashSet<String>();
+            for (mCursor.moveToPosition(-1); mCursor.moveToNext();) {
+                values.add(mCursor.getString(0));
+            }
+            mSelected.keySet().retainAll(values);
+        }
+        mAdapter.notifyDataSetChanged();
+        mList.getLayoutParams().height = getListHeight();
+        mList.requestLayout();
+    }
+
+
+    private static String resolveValue(FormDef form, String path, TreeReference context) {
+        TreeReference ref =
+            ((TreeReference) new XPathReference(path).getReference()).contextualize(context);
+        EvaluationContext ec = new EvaluationContext(form.getEvaluationContext(), ref);
+        AbstractTreeElement e = ec.resolveReference(ref);
+        if (e == null || e.getValue() == null) {
+            return "";
+        }
+        return e.getValue().uncast().getString();
+    }
+
+
+    private void toggle(int position) {
+        if (mPrompt.isReadOnly() || !mCursor.moveToPosition(position)) {
+            return;
+        }
+        String value = mCursor.getString(0);
+        if (mMultiple) {
+            if (mSelected.remove(value) == null) {
+                mSelected.put(value, mCursor.getString(1));
+            }
+        } else {
+            mSelected.clear();
+            mSelected.put(value, mCursor.getString(1));
+        }
+        // only the visible rows are rebound
+        mAdapter.notifyDataSetChanged();
+        widgetEntryChanged();
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+            mAdapter.notifyDataSetInvalidated();
+        }
+    }
+
+
+    @Override
+    public void clearAnswer() {
+        mSelected.clear();
+        mAdapter.notifyDataSetChanged();
+    }
+
+
+    /**
+     * Only the picked choices are built, the rest never leave the database.
+     */
+    @Override
+    public IAnswerData getAnswer() {
+        if (mSelected.isEmpty()) {
+            return null;
+        }
+        Vector<Selection> vc = new Vector<Selection>();
+        for (Map.Entry<String, String> e : mSelected.entrySet()) {
+            vc.add(new Selection(newChoice(e.getKey(), e.getValue())));
+        }
+        if (mMultiple) {
+            return new SelectMultiData(vc);
+        } else {
+            return new SelectOneData(vc.get(0));
+        }
+    }
+
+
+    @Override
+    public void setFocus(Context context) {
+        // Hide the soft keyboard if it's showing.
+        InputMethodManager inputManager =
+            (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputManager.hideSoftInputFromWindow(this.getWindowToken(), 0);
+    }
+
+
+    @Override
+    public void setOnLongClickListener(final OnLongClickListener l) {
+        mList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position,
+                    long id) {
+                return l.onLongClick(ExternalSelectWidget.this);
+            }
+        });
+    }
+
+
+    @Override
+    public void cancelLongPress() {
+        super.cancelLongPress();
+        mList.cancelLongPress();
+    }
+
+    private class ChoiceAdapter extends BaseAdapter {
+
+        public int getCount() {
+            return mCursor == null ? 0 : mCursor.getCount();
+        }
+
+
+        public Object getItem(int position) {
+            return mCursor.moveToPosition(position) ? mCursor.getString(0) : null;
+        }
+
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            CompoundButton button = (CompoundButton) convertView;
+            if (button == null) {
+                if (mMultiple) {
+                    button = new CheckBox(getContext());
+                } else {
+                    button = new RadioButton(getContext());
+                }
+                button.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+                // the row handles clicks so that the whole row is a target
+                button.setFocusable(false);
+                button.setClickable(false);
+                button.setEnabled(!mPrompt.isReadOnly());
+            }
+            if (mCursor.moveToPosition(position)) {
+                button.setText(mCursor.getString(1));
+                button.setChecked(mSelected.containsKey(mCursor.getString(0)));
+            }
+            return button;
+        }
+    }
+
+}
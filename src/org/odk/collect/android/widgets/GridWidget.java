@@ -9,17 +9,17 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.R;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
 import org.odk.collect.android.listeners.WidgetChangedListener;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncBitmapLoader;
+import org.odk.collect.android.utilities.BitmapDecoder;
+import org.odk.collect.android.utilities.ReferenceResolver;
 import org.odk.collect.android.utilities.StringUtils;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.util.Log;
 import android.view.Display;
@@ -107,23 +107,19 @@ public class GridWidget extends QuestionWidget {
 
                 String imageFilename;
                 try {
-                    imageFilename = ReferenceManager._().DeriveReference(imageURI).getLocalURI();
+                    imageFilename = ReferenceResolver.getLocalURI(imageURI);
                     final File imageFile = new File(imageFilename);
-                    if (imageFile.exists()) {
+                    if (ReferenceResolver.exists(imageFilename)) {
                         Display display =
                             ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
                                     .getDefaultDisplay();
                         int screenWidth = display.getWidth();
                         int screenHeight = display.getHeight();
-                        Bitmap b =
-                            FileUtils
-                                    .getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                        if (b != null) {
-
-                            if (b.getWidth() > maxColumnWidth) {
-                                maxColumnWidth = b.getWidth();
-                            }
-
+                        // only the bounds are needed to size the columns, the adapter decodes
+                        int[] size =
+                            BitmapDecoder.getScaledSize(imageFile, screenHeight, screenWidth);
+                        if (size != null && size[0] > maxColumnWidth) {
+                            maxColumnWidth = size[0];
                         }
                     }
                 } catch (InvalidReferenceException e) {
@@ -237,23 +233,19 @@ public class GridWidget extends QuestionWidget {
 
                 String imageFilename;
                 try {
-                    imageFilename = ReferenceManager._().DeriveReference(imageURI).getLocalURI();
+                    imageFilename = ReferenceResolver.getLocalURI(imageURI);
                     final File imageFile = new File(imageFilename);
-                    if (imageFile.exists()) {
+                    if (ReferenceResolver.exists(imageFilename)) {
                         Display display =
                             ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
                                     .getDefaultDisplay();
                         int screenWidth = display.getWidth();
                         int screenHeight = display.getHeight();
-                        Bitmap b =
-                            FileUtils
-                                    .getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                        if (b != null) {
-
-                            if (b.getWidth() > maxColumnWidth) {
-                                maxColumnWidth = b.getWidth();
-                            }
-
+                        // only the bounds are needed to size the columns, the adapter decodes
+                        int[] size =
+                            BitmapDecoder.getScaledSize(imageFile, screenHeight, screenWidth);
+                        if (size != null && size[0] > maxColumnWidth) {
+                            maxColumnWidth = size[0];
                         }
                     }
                 } catch (InvalidReferenceException e) {
@@ -412,33 +404,24 @@ public class GridWidget extends QuestionWidget {
             if (imageURI != null) {
                 try {
                     String imageFilename =
-                        ReferenceManager._().DeriveReference(imageURI).getLocalURI();
+                        ReferenceResolver.getLocalURI(imageURI);
                     final File imageFile = new File(imageFilename);
-                    if (imageFile.exists()) {
+                    if (ReferenceResolver.exists(imageFilename)) {
                         Display display =
                             ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
                                     .getDefaultDisplay();
                         int screenWidth = display.getWidth();
                         int screenHeight = display.getHeight();
-                        Bitmap b =
-                            FileUtils
-                                    .getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                        if (b != null) {
-
-                            if (mImageView == null) {
-                                mImageView = new ImageView(getContext());
-                                mImageView.setBackgroundColor(Color.WHITE);
-                            }
-
-                            mImageView.setPadding(3, 3, 3, 3);
-                            mImageView.setImageBitmap(b);
+                        if (mImageView == null) {
+                            mImageView = new ImageView(getContext());
+                            mImageView.setBackgroundColor(Color.WHITE);
+                        }
 
-                            imageViews[position] = mImageView;
+                        mImageView.setPadding(3, 3, 3, 3);
+                        AsyncBitmapLoader.getInstance().load(GridWidget.this, mImageView, imageFile,
+                            screenHeight, screenWidth, null);
 
-                        } else {
-                            // Loading the image failed, so it's likely a bad file.
-                            errorMsg = StringUtils.getStringRobust(getContext(), R.string.file_invalid, imageFile.toString());
-                        }
+                        imageViews[position] = mImageView;
                     } else {
                         // We should have an image, but the file doesn't exist.
                         errorMsg = StringUtils.getStringRobust(getContext(), R.string.file_missing, imageFile.toString());
@@ -22,7 +22,7 @@ import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.R;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncBitmapLoader;
 import org.odk.collect.android.utilities.MediaUtils;
 import org.odk.collect.android.utilities.StringUtils;
 import org.odk.collect.android.utilities.UrlUtils;
@@ -181,11 +181,17 @@ public class ImageWidget extends QuestionWidget implements IBinaryWidget {
             checkFileSize(f);
             
             if (f.exists()) {
-                Bitmap bmp = FileUtils.getBitmapScaledToDisplay(f, screenHeight, screenWidth);
-                if (bmp == null) {
-                    mErrorTextView.setVisibility(View.VISIBLE);
-                }
-                mImageView.setImageBitmap(bmp);
+                // decoded in the background, the error shows if it isn't a valid image
+                AsyncBitmapLoader.getInstance().load(this, mImageView, f, screenHeight, screenWidth,
+                    new AsyncBitmapLoader.BitmapLoadListener() {
+                        public void bitmapLoaded(ImageView view, Bitmap b) {
+                        }
+
+
+                        public void bitmapFailed(ImageView view, File file) {
+                            mErrorTextView.setVisibility(View.VISIBLE);
+                        }
+                    });
             } else {
                 mImageView.setImageBitmap(null);
             }
@@ -261,6 +267,7 @@ public class ImageWidget extends QuestionWidget implements IBinaryWidget {
     public void clearAnswer() {
         // remove the file
         deleteMedia();
+        AsyncBitmapLoader.getInstance().cancelLoad(mImageView);
         mImageView.setImageBitmap(null);
         mErrorTextView.setVisibility(View.GONE);
 
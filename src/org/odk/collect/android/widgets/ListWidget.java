@@ -9,16 +9,15 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.R;
 import org.odk.collect.android.listeners.WidgetChangedListener;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncBitmapLoader;
+import org.odk.collect.android.utilities.ReferenceResolver;
 import org.odk.collect.android.utilities.StringUtils;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.util.Log;
 import android.util.TypedValue;
@@ -109,36 +108,24 @@ public class ListWidget extends QuestionWidget implements OnCheckedChangeListene
                 if (imageURI != null) {
                     try {
                         String imageFilename =
-                            ReferenceManager._().DeriveReference(imageURI).getLocalURI();
+                            ReferenceResolver.getLocalURI(imageURI);
                         final File imageFile = new File(imageFilename);
-                        if (imageFile.exists()) {
-                            Bitmap b = null;
-                            try {
-                                Display display =
-                                    ((WindowManager) getContext().getSystemService(
-                                        Context.WINDOW_SERVICE)).getDefaultDisplay();
-                                int screenWidth = display.getWidth();
-                                int screenHeight = display.getHeight();
-                                b =
-                                    FileUtils.getBitmapScaledToDisplay(imageFile, screenHeight,
-                                        screenWidth);
-                            } catch (OutOfMemoryError e) {
-                                errorMsg = "ERROR: " + e.getMessage();
-                            }
-
-                            if (b != null) {
-                                mImageView = new ImageView(getContext());
-                                mImageView.setPadding(2, 2, 2, 2);
-                                mImageView.setAdjustViewBounds(true);
-                                mImageView.setImageBitmap(b);
-                                mImageView.setId(23423534);
-                            } else if (errorMsg == null) {
-                                // An error hasn't been logged and loading the image failed, so it's
-                                // likely
-                                // a bad file.
-                                errorMsg = StringUtils.getStringRobust(getContext(), R.string.file_invalid, imageFile.toString());
-
-                            }
+                        if (ReferenceResolver.exists(imageFilename)) {
+                            Display display =
+                                ((WindowManager) getContext().getSystemService(
+                                    Context.WINDOW_SERVICE)).getDefaultDisplay();
+                            // the choices share the row equally
+                            int targetWidth = display.getWidth() / mItems.size();
+                            int screenHeight = display.getHeight();
+
+                            // decoded in the background, a broken image icon replaces the placeholder
+                            // if the file turns out not to be a valid image
+                            mImageView = new ImageView(getContext());
+                            mImageView.setPadding(2, 2, 2, 2);
+                            mImageView.setAdjustViewBounds(true);
+                            mImageView.setId(23423534);
+                            AsyncBitmapLoader.getInstance().load(this, mImageView, imageFile, screenHeight,
+                                targetWidth, null);
                         } else if (errorMsg == null) {
                             // An error hasn't been logged. We should have an image, but the file
                             // doesn't
@@ -10,6 +10,7 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.WidgetChangedListener;
 import org.odk.collect.android.preferences.PreferencesActivity;
+import org.odk.collect.android.utilities.AsyncBitmapLoader;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.StringUtils;
 import org.odk.collect.android.views.ShrinkingTextView;
@@ -54,6 +55,9 @@ public abstract class QuestionWidget extends LinearLayout {
     
     protected WidgetChangedListener widgetChangedListener;
 
+    // images cancelled when the widget was last detached, restarted if it comes back
+    private AsyncBitmapLoader.Cancelled mCancelledImages;
+
 
     public QuestionWidget(Context context, FormEntryPrompt p) {
     	this(context, p, null);
@@ -179,6 +183,23 @@ public abstract class QuestionWidget extends LinearLayout {
 		}
 	}
     
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		// back on screen, e.g. when the view is reused, so its placeholders need their images
+		if (mCancelledImages != null) {
+			AsyncBitmapLoader.getInstance().restart(mCancelledImages);
+			mCancelledImages = null;
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		// images still decoding for this widget would only be thrown away
+		mCancelledImages = AsyncBitmapLoader.getInstance().cancel(this);
+		super.onDetachedFromWindow();
+	}
+    
     private void stripUnderlines(TextView textView) {
         Spannable s = (Spannable)textView.getText();
         URLSpan[] spans = s.getSpans(0, s.length(), URLSpan.class);
@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2012 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.io.File;
+import java.util.Vector;
+
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.odk.collect.android.R;
+import org.odk.collect.android.utilities.AsyncBitmapLoader;
+import org.odk.collect.android.utilities.ReferenceResolver;
+import org.odk.collect.android.views.media.AudioButton;
+import org.odk.collect.android.views.media.MediaLayout;
+
+import android.content.ActivityNotFoundException;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.Display;
+import android.view.Gravity;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.RadioButton;
+import android.widget.Toast;
+
+/**
+ * Select one and select multiple questions with too many choices to build a button for each.
+ * Choices are shown in a fixed height, independently scrolling list whose rows are recycled, so
+ * only the visible choices ever have views (and decoded images). Selection state is held by the
+ * widget rather than the rows, and answers are built exactly as {@link SelectOneWidget} and
+ * {@link SelectMultiWidget} build them.
+ *
+ * Choice images are shown as thumbnails, and choices with audio or video get a play button for
+ * each in their row.
+ */
+public class VirtualizedSelectWidget extends QuestionWidget {
+    private static final String t = "VirtualizedSelectWidget";
+
+    /**
+     * Selects with more choices than this are virtualized.
+     */
+    public static final int VIRTUALIZE_THRESHOLD = 100;
+
+    private static final int NOT_RESOLVED = 0;
+    private static final int NO_IMAGE = 1;
+    private static final int HAS_IMAGE = 2;
+
+    private final Vector<SelectChoice> mItems;
+    private final boolean mMultiple;
+    private final boolean mDisplayLabel;
+
+    // selection state by choice position; only used for select multiple
+    private final boolean[] mSelected;
+    // selected choice position for select one, or -1
+    private int mSelectedIndex = -1;
+
+    // labels and image files are only looked up once a row is first shown
+    private final String[] mLabels;
+    private final int[] mImageState;
+    private final File[] mImageFiles;
+    private final boolean[] mMediaResolved;
+    private final String[] mAudioURIs;
+    private final String[] mVideoURIs;
+
+    private final ListView mList;
+    private final ChoiceAdapter mAdapter;
+    private final int mImageHeight;
+    private final int mImageWidth;
+
+
+    /**
+     * @return true if the prompt has enough choices to be rendered by this widget
+     */
+    public static boolean shouldVirtualize(FormEntryPrompt prompt) {
+        Vector<SelectChoice> items = prompt.getSelectChoices();
+        return items != null && items.size() > VIRTUALIZE_THRESHOLD;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public VirtualizedSelectWidget(Context context, FormEntryPrompt prompt, boolean multiple,
+            boolean displayLabel) {
+        super(context, prompt);
+        mItems = prompt.getSelectChoices();
+        mMultiple = multiple;
+        mDisplayLabel = displayLabel;
+
+        int count = mItems.size();
+        mSelected = new boolean[count];
+        mLabels = new String[count];
+        mImageState = new int[count];
+        mImageFiles = new File[count];
+        mMediaResolved = new boolean[count];
+        mAudioURIs = new String[count];
+        mVideoURIs = new String[count];
+
+        // match the current answer by value, as the button based widgets do
+        if (prompt.getAnswerValue() != null) {
+            if (mMultiple) {
+                Vector<Selection> ve = (Vector<Selection>) getCurrentAnswer().getValue();
+                for (Selection s : ve) {
+                    for (int i = 0; i < count; i++) {
+                        if (mItems.get(i).getValue().equals(s.getValue())) {
+                            mSelected[i] = true;
+                            break;
+                        }
+                    }
+                }
+            } else {
+                String s = prompt.getAnswerValue().uncast().getString();
+                for (int i = 0; i < count; i++) {
+                    if (mItems.get(i).getValue().equals(s)) {
+                        mSelectedIndex = i;
+                        break;
+                    }
+                }
+            }
+        }
+
+        Display display =
+            ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
+                    .getDefaultDisplay();
+        mImageHeight = display.getHeight() / 8;
+        mImageWidth = display.getWidth() / 4;
+
+        mAdapter = new ChoiceAdapter();
+        mList = new ListView(getContext());
+        mList.setAdapter(mAdapter);
+        mList.setItemsCanFocus(false);
+        mList.setEnabled(!prompt.isReadOnly());
+        mList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                toggle(position);
+            }
+        });
+
+        // the question list scrolls too, keep drags that start on the choices for this list
+        mList.setOnTouchListener(new OnTouchListener() {
+            public boolean onTouch(View v, MotionEvent event) {
+                int action = event.getAction();
+                if (action == MotionEvent.ACTION_DOWN) {
+                    v.getParent().requestDisallowInterceptTouchEvent(true);
+                } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    v.getParent().requestDisallowInterceptTouchEvent(false);
+                }
+                return false;
+            }
+        });
+
+        addView(mList, new LinearLayout.LayoutParams(LayoutParams.FILL_PARENT,
+                display.getHeight() / 2));
+
+        if (!mMultiple && mSelectedIndex != -1) {
+            mList.setSelection(mSelectedIndex);
+        }
+    }
+
+
+    private void toggle(int position) {
+        if (mPrompt.isReadOnly()) {
+            return;
+        }
+        if (mMultiple) {
+            mSelected[position] = !mSelected[position];
+        } else {
+            mSelectedIndex = position;
+        }
+        // only the visible rows are rebound
+        mAdapter.notifyDataSetChanged();
+        widgetEntryChanged();
+    }
+
+
+    private boolean isSelected(int position) {
+        return mMultiple ? mSelected[position] : mSelectedIndex == position;
+    }
+
+
+    private String getLabel(int position) {
+        if (mLabels[position] == null) {
+            mLabels[position] = mPrompt.getSelectChoiceText(mItems.get(position));
+        }
+        return mLabels[position];
+    }
+
+
+    private File getImageFile(int position) {
+        if (mImageState[position] == NOT_RESOLVED) {
+            mImageState[position] = NO_IMAGE;
+            String imageURI =
+                mPrompt.getSpecialFormSelectChoiceText(mItems.get(position),
+                    FormEntryCaption.TEXT_FORM_IMAGE);
+            if (imageURI != null) {
+                try {
+                    String imageFilename = ReferenceResolver.getLocalURI(imageURI);
+                    File f = new File(imageFilename);
+                    if (ReferenceResolver.exists(imageFilename)) {
+                        mImageFiles[position] = f;
+                        mImageState[position] = HAS_IMAGE;
+                    } else {
+                        Log.e(t, "Missing choice image " + f.getAbsolutePath());
+                    }
+                } catch (InvalidReferenceException e) {
+                    Log.e(t, "image invalid reference exception");
+                    e.printStackTrace();
+                }
+            }
+        }
+        return mImageFiles[position];
+    }
+
+
+    private void resolveMedia(int position) {
+        if (!mMediaResolved[position]) {
+            mMediaResolved[position] = true;
+            SelectChoice sc = mItems.get(position);
+            mAudioURIs[position] =
+                mPrompt.getSpecialFormSelectChoiceText(sc, FormEntryCaption.TEXT_FORM_AUDIO);
+            mVideoURIs[position] = mPrompt.getSpecialFormSelectChoiceText(sc, "video");
+        }
+    }
+
+
+    /**
+     * Plays a choice's video the way {@link MediaLayout} does.
+     */
+    private void playVideo(String videoURI) {
+        String videoFilename = "";
+        try {
+            videoFilename = ReferenceResolver.getLocalURI(videoURI);
+        } catch (InvalidReferenceException e) {
+            Log.e(t, "Invalid reference exception");
+            e.printStackTrace();
+        }
+
+        File videoFile = new File(videoFilename);
+        if (!videoFile.exists()) {
+            // We should have a video clip, but the file doesn't exist.
+            String errorMsg = getContext().getString(R.string.file_missing, videoFilename);
+            Log.e(t, errorMsg);
+            Toast.makeText(getContext(), errorMsg, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        Intent i = new Intent("android.intent.action.VIEW");
+        i.setDataAndType(Uri.fromFile(videoFile), "video/*");
+        try {
+            getContext().startActivity(i);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(getContext(),
+                getContext().getString(R.string.activity_not_found, "view video"),
+                Toast.LENGTH_SHORT).show();
+        }
+    }
+
+
+    @Override
+    public void clearAnswer() {
+        for (int i = 0; i < mSelected.length; i++) {
+            mSelected[i] = false;
+        }
+        mSelectedIndex = -1;
+        mAdapter.notifyDataSetChanged();
+    }
+
+
+    @Override
+    public IAnswerData getAnswer() {
+        if (!mMultiple) {
+            if (mSelectedIndex == -1) {
+                return null;
+            }
+            return new SelectOneData(new Selection(mItems.get(mSelectedIndex)));
+        }
+
+        Vector<Selection> vc = new Vector<Selection>();
+        for (int i = 0; i < mSelected.length; i++) {
+            if (mSelected[i]) {
+                vc.add(new Selection(mItems.get(i)));
+            }
+        }
+        if (vc.size() == 0) {
+            return null;
+        } else {
+            return new SelectMultiData(vc);
+        }
+    }
+
+
+    @Override
+    public void setFocus(Context context) {
+        // Hide the soft keyboard if it's showing.
+        InputMethodManager inputManager =
+            (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputManager.hideSoftInputFromWindow(this.getWindowToken(), 0);
+    }
+
+
+    @Override
+    public void setOnLongClickListener(final OnLongClickListener l) {
+        mList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position,
+                    long id) {
+                return l.onLongClick(VirtualizedSelectWidget.this);
+            }
+        });
+    }
+
+
+    @Override
+    public void cancelLongPress() {
+        super.cancelLongPress();
+        mList.cancelLongPress();
+    }
+
+    /**
+     * The views of one visible row.
+     */
+    private static class RowHolder {
+        CompoundButton button;
+        ImageView image;
+        AudioButton audio;
+        ImageButton video;
+        // the video the video button plays
+        String videoURI;
+    }
+
+    private class ChoiceAdapter extends BaseAdapter {
+
+        public int getCount() {
+            return mItems.size();
+        }
+
+
+        public Object getItem(int position) {
+            return mItems.get(position);
+        }
+
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            RowHolder holder;
+            if (convertView == null) {
+                holder = new RowHolder();
+                LinearLayout row = new LinearLayout(getContext());
+                row.setOrientation(LinearLayout.HORIZONTAL);
+                row.setGravity(Gravity.CENTER_VERTICAL);
+
+                if (mMultiple) {
+                    holder.button = new CheckBox(getContext());
+                } else {
+                    holder.button = new RadioButton(getContext());
+                }
+                holder.button.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+                // the row handles clicks so that the whole row is a target
+                holder.button.setFocusable(false);
+                holder.button.setClickable(false);
+                holder.button.setEnabled(!mPrompt.isReadOnly());
+                row.addView(holder.button, new LinearLayout.LayoutParams(0,
+                        LayoutParams.WRAP_CONTENT, 1));
+
+                holder.image = new ImageView(getContext());
+                holder.image.setPadding(2, 2, 2, 2);
+                holder.image.setAdjustViewBounds(true);
+                row.addView(holder.image, new LinearLayout.LayoutParams(
+                        LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+
+                holder.audio = new AudioButton(getContext(), null, false);
+                row.addView(holder.audio, new LinearLayout.LayoutParams(
+                        LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+
+                final RowHolder h = holder;
+                holder.video = new ImageButton(getContext());
+                holder.video.setImageResource(android.R.drawable.ic_media_play);
+                holder.video.setFocusable(false);
+                holder.video.setOnClickListener(new OnClickListener() {
+                    public void onClick(View v) {
+                        playVideo(h.videoURI);
+                    }
+                });
+                row.addView(holder.video, new LinearLayout.LayoutParams(
+                        LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+
+                row.setTag(holder);
+                convertView = row;
+            } else {
+                holder = (RowHolder) convertView.getTag();
+            }
+
+            holder.button.setText(mDisplayLabel ? getLabel(position) : null);
+            holder.button.setChecked(isSelected(position));
+
+            File image = getImageFile(position);
+            if (image != null) {
+                holder.image.setVisibility(View.VISIBLE);
+                // replaces whatever the recycled row was still loading
+                AsyncBitmapLoader.getInstance().load(VirtualizedSelectWidget.this, holder.image,
+                    image, mImageHeight, mImageWidth, null);
+            } else {
+                // a late result for the choice this row showed before mustn't land here
+                AsyncBitmapLoader.getInstance().cancelLoad(holder.image);
+                holder.image.setImageDrawable(null);
+                holder.image.setVisibility(View.GONE);
+            }
+
+            resolveMedia(position);
+            String audioURI = mAudioURIs[position];
+            holder.audio.resetButton(audioURI, audioURI != null);
+            if (audioURI == null) {
+                holder.audio.setVisibility(View.GONE);
+            }
+            holder.videoURI = mVideoURIs[position];
+            holder.video.setVisibility(holder.videoURI != null ? View.VISIBLE : View.GONE);
+            return convertView;
+        }
+    }
+
+}
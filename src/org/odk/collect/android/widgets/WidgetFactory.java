@@ -117,7 +117,9 @@ public class WidgetFactory {
                 questionWidget = new VideoWidget(context, fep);
                 break;
             case Constants.CONTROL_SELECT_ONE:
-                if (appearance != null && appearance.contains("compact")) {
+                if (ExternalSelectWidget.handles(fep)) {
+                    questionWidget = new ExternalSelectWidget(context, fep, form, false);
+                } else if (appearance != null && appearance.contains("compact")) {
                     int numColumns = -1;
                     try {
                         numColumns =
@@ -148,12 +150,19 @@ public class WidgetFactory {
                 // }
                 else if (appearance != null && appearance.equals("quick")) {
                     questionWidget = new SelectOneAutoAdvanceWidget(context, fep);
+                } else if (appearance != null && appearance.startsWith("list")
+                        && VirtualizedSelectWidget.shouldVirtualize(fep)) {
+                    questionWidget =
+                        new VirtualizedSelectWidget(context, fep, false, !appearance
+                                .equals("list-nolabel"));
                 } else if (appearance != null && appearance.equals("list")) {
                     questionWidget = new ListWidget(context, fep, true);
                 } else if (appearance != null && appearance.equals("list-nolabel")) {
                     questionWidget = new ListWidget(context, fep, false);
                 } else if (appearance != null && appearance.equals("label")) {
                     questionWidget = new LabelWidget(context, fep);
+                } else if (VirtualizedSelectWidget.shouldVirtualize(fep)) {
+                    questionWidget = new VirtualizedSelectWidget(context, fep, false, true);
                 } else {
                     questionWidget = new SelectOneWidget(context, fep);
                 }
@@ -161,7 +170,9 @@ public class WidgetFactory {
             case Constants.CONTROL_SELECT_MULTI:
                 appearance = fep.getAppearanceHint();
 
-                if (appearance != null && appearance.contains("compact")) {
+                if (ExternalSelectWidget.handles(fep)) {
+                    questionWidget = new ExternalSelectWidget(context, fep, form, true);
+                } else if (appearance != null && appearance.contains("compact")) {
                     int numColumns = -1;
                     try {
                         numColumns =
@@ -174,12 +185,19 @@ public class WidgetFactory {
                     questionWidget = new GridMultiWidget(context, fep, numColumns);
                 } else if (appearance != null && appearance.equals("minimal")) {
                     questionWidget = new SpinnerMultiWidget(context, fep);
+                } else if (appearance != null && appearance.startsWith("list")
+                        && VirtualizedSelectWidget.shouldVirtualize(fep)) {
+                    questionWidget =
+                        new VirtualizedSelectWidget(context, fep, true, !appearance
+                                .equals("list-nolabel"));
                 } else if (appearance != null && appearance.equals("list")) {
                     questionWidget = new ListMultiWidget(context, fep, true);
                 } else if (appearance != null && appearance.equals("list-nolabel")) {
                     questionWidget = new ListMultiWidget(context, fep, false);
                 } else if (appearance != null && appearance.equals("label")) {
                     questionWidget = new LabelWidget(context, fep);
+                } else if (VirtualizedSelectWidget.shouldVirtualize(fep)) {
+                    questionWidget = new VirtualizedSelectWidget(context, fep, true, true);
                 } else {
                     questionWidget = new SelectMultiWidget(context, fep);
                 }